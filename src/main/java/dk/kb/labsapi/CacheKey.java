@@ -0,0 +1,511 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import dk.kb.webservice.exception.InternalServiceException;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.request.RequestWriter;
+import org.apache.solr.client.solrj.request.json.JsonQueryRequest;
+import org.apache.solr.common.MapWriter;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Canonical key for a Solr request, intended for caching.
+ * <p>
+ * The canonical form of a request lists the parameters sorted by name, with the invariant parameters for the
+ * SolrClient (typically the export filter) folded in. The values of filter queries are also sorted, as their
+ * order does not affect the result. JSON bodies are normalised by sorting the keys of all JSON objects.
+ * This means that logically identical requests with different parameter order yield the same key.
+ * <p>
+ * The canonical form is hashed to a 128 bit digest, which is used as the key in the cache maps. The canonical form
+ * itself is only used for collision checking.
+ * <p>
+ * Keys are created for every cache lookup, so the canonical form is not materialised up front: The sorted
+ * parameters and the normalised body are written as tokens directly to a reused per-thread {@link MessageDigest}.
+ * Collision checks with {@link #matches(String)} compare the tokens to a stored canonical form in the same way,
+ * and the canonical String is only built by {@link #getCanonical()}, which is needed when an entry is stored.
+ * Bodies are taken from the public {@link RequestWriter.ContentWriter} of the request, serialised to a reused
+ * per-thread buffer.
+ */
+public class CacheKey {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required to be supported by all Java platforms", e);
+        }
+    });
+    private static final ThreadLocal<DigestSink> DIGEST_SINK = ThreadLocal.withInitial(DigestSink::new);
+    private static final ThreadLocal<BodyBuffer> BODY_BUFFER = ThreadLocal.withInitial(BodyBuffer::new);
+    private static final String[] NO_VALUES = new String[0];
+
+    // Either canonical or the parts are defined. The parts are resolved to the canonical form on demand
+    private final String collection;
+    private final String path;
+    private final String[] names;
+    private final String[][] values;
+    private final Object body; // Parsed JSON, String or null
+    private final String digest;
+    private volatile String canonical;
+
+    /**
+     * Create a key for a request from its canonical form. Normally the static builders should be used instead.
+     * @param canonical the canonical form of a request.
+     */
+    public CacheKey(String canonical) {
+        this.collection = null;
+        this.path = null;
+        this.names = null;
+        this.values = null;
+        this.body = null;
+        this.canonical = canonical;
+        DigestSink sink = DIGEST_SINK.get();
+        sink.append(canonical);
+        this.digest = sink.digest();
+    }
+
+    private CacheKey(String collection, String path, SolrParams invariants, SolrParams params, Object body) {
+        this.collection = collection;
+        this.path = path;
+        this.names = sortedNames(invariants, params);
+        this.values = new String[names.length][];
+        for (int i = 0 ; i < names.length ; i++) {
+            values[i] = mergedValues(names[i], invariants, params);
+        }
+        this.body = body;
+        DigestSink sink = DIGEST_SINK.get();
+        writeParts(sink);
+        this.digest = sink.digest();
+    }
+
+    /**
+     * Create a key for a standard search request.
+     * @param invariants parameters that are added to all requests by the SolrClient. Can be null.
+     * @param collection the Solr collection for the request. Can be null.
+     * @param params     the request parameters.
+     * @return a key for the request.
+     */
+    public static CacheKey of(SolrParams invariants, String collection, SolrParams params) {
+        return new CacheKey(collection, null, invariants, params, null);
+    }
+
+    /**
+     * Create a key for a JSON request.
+     * @param invariants parameters that are added to all requests by the SolrClient. Can be null.
+     * @param request    a JSON request.
+     * @return a key for the request.
+     */
+    public static CacheKey of(SolrParams invariants, JsonQueryRequest request) {
+        return of(invariants, null, request);
+    }
+
+    /**
+     * Create a key for a generic request.
+     * @param invariants parameters that are added to all requests by the SolrClient. Can be null.
+     * @param collection the Solr collection for the request. Can be null.
+     * @param request    a Solr request.
+     * @return a key for the request.
+     */
+    public static CacheKey of(SolrParams invariants, String collection, SolrRequest<?> request) {
+        return new CacheKey(collection, request.getPath(), invariants, request.getParams(), readBody(request));
+    }
+
+    /**
+     * @return a 32 character hex representation of the 128 bit digest of the canonical form.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * The canonical form is built on first call. Use {@link #matches(String)} for collision checking.
+     * @return the full canonical form of the request.
+     */
+    public String getCanonical() {
+        String result = canonical;
+        if (result == null) {
+            StringBuilderSink sink = new StringBuilderSink();
+            writeParts(sink);
+            result = canonical = sink.toString();
+        }
+        return result;
+    }
+
+    /**
+     * Check whether the canonical form of this key is equal to the given canonical form, without building it.
+     * @param otherCanonical the canonical form of another key, typically stored with a cache entry.
+     * @return true if the canonical forms are equal.
+     */
+    public boolean matches(String otherCanonical) {
+        if (otherCanonical == null) {
+            return false;
+        }
+        String own = canonical;
+        if (own != null) {
+            return own.equals(otherCanonical);
+        }
+        MatchSink sink = new MatchSink(otherCanonical);
+        writeParts(sink);
+        return sink.matchesFully();
+    }
+
+    /**
+     * Write the canonical form of the request parts as tokens to the sink.
+     */
+    private void writeParts(Sink sink) {
+        if (collection != null) {
+            sink.append("collection=").append(collection).append('\n');
+        }
+        if (path != null) {
+            sink.append("path=").append(path).append('\n');
+        }
+        for (int i = 0 ; i < names.length ; i++) {
+            for (String value: values[i]) {
+                appendEscaped(sink, names[i]);
+                sink.append('=');
+                appendEscaped(sink, value);
+                sink.append('\n');
+            }
+        }
+        if (body != null) {
+            sink.append("body=");
+            if (body instanceof String) {
+                appendEscaped(sink, (String) body);
+            } else {
+                appendJSON(sink, body);
+            }
+            sink.append('\n');
+        }
+    }
+
+    /**
+     * @return the unique names from both params, sorted.
+     */
+    private static String[] sortedNames(SolrParams invariants, SolrParams params) {
+        String[] names = new String[8];
+        int count = 0;
+        for (SolrParams source: new SolrParams[]{params, invariants}) {
+            if (source == null) {
+                continue;
+            }
+            Iterator<String> it = source.getParameterNamesIterator();
+            while (it.hasNext()) {
+                if (count == names.length) {
+                    names = Arrays.copyOf(names, count*2);
+                }
+                names[count++] = it.next();
+            }
+        }
+        Arrays.sort(names, 0, count);
+        int unique = 0;
+        for (int i = 0 ; i < count ; i++) {
+            if (unique == 0 || !names[i].equals(names[unique-1])) {
+                names[unique++] = names[i];
+            }
+        }
+        return unique == names.length ? names : Arrays.copyOf(names, unique);
+    }
+
+    /**
+     * @return the values for the name from params followed by invariants. Filter queries are sorted.
+     */
+    private static String[] mergedValues(String name, SolrParams invariants, SolrParams params) {
+        String[] primary = params == null ? null : params.getParams(name);
+        String[] secondary = invariants == null ? null : invariants.getParams(name);
+        String[] merged;
+        if (secondary == null || secondary.length == 0) {
+            merged = primary == null ? NO_VALUES : primary.clone();
+        } else if (primary == null || primary.length == 0) {
+            merged = secondary.clone();
+        } else {
+            merged = Arrays.copyOf(primary, primary.length + secondary.length);
+            System.arraycopy(secondary, 0, merged, primary.length, secondary.length);
+        }
+        if (CommonParams.FQ.equals(name)) {
+            Arrays.sort(merged);
+        }
+        return merged;
+    }
+
+    /**
+     * Serialise the body of the request with its public content writer to a reused buffer.
+     * @return the parsed structure for JSON requests, the body as String for other requests or null if there is
+     *         no body.
+     */
+    private static Object readBody(SolrRequest<?> request) {
+        RequestWriter.ContentWriter writer = request.getContentWriter(CommonParams.JAVABIN_MIME);
+        if (writer == null) {
+            return null;
+        }
+        BodyBuffer buffer = BODY_BUFFER.get();
+        buffer.reset();
+        try {
+            writer.write(buffer);
+        } catch (IOException e) {
+            throw new InternalServiceException("Unable to create key for request", e);
+        }
+        return request instanceof JsonQueryRequest ?
+                Utils.fromJSON(buffer.array(), 0, buffer.size()) :
+                new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Append the JSON structure with the keys of objects sorted.
+     */
+    private static void appendJSON(Sink sink, Object json) {
+        if (json instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) json;
+            String[] keys = new String[map.size()];
+            int i = 0;
+            for (Object key: map.keySet()) {
+                keys[i++] = String.valueOf(key);
+            }
+            Arrays.sort(keys);
+            sink.append('{');
+            for (i = 0 ; i < keys.length ; i++) {
+                if (i > 0) {
+                    sink.append(',');
+                }
+                appendJSON(sink, keys[i]);
+                sink.append(':');
+                appendJSON(sink, map.get(keys[i]));
+            }
+            sink.append('}');
+        } else if (json instanceof MapWriter) {
+            appendJSON(sink, ((MapWriter) json).toMap(new LinkedHashMap<>()));
+        } else if (json instanceof Object[]) {
+            appendJSON(sink, Arrays.asList((Object[]) json));
+        } else if (json instanceof Collection) {
+            sink.append('[');
+            boolean first = true;
+            for (Object element: (Collection<?>) json) {
+                if (!first) {
+                    sink.append(',');
+                }
+                first = false;
+                appendJSON(sink, element);
+            }
+            sink.append(']');
+        } else if (json instanceof String) {
+            sink.append('"');
+            appendEscaped(sink, (String) json);
+            sink.append('"');
+        } else {
+            sink.append(String.valueOf(json));
+        }
+    }
+
+    /**
+     * Escape the characters used as delimiters in the canonical form.
+     */
+    private static void appendEscaped(Sink sink, String s) {
+        for (int i = 0 ; i < s.length() ; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                case '=':
+                case '"':
+                    sink.append('\\').append(c);
+                    break;
+                case '\n':
+                    sink.append('\\').append('n');
+                    break;
+                default:
+                    sink.append(c);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) o;
+        return digest.equals(other.digest) && matches(other.getCanonical());
+    }
+
+    @Override
+    public int hashCode() {
+        return digest.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheKey{" + digest + "}";
+    }
+
+    /**
+     * Receiver of the tokens of a canonical form.
+     */
+    private interface Sink {
+        Sink append(char c);
+
+        default Sink append(String s) {
+            for (int i = 0 ; i < s.length() ; i++) {
+                append(s.charAt(i));
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Builds the canonical form as a String.
+     */
+    private static final class StringBuilderSink implements Sink {
+        private final StringBuilder sb = new StringBuilder();
+
+        @Override
+        public Sink append(char c) {
+            sb.append(c);
+            return this;
+        }
+
+        @Override
+        public Sink append(String s) {
+            sb.append(s);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Compares the tokens to an existing canonical form.
+     */
+    private static final class MatchSink implements Sink {
+        private final String expected;
+        private int pos = 0;
+        private boolean matching = true;
+
+        MatchSink(String expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public Sink append(char c) {
+            if (matching) {
+                matching = pos < expected.length() && expected.charAt(pos++) == c;
+            }
+            return this;
+        }
+
+        boolean matchesFully() {
+            return matching && pos == expected.length();
+        }
+    }
+
+    /**
+     * Encodes the tokens as UTF-8 in chunks to a reused buffer and feeds them to the per-thread MD5.
+     * Unpaired surrogates are replaced with '?', as with {@link String#getBytes}.
+     */
+    private static final class DigestSink implements Sink {
+        private final byte[] buffer = new byte[8192];
+        private int pos = 0;
+        private char pendingHigh = 0;
+
+        @Override
+        public Sink append(char c) {
+            if (pos > buffer.length - 4) { // Room for the longest UTF-8 sequence
+                MD5.get().update(buffer, 0, pos);
+                pos = 0;
+            }
+            if (pendingHigh != 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    buffer[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return this;
+                }
+                buffer[pos++] = '?';
+                return append(c);
+            }
+            if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            } else if (Character.isSurrogate(c)) {
+                buffer[pos++] = '?';
+            } else {
+                buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            return this;
+        }
+
+        /**
+         * Finish the digest and reset the sink for the next key.
+         * @return hex representation of the digest.
+         */
+        String digest() {
+            if (pendingHigh != 0) {
+                buffer[pos++] = '?';
+                pendingHigh = 0;
+            }
+            MessageDigest md5 = MD5.get();
+            md5.update(buffer, 0, pos);
+            pos = 0;
+            byte[] hash = md5.digest();
+            char[] hex = new char[hash.length*2];
+            for (int i = 0 ; i < hash.length ; i++) {
+                hex[i*2] = HEX[(hash[i] >> 4) & 0x0F];
+                hex[i*2+1] = HEX[hash[i] & 0x0F];
+            }
+            return new String(hex);
+        }
+    }
+
+    /**
+     * Reused output buffer for request bodies, exposing the backing array to avoid copying.
+     */
+    private static final class BodyBuffer extends ByteArrayOutputStream {
+        BodyBuffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import dk.kb.labsapi.config.ServiceConfig;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Warms the Solr caches at startup by replaying the most popular timeline, facet and hit count requests.
+ * <p>
+ * The requests are recorded from live traffic at the API level and periodically written to a log file together with
+ * their counts. At startup the log and an optional static list of requests from the configuration are replayed with
+ * bounded parallelism. Requests are replayed at the API level so that the resulting Solr requests are identical
+ * to the ones issued by live traffic.
+ * <p>
+ * A request is represented as {@code type?key=value&key=value}, with URL encoded keys and values. Supported types
+ * are {@code timeline}, {@code facet} and {@code hits}. The log file holds one request per line, prefixed by its
+ * count and a tab.
+ */
+public class CacheWarmer {
+    private static final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+
+    public static final String TIMELINE = "timeline";
+    public static final String FACET = "facet";
+    public static final String HITS = "hits";
+
+    private static CacheWarmer instance;
+
+    private final boolean enabled;
+    private final boolean recording;
+    private final Path logFile;
+    private final int maxRequests;
+    private final int parallelism;
+    private final long timeoutMS;
+    private final long flushMS;
+    private final List<String> staticRequests;
+
+    private final Map<String, LongAdder> recorded = new ConcurrentHashMap<>();
+    private final Consumer<String> replayer;
+    private volatile boolean ready;
+    private ScheduledExecutorService flusher = null;
+
+    /**
+     * @return the singleton instance of the warmer, created from {@link ServiceConfig} on first call.
+     */
+    public static synchronized CacheWarmer getInstance() {
+        if (instance == null) {
+            YAML conf = ServiceConfig.getConfig();
+            instance = new CacheWarmer(conf.containsKey(".labsapi.warmup") ?
+                                               conf.getSubMap(".labsapi.warmup") :
+                                               new YAML(new LinkedHashMap<>()),
+                                       request -> SolrConnectionScheduler.callWithPriority(
+                                               SolrConnectionScheduler.PRIORITY.background, () -> {
+                                                   replay(request);
+                                                   return null;
+                                               }));
+        }
+        return instance;
+    }
+
+    /**
+     * Create a warmer from the given configuration. Normally {@link #getInstance()} should be used.
+     * @param conf     the {@code .labsapi.warmup} part of the configuration.
+     * @param replayer performs the given request.
+     */
+    CacheWarmer(YAML conf, Consumer<String> replayer) {
+        this.replayer = replayer;
+        enabled = conf.getBoolean(".enabled", false);
+        recording = enabled && conf.getBoolean(".record", true);
+        String logFileString = conf.getString(".log", null);
+        logFile = logFileString == null ? null : Path.of(logFileString);
+        maxRequests = conf.getInteger(".maxRequests", 100);
+        parallelism = conf.getInteger(".parallelism", 2);
+        timeoutMS = conf.getLong(".timeoutMS", 5*60*1000L);
+        flushMS = conf.getLong(".flushMS", 10*60*1000L);
+        staticRequests = conf.containsKey(".requests") ? conf.getList(".requests") : Collections.emptyList();
+        ready = !enabled;
+        log.info("Created " + this);
+    }
+
+    /**
+     * Start warming the caches in the background and start periodic flushing of recorded requests.
+     * {@link #isReady()} will return true when warm-up has finished or timed out.
+     */
+    public synchronized void start() {
+        if (!enabled || flusher != null) {
+            return;
+        }
+        List<String> requests = loadRequests();
+        Thread warmer = new Thread(() -> warm(requests), "CacheWarmer");
+        warmer.setDaemon(true);
+        warmer.start();
+
+        if (recording && logFile != null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "CacheWarmer-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, flushMS, flushMS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop periodic flushing and write the recorded requests to the log file.
+     */
+    public synchronized void stop() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        flush();
+    }
+
+    /**
+     * @return true if the warm-up has finished or timed out, or if warm-up is disabled.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Record a request from live traffic. Requests are only recorded if warm-up and recording are enabled.
+     * @param type          the type of request: {@link #TIMELINE}, {@link #FACET} or {@link #HITS}.
+     * @param keysAndValues the parameters for the request as alternating keys and values. Null values are ignored.
+     */
+    public void record(String type, Object... keysAndValues) {
+        if (!recording) {
+            return;
+        }
+        if (keysAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("There must be an even number of keysAndValues");
+        }
+        Map<String, Object> params = new HashMap<>();
+        for (int i = 0 ; i < keysAndValues.length ; i += 2) {
+            params.put(keysAndValues[i].toString(), keysAndValues[i+1]);
+        }
+        String request = toRequest(type, params);
+        LongAdder count = recorded.get(request);
+        if (count == null) {
+            if (recorded.size() >= maxRequests*10) { // Guard against unbounded growth
+                return;
+            }
+            count = recorded.computeIfAbsent(request, r -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * Write the most popular recorded requests to the log file, replacing the existing file.
+     */
+    public void flush() {
+        if (!recording || logFile == null || recorded.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, Long>> top = recorded.entrySet().stream()
+                .map(entry -> Map.entry(entry.getKey(), entry.getValue().sum()))
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(maxRequests)
+                .collect(Collectors.toList());
+        try {
+            Path parent = logFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, "warmup_", ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write("# Recorded requests for cache warm-up. Format: count<tab>request\n");
+                for (Map.Entry<String, Long> entry: top) {
+                    writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+                }
+            }
+            Files.move(temp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Wrote {} recorded requests to '{}'", top.size(), logFile);
+        } catch (IOException e) {
+            log.warn("Unable to write recorded requests to '{}'", logFile, e);
+        }
+    }
+
+    /**
+     * Load the static requests from the configuration and the recorded requests from the log file.
+     * The recorded counts are used as the starting counts for recording.
+     * @return the unique requests to replay, in order of popularity with static requests first.
+     */
+    List<String> loadRequests() {
+        LinkedHashMap<String, Long> requests = new LinkedHashMap<>();
+        staticRequests.forEach(request -> requests.put(request, Long.MAX_VALUE));
+        if (logFile != null && Files.exists(logFile)) {
+            try {
+                for (String line: Files.readAllLines(logFile, StandardCharsets.UTF_8)) {
+                    if (line.isBlank() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] tokens = line.split("\t", 2);
+                    if (tokens.length != 2) {
+                        log.debug("Skipping malformed line in '{}': '{}'", logFile, line);
+                        continue;
+                    }
+                    long count = Long.parseLong(tokens[0]);
+                    requests.putIfAbsent(tokens[1], count);
+                    if (recording) {
+                        recorded.computeIfAbsent(tokens[1], r -> new LongAdder()).add(count);
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("Unable to load recorded requests from '{}'", logFile, e);
+            }
+        }
+        return requests.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(maxRequests + staticRequests.size())
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Replay the given requests with bounded parallelism and mark the warmer as ready when finished or timed out.
+     * @param requests the requests to replay.
+     */
+    void warm(List<String> requests) {
+        if (requests.isEmpty()) {
+            log.info("No requests for cache warm-up");
+            ready = true;
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        AtomicInteger failed = new AtomicInteger(0);
+        List<Callable<Object>> jobs = requests.stream()
+                .map(request -> (Callable<Object>) () -> {
+                    try {
+                        replayer.accept(request);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        log.debug("Failed replaying '{}' for cache warm-up", request, e);
+                    }
+                    return null;
+                })
+                .collect(Collectors.toList());
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "CacheWarmer-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Object>> results = executor.invokeAll(jobs, timeoutMS, TimeUnit.MILLISECONDS);
+            long cancelled = results.stream().filter(Future::isCancelled).count();
+            log.info("Cache warm-up replayed {}/{} requests ({} failed, {} timed out) in {} ms",
+                     requests.size()-cancelled, requests.size(), failed.get(), cancelled,
+                     System.currentTimeMillis()-startTime);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted during cache warm-up");
+        } finally {
+            executor.shutdownNow();
+            ready = true;
+        }
+    }
+
+    /**
+     * @param type   the type of request.
+     * @param params the parameters for the request. Null values are ignored, Collections are comma separated.
+     * @return the request in the form {@code type?key=value&key=value}, with keys and collection values sorted
+     *         so that identical requests are always represented the same way.
+     */
+    static String toRequest(String type, Map<String, Object> params) {
+        return type + "?" + params.entrySet().stream()
+                .filter(entry -> entry.getValue() != null)
+                .sorted(Map.Entry.comparingByKey())
+                .map(entry -> encode(entry.getKey()) + "=" + encode(
+                        entry.getValue() instanceof Iterable ?
+                                String.join(",", toStrings((Iterable<?>) entry.getValue())) :
+                                entry.getValue().toString()))
+                .collect(Collectors.joining("&"));
+    }
+
+    /**
+     * @param request a request in the form {@code type?key=value&key=value}.
+     * @return the parameters for the request.
+     */
+    static Map<String, String> getParams(String request) {
+        Map<String, String> params = new LinkedHashMap<>();
+        int split = request.indexOf('?');
+        if (split == -1 || split == request.length()-1) {
+            return params;
+        }
+        for (String pair: request.substring(split+1).split("&")) {
+            String[] tokens = pair.split("=", 2);
+            params.put(decode(tokens[0]), tokens.length == 2 ? decode(tokens[1]) : "");
+        }
+        return params;
+    }
+
+    /**
+     * Perform the request against the Solr backed parts of the API, thereby populating the caches.
+     * @param request a request in the form {@code type?key=value&key=value}.
+     */
+    private static void replay(String request) {
+        String type = request.contains("?") ? request.substring(0, request.indexOf('?')) : request;
+        Map<String, String> params = getParams(request);
+        switch (type) {
+            case TIMELINE: {
+                SolrTimeline.getInstance().getTimeline(
+                        params.get("query"), params.get("filter"),
+                        SolrTimeline.GRANULARITY.lenientParse(params.get("granularity")),
+                        params.get("startTime"), params.get("endTime"),
+                        Arrays.stream(params.getOrDefault("elements", "").split(","))
+                                .filter(element -> !element.isEmpty())
+                                .map(SolrTimeline.ELEMENT::valueOf)
+                                .collect(Collectors.toSet()));
+                break;
+            }
+            case FACET: {
+                try {
+                    SolrExport.getInstance().facet(
+                            params.get("query"), params.get("startTime"), params.get("endTime"),
+                            params.get("field"), SolrExport.FACET_SORT.valueOf(params.get("sort")),
+                            Integer.valueOf(params.get("limit")), SolrExport.FACET_FORMAT.getDefault());
+                } catch (java.text.ParseException e) {
+                    throw new IllegalArgumentException("Unable to parse facet request '" + request + "'", e);
+                }
+                break;
+            }
+            case HITS: {
+                SolrExport.getInstance().countHits(params.get("query"));
+                SolrTimeline.getInstance().countHits(params.get("query"));
+                break;
+            }
+            default: throw new IllegalArgumentException(
+                    "Unknown warm-up request type '" + type + "' for request '" + request + "'");
+        }
+    }
+
+    private static List<String> toStrings(Iterable<?> values) {
+        List<String> strings = new ArrayList<>();
+        values.forEach(value -> strings.add(value.toString()));
+        Collections.sort(strings);
+        return strings;
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String s) {
+        return URLDecoder.decode(s, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                             "CacheWarmer(enabled=%b, recording=%b, log='%s', maxRequests=%d, parallelism=%d, " +
+                             "timeoutMS=%d, staticRequests=%d, ready=%b)",
+                             enabled, recording, logFile, maxRequests, parallelism, timeoutMS,
+                             staticRequests.size(), ready);
+    }
+}
@@ -14,9 +14,10 @@
  */
 package dk.kb.labsapi;
 
-import dk.kb.webservice.exception.InternalServiceException;
 import org.apache.solr.client.solrj.*;
 import org.apache.solr.client.solrj.beans.DocumentObjectBinder;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.GenericSolrRequest;
 import org.apache.solr.client.solrj.request.json.JsonQueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.SolrPingResponse;
@@ -24,18 +25,26 @@ import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 /**
@@ -45,13 +54,33 @@ public class CachingSolrClient extends SolrClient {
     private static final Logger log = LoggerFactory.getLogger(SolrBase.class);
 
     private final SolrClient inner;
+    // Parameters added to all requests by the inner SolrClient. Folded into the cache keys
+    private final SolrParams invariants;
     private final int maxConnections;
-    protected final Semaphore connection;
+    protected final SolrConnectionScheduler scheduler;
 
     // The two caches share the size when checking is cached entries should be evicted.
     final TimeCache<QueryResponse> queryCache;
     final TimeCache<NamedList<Object>> namedCache;
 
+    // Requests that are currently being resolved. Used for coalescing concurrent identical requests
+    private final ConcurrentHashMap<CacheKey, CompletableFuture<QueryResponse>> queryInFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<CacheKey, CompletableFuture<NamedList<Object>>> namedInFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong bypassed = new AtomicLong(0);
+    private final LatencyHistogram missLatency = new LatencyHistogram();
+    private final AtomicLong connectionAcquires = new AtomicLong(0);
+    private final AtomicLong connectionWaitNS = new AtomicLong(0);
+    private final AtomicLong connectionWaitMaxNS = new AtomicLong(0);
+
+    // Optional persistent second level cache for query responses
+    private DiskCache diskCache = null;
+
+    // Optional polling of the index version, used for invalidating the caches when the index changes
+    private ScheduledExecutorService indexVersionPoller = null;
+    private volatile String indexVersion = null;
+    private final AtomicLong invalidations = new AtomicLong(0);
+
     /**
      * Wrap a cache around the given inner SolrClient
      * @param inner the SolrClient to handle the calls that are not already cached.
@@ -64,13 +93,36 @@ public class CachingSolrClient extends SolrClient {
      */
     public CachingSolrClient(SolrClient inner,
                              int maxCachedEntries, int maxCacheTimeSeconds, int maxConcurrentConnections) {
+        this(inner, maxCachedEntries, -1, maxCacheTimeSeconds, -1, maxConcurrentConnections);
+    }
+
+    /**
+     * Wrap a cache around the given inner SolrClient
+     * @param inner the SolrClient to handle the calls that are not already cached.
+     * @param maxCachedEntries the maximum number of entries in the cache.
+     *                         Setting this to -1 disables this limit.
+     * @param maxCachedBytes the maximum estimated heap size in bytes of the entries in the cache.
+     *                       Responses larger than this are not cached.
+     *                       Setting this to -1 disables this limit.
+     * @param maxCacheTimeSeconds the maximum age of entries in the cache.
+     *                            Setting this to -1 disables this limit.
+     * @param softCacheTimeSeconds the age after which entries are still served, but refreshed in the background.
+     *                             Setting this to -1 disables background refresh.
+     * @param maxConcurrentConnections the maximum number of concurrent connections against the inner SolrClient.
+     *                                 Setting this to -1 disable this limit.
+     */
+    public CachingSolrClient(SolrClient inner, int maxCachedEntries, long maxCachedBytes,
+                             int maxCacheTimeSeconds, int softCacheTimeSeconds, int maxConcurrentConnections) {
         this.inner = inner;
+        this.invariants = inner instanceof HttpSolrClient ? ((HttpSolrClient)inner).getInvariantParams() : null;
         queryCache = new TimeCache<>(maxCachedEntries == -1 ? Integer.MAX_VALUE : maxCachedEntries,
-                                    maxCacheTimeSeconds == -1 ? Integer.MAX_VALUE/4 : maxCacheTimeSeconds*1000);
-        namedCache = queryCache.createLinked();
+                                     maxCachedBytes == -1 ? Long.MAX_VALUE : maxCachedBytes,
+                                     maxCacheTimeSeconds == -1 ? Integer.MAX_VALUE/4 : maxCacheTimeSeconds*1000L,
+                                     softCacheTimeSeconds == -1 ? -1 : softCacheTimeSeconds*1000L,
+                                     ResponseWeigher::weigh);
+        namedCache = queryCache.createLinked(ResponseWeigher::weigh);
         this.maxConnections = maxConcurrentConnections;
-        connection = new Semaphore(maxConcurrentConnections == -1 ? Integer.MAX_VALUE : maxConcurrentConnections,
-                                   true);
+        scheduler = new SolrConnectionScheduler(maxConcurrentConnections);
     }
 
     /**
@@ -81,6 +133,101 @@ public class CachingSolrClient extends SolrClient {
         namedCache.clear();
     }
 
+    /**
+     * Start polling the index version of the Solr collection in the background. If the version changes, all cached
+     * entries are invalidated. This makes it safe to use a long max age for the cache on a rarely changing corpus.
+     * <p>
+     * If a disk cache is assigned, its index version marker is set to the polled version.
+     * <p>
+     * The index version is specific to the Solr core that answers the request. In SolrCloud the replicas of a
+     * collection have different versions, so polling is only valid for single-node setups or if the Solr URL
+     * points directly to a single core with {@code distrib=false} semantics. Otherwise the caches will be cleared
+     * whenever a poll hits another replica.
+     * @param intervalMS the number of milliseconds between polls.
+     */
+    public synchronized void startIndexVersionPolling(long intervalMS) {
+        if (indexVersionPoller != null) {
+            throw new IllegalStateException("Index version polling has already been started");
+        }
+        indexVersionPoller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CachingSolrClient-indexVersion");
+            thread.setDaemon(true);
+            return thread;
+        });
+        indexVersionPoller.scheduleWithFixedDelay(() -> {
+            try {
+                checkIndexVersion();
+            } catch (Exception e) {
+                log.warn("Unable to poll index version. Will retry in {} ms", intervalMS, e);
+            }
+        }, 0, intervalMS, TimeUnit.MILLISECONDS);
+        log.info("Started polling of index version every {} ms for {}", intervalMS, this);
+    }
+
+    /**
+     * Request the index version from Solr and invalidate the caches if it has changed since the last check.
+     * The request is cheap as it only requests index information ({@code show=index}) and no terms or field info.
+     * @return true if the index version changed and the caches were invalidated.
+     * @throws RuntimeException if the index version could not be retrieved.
+     */
+    boolean checkIndexVersion() {
+        String current = requestIndexVersion();
+        String previous = indexVersion;
+        indexVersion = current;
+        DiskCache disk = diskCache;
+        if (disk != null) {
+            disk.setIndexVersion(current); // No-op if unchanged
+        }
+        if (previous == null || previous.equals(current)) {
+            return false;
+        }
+        log.info("Index version changed from {} to {}. Invalidating {} cached entries", previous, current, size());
+        clearCache();
+        invalidations.incrementAndGet();
+        return true;
+    }
+
+    private String requestIndexVersion() {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("show", "index"); // Without this, Luke collects info for all fields
+        params.set("numTerms", 0);
+        SolrRequest<?> luke = new GenericSolrRequest(SolrRequest.METHOD.GET, "/admin/luke", params);
+        acquireConnection(SolrConnectionScheduler.PRIORITY.background);
+        try {
+            Object indexInfo = luke.process(inner).getResponse().get("index");
+            Object version = indexInfo instanceof NamedList ? ((NamedList<?>)indexInfo).get("version") : null;
+            if (version == null) {
+                throw new IllegalStateException("No index version in Luke response from Solr");
+            }
+            return version.toString();
+        } catch (SolrServerException | IOException e) {
+            throw new RuntimeException("Exception while requesting index version", e);
+        } finally {
+            scheduler.release(SolrConnectionScheduler.PRIORITY.background);
+        }
+    }
+
+    /**
+     * @return the last polled index version or null if polling is not enabled or no poll has succeeded yet.
+     */
+    public String getIndexVersion() {
+        return indexVersion;
+    }
+
+    /**
+     * @return true if the index version is polled: See {@link #startIndexVersionPolling(long)}.
+     */
+    public synchronized boolean isIndexVersionPolling() {
+        return indexVersionPoller != null;
+    }
+
+    /**
+     * @return the number of times the caches have been invalidated due to a change in index version.
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
     /**
      * @return the number of cached elements.
      */
@@ -88,6 +235,94 @@ public class CachingSolrClient extends SolrClient {
         return queryCache.size() + namedCache.size();
     }
 
+    /**
+     * @return the estimated number of bytes on the heap used by the cached elements.
+     */
+    public long getCachedBytes() {
+        return queryCache.getWeight() + namedCache.getWeight();
+    }
+
+    /**
+     * @return the maximum estimated number of bytes on the heap used by the cached elements.
+     */
+    public long getMaxCachedBytes() {
+        return queryCache.getMaxWeight();
+    }
+
+    /**
+     * @return the maximum number of cached elements.
+     */
+    public int getCapacity() {
+        return queryCache.capacity();
+    }
+
+    /**
+     * @return the number of cached elements that were removed to keep the cache within capacity or max bytes.
+     */
+    public long getEvictionsCapacity() {
+        return queryCache.getEvictionsCapacity() + namedCache.getEvictionsCapacity();
+    }
+
+    /**
+     * @return the number of cached elements that were removed because they were too old.
+     */
+    public long getEvictionsAge() {
+        return queryCache.getEvictionsAge() + namedCache.getEvictionsAge();
+    }
+
+    /**
+     * @return the latencies for resolving cache misses, including waiting for a connection.
+     */
+    public LatencyHistogram getMissLatency() {
+        return missLatency;
+    }
+
+    /**
+     * @return the number of times a connection to the inner SolrClient was acquired.
+     */
+    public long getConnectionAcquires() {
+        return connectionAcquires.get();
+    }
+
+    /**
+     * @return the total time in milliseconds spent waiting for connections to the inner SolrClient.
+     */
+    public long getConnectionWaitMS() {
+        return connectionWaitNS.get()/1000000;
+    }
+
+    /**
+     * @return the maximum time in milliseconds spent waiting for a single connection to the inner SolrClient.
+     */
+    public long getConnectionWaitMaxMS() {
+        return connectionWaitMaxNS.get()/1000000;
+    }
+
+    /**
+     * @return the number of requests that were rejected by the connection scheduler.
+     */
+    public long getConnectionRejections() {
+        return scheduler.getRejections();
+    }
+
+    /**
+     * @return the scheduler for connections to the inner SolrClient.
+     */
+    public SolrConnectionScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param n the maximum number of keys to return.
+     * @return up to n cache entries with the most hits, sorted by descending number of hits.
+     */
+    public List<TimeCache.HotKey> getHotKeys(int n) {
+        List<TimeCache.HotKey> hot = new ArrayList<>(queryCache.getHotKeys(n));
+        hot.addAll(namedCache.getHotKeys(n));
+        hot.sort(Comparator.comparingLong(TimeCache.HotKey::getHits).reversed());
+        return hot.size() <= n ? hot : new ArrayList<>(hot.subList(0, n));
+    }
+
     /**
      * @return the number of request calls issued to this SolrClient.
      */
@@ -102,74 +337,332 @@ public class CachingSolrClient extends SolrClient {
         return queryCache.getHits() + namedCache.getHits();
     }
 
+    /**
+     * @return the number of successful background refreshes of stale cache entries.
+     */
+    public long getRefreshes() {
+        return queryCache.getRefreshes() + namedCache.getRefreshes();
+    }
+
+    /**
+     * @return the number of request calls that were not issued to the inner SolrClient as an identical request
+     *         was already in progress.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of request calls that were issued directly to the inner SolrClient without touching the
+     *         cache, typically because they were deep paging requests using {@code cursorMark}.
+     */
+    public long getBypassed() {
+        return bypassed.get();
+    }
+
     /**
      * Return the result of the call immediately if it is cached, else evaluate the solrCall, store it in the cache
      * and return it.
-     * @param key      cache entry key.
+     * <p>
+     * If an identical call is already in progress, the result of that call is awaited and returned instead of
+     * issuing a new call.
+     * @param key      cache entry key. If null, the cache is bypassed: See {@link #uncachedSolrCall(Supplier)}.
      * @param solrCall call to perform to populate the cache.
-     * @return
+     * @return the response from Solr.
      */
-    protected QueryResponse cachedSolrCall(String key, Supplier<QueryResponse> solrCall) {
-        return queryCache.get(key, () -> {
+    protected QueryResponse cachedSolrCall(CacheKey key, Supplier<QueryResponse> solrCall) {
+        if (key == null) {
+            return uncachedSolrCall(solrCall);
+        }
+        final DiskCache disk = diskCache;
+        // Performs the Solr call and updates the disk cache
+        Supplier<QueryResponse> fetch = () -> {
             QueryResponse response;
+            SolrConnectionScheduler.PRIORITY priority = acquireConnection();
             try {
-                connection.acquire();
                 response = solrCall.get();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Interrupted while trying to acquire a connection", e);
             } finally {
-                connection.release();
+                scheduler.release(priority);
+            }
+            if (disk != null && response != null) {
+                disk.put(key, response.getResponse());
             }
             return response;
-        });
+        };
+        Supplier<QueryResponse> refresh = background(fetch);
+        if (disk == null) {
+            return singleFlight(queryCache, queryInFlight, key, fetch, refresh);
+        }
+        // Checks the disk cache before performing the Solr call
+        Supplier<QueryResponse> lookup = () -> {
+            NamedList<Object> stored = disk.get(key);
+            return stored == null ? fetch.get() : new QueryResponse(stored, this);
+        };
+        return singleFlight(queryCache, queryInFlight, key, lookup, refresh);
     }
 
     /**
-     * Return the result of the call immediately if it is cached, else evaluate the request using the wrapped
-     * SolrClient, store the result in the cache and return it.
-     * Performs a Solr call for the given request, using the wrapped SolrClient.
-     * @param request the request to Solr.
+     * Assign a persistent second level cache for query responses. The disk cache is checked when a response is not
+     * in the in-memory cache and all responses from Solr are written to it.
+     * @param diskCache a disk cache or null to disable second level caching.
+     */
+    public void setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * @return the persistent second level cache for query responses or null if not assigned.
+     */
+    public DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Evaluate the solrCall without looking in or storing the result in the cache.
+     * The maximum number of concurrent connections is still obeyed, with connections acquired as
+     * {@link SolrConnectionScheduler.PRIORITY#bulk} as uncached calls are typically pages in exports.
+     * @param solrCall call to perform.
      * @return the response from Solr.
-     * @throws RuntimeException if the Solr call could not be completed.
      */
-    public QueryResponse callSolr(JsonQueryRequest request) {
-        return cachedSolrCall(getKey(request), () -> {
+    protected <T> T uncachedSolrCall(Supplier<T> solrCall) {
+        bypassed.incrementAndGet();
+        acquireConnection(SolrConnectionScheduler.PRIORITY.bulk);
+        try {
+            return solrCall.get();
+        } finally {
+            scheduler.release(SolrConnectionScheduler.PRIORITY.bulk);
+        }
+    }
+
+    /**
+     * @param call a call to perform in the background, such as a cache refresh.
+     * @return the call wrapped so that connections are acquired as {@link SolrConnectionScheduler.PRIORITY#background}.
+     */
+    private static <T> Supplier<T> background(Supplier<T> call) {
+        return () -> SolrConnectionScheduler.callWithPriority(SolrConnectionScheduler.PRIORITY.background, call);
+    }
+
+    /**
+     * Perform a query for the given params without looking in or storing the result in the cache.
+     * The maximum number of concurrent connections is still obeyed.
+     * <p>
+     * This is intended for requests where the responses are used only once, such as the pages in an export.
+     * Caching those would evict the entries that are actually reused.
+     * @param params  an object holding all key/value parameters to send along the request
+     * @return a {@link org.apache.solr.client.solrj.response.QueryResponse} containing the response
+     *         from the server
+     * @throws RuntimeException {@link org.apache.solr.common.SolrException}s and {@link IOException}s are wrapped.
+     */
+    public QueryResponse queryUncached(SolrParams params) {
+        return uncachedSolrCall(() -> {
             try {
-                return request.process(inner);
+                return inner.query(params);
             } catch (SolrServerException | IOException e) {
-                throw new RuntimeException("Exception while executing Solr request " + request, e);
+                throw new RuntimeException("Exception while executing SolrClient query " + params, e);
             }
         });
     }
 
+    /**
+     * Perform a query for the given params without looking in or storing the result in the cache, delivering the
+     * documents to the callback as they are parsed from the response. The maximum number of concurrent connections
+     * is still obeyed.
+     * <p>
+     * This is intended for exports where the documents should be processed one at a time instead of holding
+     * whole pages on the heap. The connection permit is held while the callback runs, so a slow callback blocks
+     * other requests with the same priority.
+     * @param params   an object holding all key/value parameters to send along the request
+     * @param callback receives the documents one at a time.
+     * @return a {@link org.apache.solr.client.solrj.response.QueryResponse} containing the response
+     *         from the server, without the documents.
+     * @throws RuntimeException {@link org.apache.solr.common.SolrException}s and {@link IOException}s are wrapped.
+     */
+    public QueryResponse queryStreaming(SolrParams params, StreamingResponseCallback callback) {
+        return uncachedSolrCall(() -> {
+            try {
+                return inner.queryAndStreamResponse(params, callback);
+            } catch (SolrServerException | IOException e) {
+                throw new RuntimeException("Exception while executing streaming SolrClient query " + params, e);
+            }
+        });
+    }
+
+    /**
+     * Perform a query for the given params without looking in or storing the result in the cache, with the
+     * connection acquired as {@link SolrConnectionScheduler.PRIORITY#background}.
+     * <p>
+     * This is intended for internal probes, such as checks of the capabilities of Solr. They are not counted as
+     * bypassed, as they are not requests from callers, and they do not compete with exports for bulk connections.
+     * @param params  an object holding all key/value parameters to send along the request
+     * @return a {@link org.apache.solr.client.solrj.response.QueryResponse} containing the response
+     *         from the server
+     * @throws RuntimeException {@link org.apache.solr.common.SolrException}s and {@link IOException}s are wrapped.
+     */
+    public QueryResponse queryBackground(SolrParams params) {
+        acquireConnection(SolrConnectionScheduler.PRIORITY.background);
+        try {
+            return inner.query(params);
+        } catch (SolrServerException | IOException e) {
+            throw new RuntimeException("Exception while executing background SolrClient query " + params, e);
+        } finally {
+            scheduler.release(SolrConnectionScheduler.PRIORITY.background);
+        }
+    }
+
+    /**
+     * Deep paging requests are never repeated with the same cursorMark, so caching them only pollutes the cache.
+     * @param params Solr request parameters.
+     * @return true if the params contains a {@code cursorMark}.
+     */
+    static boolean isDeepPaging(SolrParams params) {
+        return params != null && params.get(CursorMarkParams.CURSOR_MARK_PARAM) != null;
+    }
+
+    /**
+     * Calculate a key for the given params.
+     * @param collection the Solr collection for the request. Can be null.
+     * @param params     Solr request parameters.
+     * @return a key for the params intended for the caching map or null if the params should not be cached.
+     */
+    CacheKey getKey(String collection, SolrParams params) {
+        return isDeepPaging(params) ? null : CacheKey.of(invariants, collection, params);
+    }
+
     /**
      * Calculate a key for the given query.
      * @param query a Solr query.
-     * @return a key for the query, intended for the caching map.
+     * @return a key for the query, intended for the caching map or null if the query should not be cached.
+     */
+    CacheKey getKey(JsonQueryRequest query) {
+        return isDeepPaging(query.getParams()) ? null : CacheKey.of(invariants, query);
+    }
+
+    /**
+     * Calculate a key for the given request.
+     * @param collection the Solr collection for the request. Can be null.
+     * @param query a Solr request.
+     * @return a key for the query, intended for the caching map or null if the query should not be cached.
      */
-    static String getKey(JsonQueryRequest query) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CacheKey getKey(String collection, SolrRequest<?> query) {
+        return isDeepPaging(query.getParams()) ? null : CacheKey.of(invariants, collection, query);
+    }
+
+    /**
+     * Resolve the value for the key from the cache or, if it is not cached, from the call.
+     * The refresher is stored with the value in the cache, for use with background refresh of stale entries.
+     * Only one call for a given key is active at any time: Concurrent requests for the same key waits for the
+     * active call to finish and shares its result. Failed calls are not cached and their exceptions are propagated
+     * to all waiting callers.
+     * @param cache    the cache to use for lookups and storing new values.
+     * @param inFlight the calls in progress for the cache.
+     * @param cacheKey cache entry key. If null, no caching or coalescing is performed.
+     * @param call     call to perform to resolve the value.
+     * @param refresher call to perform when refreshing a stale value in the background.
+     * @return the value for the key.
+     */
+    private <T> T singleFlight(TimeCache<T> cache, ConcurrentHashMap<CacheKey, CompletableFuture<T>> inFlight,
+                               CacheKey cacheKey, Supplier<T> call, Supplier<T> refresher) {
+        if (cacheKey == null) {
+            bypassed.incrementAndGet();
+            return call.get();
+        }
+        // The digest is used as key for lookups. The canonical form is only built when a value is stored
+        final String key = cacheKey.getDigest();
+        T value = cache.get(key, cacheKey::matches);
+        if (value != null) {
+            return value;
+        }
+
+        CompletableFuture<T> ours = new CompletableFuture<>();
+        CompletableFuture<T> active = inFlight.putIfAbsent(cacheKey, ours);
+        if (active != null) {
+            coalesced.incrementAndGet();
+            return await(active, key);
+        }
+
         try {
-            query.getContentWriter(null).write(out);
-        } catch (IOException e) {
-            throw new InternalServiceException("Unable to create key for query", e);
+            value = cache.peek(key, cacheKey::matches); // Another call might have finished in the meantime
+            if (value == null) {
+                final long startTime = System.nanoTime();
+                value = call.get();
+                missLatency.record((System.nanoTime()-startTime)/1000000);
+                if (value != null) {
+                    cache.put(key, cacheKey.getCanonical(), value, refresher);
+                }
+            }
+            ours.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            ours.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(cacheKey, ours);
         }
-        return out.toString(StandardCharsets.UTF_8) + query.getParams() + query.getQueryParams();
     }
 
     /**
-     * Calculate a key for the given request.
-     * @param query a Solr query.
-     * @return a key for the query, intended for the caching map.
+     * Wait for the result of a call that is in progress.
+     * @param active the call in progress.
+     * @param key    the key for the call, used for error messages.
+     * @return the result of the call.
      */
-    static String getKey(SolrRequest<?> query) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private <T> T await(CompletableFuture<T> active, String key) {
         try {
-            query.getContentWriter(null).write(out);
-        } catch (IOException e) {
-            throw new InternalServiceException("Unable to create key for query", e);
+            return active.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for identical request to finish", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Exception in identical request for key " + key, e.getCause());
         }
-        return out.toString(StandardCharsets.UTF_8) + query.getParams() + query.getQueryParams();
+    }
+
+    /**
+     * Acquire a connection to the inner SolrClient with the priority for the current thread.
+     * Callers must release the connection with the returned priority after use.
+     * @return the priority that the connection was acquired with.
+     * @throws dk.kb.webservice.exception.ServiceUnavailableServiceException if the scheduler rejected the request.
+     */
+    private SolrConnectionScheduler.PRIORITY acquireConnection() {
+        SolrConnectionScheduler.PRIORITY priority = SolrConnectionScheduler.getThreadPriority();
+        acquireConnection(priority);
+        return priority;
+    }
+
+    /**
+     * Acquire a connection to the inner SolrClient with the given priority, blocking until one is available or the
+     * request is rejected by the scheduler. Callers must release the connection after use.
+     * @param priority the priority for the request.
+     * @throws dk.kb.webservice.exception.ServiceUnavailableServiceException if the scheduler rejected the request.
+     */
+    private void acquireConnection(SolrConnectionScheduler.PRIORITY priority) {
+        final long startTime = System.nanoTime();
+        scheduler.acquire(priority);
+        long waitNS = System.nanoTime()-startTime;
+        connectionAcquires.incrementAndGet();
+        connectionWaitNS.addAndGet(waitNS);
+        connectionWaitMaxNS.accumulateAndGet(waitNS, Math::max);
+    }
+
+    /**
+     * Return the result of the call immediately if it is cached, else evaluate the request using the wrapped
+     * SolrClient, store the result in the cache and return it.
+     * Performs a Solr call for the given request, using the wrapped SolrClient.
+     * @param request the request to Solr.
+     * @return the response from Solr.
+     * @throws RuntimeException if the Solr call could not be completed.
+     */
+    public QueryResponse callSolr(JsonQueryRequest request) {
+        return cachedSolrCall(getKey(request), () -> {
+            try {
+                return request.process(inner);
+            } catch (SolrServerException | IOException e) {
+                throw new RuntimeException("Exception while executing Solr request " + request, e);
+            }
+        });
     }
 
     @Override
@@ -179,6 +672,10 @@ public class CachingSolrClient extends SolrClient {
                ", size/capacity=" + size() + "/" + queryCache.capacity() +
                ", maxAgeSeconds=" + queryCache.getMaxAge()/1000 +
                ", hits/calls=" + getHits() + "/" + getCalls() +
+               ", softMaxAgeSeconds=" + queryCache.getSoftMaxAge()/1000 +
+               ", coalesced=" + getCoalesced() +
+               ", bypassed=" + getBypassed() +
+               ", indexVersion=" + getIndexVersion() +
                '}';
     }
 
@@ -189,6 +686,7 @@ public class CachingSolrClient extends SolrClient {
     /**
      * If the cache contains the result of the query, it is returned immediately. Else a query for the given params
      * is performed, the result stored in the cache and returned to the caller.
+     * Deep paging requests with {@code cursorMark} are never cached.
      * @param params  an object holding all key/value parameters to send along the request
      * @return a {@link org.apache.solr.client.solrj.response.QueryResponse} containing the response
      *         from the server
@@ -196,7 +694,7 @@ public class CachingSolrClient extends SolrClient {
      */
     @Override
     public QueryResponse query(SolrParams params) throws RuntimeException {
-        return cachedSolrCall(params.toString(), () -> { // request.toString represents the full request per the JavaDoc
+        return cachedSolrCall(getKey(null, params), () -> {
             try {
                 return inner.query(params);
             } catch (SolrServerException | IOException e) {
@@ -208,6 +706,7 @@ public class CachingSolrClient extends SolrClient {
     /**
      * If the cache contains the result of the query, it is returned immediately. Else a query for the given params
      * is performed, the result stored in the cache and returned to the caller.
+     * Deep paging requests with {@code cursorMark} are never cached.
      * @param collection the Solr collection to query
      * @param params  an object holding all key/value parameters to send along the request
      * @return a {@link org.apache.solr.client.solrj.response.QueryResponse} containing the response
@@ -216,7 +715,7 @@ public class CachingSolrClient extends SolrClient {
      */
     @Override
     public QueryResponse query(String collection, SolrParams params) {
-        return cachedSolrCall("collection=" + collection + "_" + params.toString(), () -> {
+        return cachedSolrCall(getKey(collection, params), () -> {
             try {
                 return inner.query(collection, params);
             } catch (SolrServerException | IOException e) {
@@ -229,6 +728,7 @@ public class CachingSolrClient extends SolrClient {
     /**
      * If the cache contains the result of the query, it is returned immediately. Else a query for the given params
      * is performed, the result stored in the cache and returned to the caller.
+     * Deep paging requests with {@code cursorMark} are never cached.
      * @param collection the Solr collection to query
      * @param params  an object holding all key/value parameters to send along the request
      * @param method  specifies the HTTP method to use for the request, such as GET or POST
@@ -241,7 +741,7 @@ public class CachingSolrClient extends SolrClient {
     public QueryResponse query(String collection, SolrParams params, SolrRequest.METHOD method) throws SolrServerException, IOException {
         if (method == SolrRequest.METHOD.GET || method == SolrRequest.METHOD.POST) {
             // GET & POST should yield the same result so we ignore it for keys
-            return cachedSolrCall("collection=" + collection + "_" + params.toString(), () -> {
+            return cachedSolrCall(getKey(collection, params), () -> {
                 try {
                     return inner.query(collection, params, method);
                 } catch (SolrServerException | IOException e) {
@@ -256,6 +756,7 @@ public class CachingSolrClient extends SolrClient {
     /**
      * If the cache contains the result of the query, it is returned immediately. Else a query for the given params
      * is performed, the result stored in the cache and returned to the caller.
+     * Deep paging requests with {@code cursorMark} are never cached.
      * @param params  an object holding all key/value parameters to send along the request
      * @param method  specifies the HTTP method to use for the request, such as GET or POST
      * @return a {@link org.apache.solr.client.solrj.response.QueryResponse} containing the response
@@ -267,7 +768,7 @@ public class CachingSolrClient extends SolrClient {
     public QueryResponse query(SolrParams params, SolrRequest.METHOD method) throws SolrServerException, IOException {
         if (method == SolrRequest.METHOD.GET || method == SolrRequest.METHOD.POST) {
             // GET & POST should yield the same result so we ignore it for keys
-            return cachedSolrCall(params.toString(), () -> {
+            return cachedSolrCall(getKey(null, params), () -> {
                 try {
                     return inner.query(params);
                 } catch (SolrServerException | IOException e) {
@@ -281,6 +782,7 @@ public class CachingSolrClient extends SolrClient {
     /**
      * If the cache contains the result of the request, it is returned immediately. Else a request for the given params
      * is performed, the result stored in the cache and returned to the caller.
+     * Deep paging requests with {@code cursorMark} are never cached.
      * @param request the request to execute
      * @param collection the collection to execute the request against
      * @return a {@link NamedList} containing the response from the server
@@ -288,20 +790,18 @@ public class CachingSolrClient extends SolrClient {
      */
     @Override
     public NamedList<Object> request(SolrRequest request, String collection) {
-        final String key = "collection=" + collection + "_" + getKey(request);
-        return namedCache.get(key, () -> {
+        Supplier<NamedList<Object>> call = () -> {
+            SolrConnectionScheduler.PRIORITY priority = acquireConnection();
             try {
-                connection.acquire();
                 return inner.request(request, collection);
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Interrupted while trying to acquire a connection", e);
             } catch (SolrServerException | IOException e) {
                 throw new RuntimeException(
                         "Exception while executing SolrClient collection='" + collection + "', request=" + request, e);
             } finally {
-                connection.release();
+                scheduler.release(priority);
             }
-        });
+        };
+        return singleFlight(namedCache, namedInFlight, getKey(collection, request), call, background(call));
     }
 
     /* ************************************************************************************************************** */
@@ -610,6 +1110,12 @@ public class CachingSolrClient extends SolrClient {
 
     @Override
     public void close() throws IOException {
+        synchronized (this) {
+            if (indexVersionPoller != null) {
+                indexVersionPoller.shutdownNow();
+                indexVersionPoller = null;
+            }
+        }
         inner.close();
     }
 }
@@ -0,0 +1,209 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Negotiation and creation of compressed HTTP content encodings for streamed responses.
+ * <p>
+ * The compressors use sync flushing: Whenever {@code flushBytes} uncompressed bytes have been written, or the
+ * writer flushes explicitly, the compressed data so far are emitted. This keeps the time to first byte low and
+ * lets clients process exports page by page, at a small cost in compression ratio.
+ */
+public class Compression {
+    private static final Logger log = LoggerFactory.getLogger(Compression.class);
+
+    /**
+     * Supported content encodings, in order of preference when the client accepts more than one.
+     */
+    public enum ENCODING { gzip, deflate, identity;
+        /**
+         * @param encoding the name of an encoding, case insensitive.
+         * @return the encoding or null if it is not supported.
+         */
+        public static ENCODING lenientParse(String encoding) {
+            try {
+                return valueOf(encoding.trim().toLowerCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The value for the explicit compression parameter that selects the encoding from {@code Accept-Encoding}.
+     */
+    public static final String AUTO = "auto";
+
+    private final int level;
+    private final int bufferSize;
+    private final int flushBytes;
+
+    /**
+     * @param level      the compression level from 1 (fastest) to 9 (best). -1 means the zlib default.
+     * @param bufferSize the size of the buffer for the compressor.
+     * @param flushBytes emit compressed data after this number of uncompressed bytes. -1 means only on flush.
+     */
+    public Compression(int level, int bufferSize, int flushBytes) {
+        this.level = level;
+        this.bufferSize = bufferSize;
+        this.flushBytes = flushBytes;
+    }
+
+    /**
+     * Select the encoding for a response. Unsupported explicit compressions, such as {@code br} or {@code zstd},
+     * fall back to negotiation from {@code Accept-Encoding}, as the response is still valid without them.
+     * @param compression    explicit compression parameter from the caller: An encoding or {@link #AUTO}.
+     *                       null or empty means {@link #AUTO}.
+     * @param acceptEncoding the value of the {@code Accept-Encoding} header. Can be null.
+     * @return the encoding to use. Never null.
+     */
+    public static ENCODING negotiate(String compression, String acceptEncoding) {
+        if (compression != null && !compression.isBlank() && !AUTO.equalsIgnoreCase(compression.trim())) {
+            ENCODING explicit = ENCODING.lenientParse(compression);
+            if (explicit != null) {
+                return explicit;
+            }
+            log.debug("Unsupported compression '{}' requested. Falling back to Accept-Encoding", compression);
+        }
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return ENCODING.identity;
+        }
+        ENCODING best = ENCODING.identity;
+        for (String part: acceptEncoding.split(",")) {
+            String[] tokens = part.split(";");
+            String name = tokens[0].trim();
+            if (tokens.length > 1 && isZeroQuality(tokens[1])) {
+                continue;
+            }
+            ENCODING candidate = "*".equals(name) ? ENCODING.gzip : ENCODING.lenientParse(name);
+            if (candidate != null && candidate.ordinal() < best.ordinal()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isZeroQuality(String parameter) {
+        String p = parameter.trim();
+        if (!p.startsWith("q=")) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(p.substring(2)) <= 0.0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wrap the output in a compressor for the given encoding. Closing the returned stream finishes the compressed
+     * stream and closes the output.
+     * @param encoding the encoding to use.
+     * @param output   the destination for the compressed data.
+     * @return a stream compressing to the output or the output itself for {@link ENCODING#identity}.
+     * @throws IOException if the compressor could not be created.
+     */
+    public OutputStream wrap(ENCODING encoding, OutputStream output) throws IOException {
+        switch (encoding) {
+            case identity: return output;
+            case gzip:     return new FlushingOutputStream(new LeveledGZIPOutputStream(output, bufferSize, level),
+                                                           flushBytes);
+            case deflate:  return new FlushingOutputStream(new EndingDeflaterOutputStream(output, bufferSize, level),
+                                                           flushBytes);
+            default: throw new UnsupportedOperationException("The encoding '" + encoding + "' is unsupported");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "Compression(level=%d, bufferSize=%d, flushBytes=%d)",
+                             level, bufferSize, flushBytes);
+    }
+
+    /**
+     * Flushes the inner stream whenever the given number of bytes has been written since the last flush.
+     */
+    private static class FlushingOutputStream extends FilterOutputStream {
+        private final int flushBytes;
+        private long unflushed = 0;
+
+        FlushingOutputStream(OutputStream out, int flushBytes) {
+            super(out);
+            this.flushBytes = flushBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (flushBytes != -1 && ++unflushed >= flushBytes) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            unflushed += len;
+            if (flushBytes != -1 && unflushed >= flushBytes) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            unflushed = 0;
+            out.flush();
+        }
+    }
+
+    /**
+     * GZIP with sync flush and adjustable compression level.
+     */
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int bufferSize, int level) throws IOException {
+            super(out, bufferSize, true);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * zlib (HTTP {@code deflate}) with sync flush, releasing the native resources of the deflater on close.
+     */
+    private static class EndingDeflaterOutputStream extends DeflaterOutputStream {
+        EndingDeflaterOutputStream(OutputStream out, int bufferSize, int level) {
+            super(out, new Deflater(level), bufferSize, true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Iterates the pages for a Solr request using cursorMark paging, optionally with read-ahead.
+ * <p>
+ * With read-ahead, the next pages are requested in the background while the caller processes the current page,
+ * so that Solr latency and output serialisation overlap. As cursorMark paging is inherently sequential, the pages
+ * are requested one at a time. At most {@code readAhead} pages are requested or held beyond the page currently
+ * being processed: If the caller is slow, no further pages are requested until it catches up. If the caller stops
+ * iterating, at most {@code readAhead} superfluous pages are requested.
+ * <p>
+ * With a read-ahead of 0, pages are requested synchronously from the calling thread.
+ * <p>
+ * The latency of a page is taken from {@link QueryResponse#getElapsedTime()}, which SolrJ measures around the
+ * request itself. Time spent waiting for a connection, e.g. in the {@link SolrConnectionScheduler}, is thus not
+ * counted, as that would shrink the pages under contention and cause even more requests.
+ */
+public class CursorPager implements Iterator<QueryResponse> {
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "CursorPager-readAhead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SolrParams baseRequest;
+    private final PageSizer pageSizer;
+    private final long max;
+    private final int readAhead;
+    private final Function<SolrParams, QueryResponse> solrCall;
+
+    // Pages that are requested or received, but not yet delivered. The future value is null when there are no more pages
+    private final ArrayDeque<CompletableFuture<Page>> pending = new ArrayDeque<>();
+    // The latest requested page, used for chaining the request for the following page
+    private CompletableFuture<Page> last;
+    private Page nextPage = null;
+    private boolean exhausted = false;
+
+    /**
+     * Create a pager for the given request. No requests are issued before {@link #hasNext()} is called.
+     * @param baseRequest query, filters etc. The sort must end with a tie breaker.
+     *                    The {@code rows} and {@code cursorMark} parameters are set by the pager.
+     * @param pageSize    the maximum number of documents in each page.
+     * @param max         the maximum number of documents to request in total. -1 means no limit.
+     * @param readAhead   the maximum number of pages to request ahead of the page being processed.
+     * @param solrCall    performs the request against Solr.
+     */
+    public CursorPager(SolrParams baseRequest, int pageSize, long max, int readAhead,
+                       Function<SolrParams, QueryResponse> solrCall) {
+        this(baseRequest, PageSizer.fixed(pageSize, null), max, readAhead, solrCall);
+    }
+
+    /**
+     * Create a pager for the given request. No requests are issued before {@link #hasNext()} is called.
+     * @param baseRequest query, filters etc. The sort must end with a tie breaker.
+     *                    The {@code rows} and {@code cursorMark} parameters are set by the pager.
+     * @param pageSizer   determines the number of documents in each page.
+     * @param max         the maximum number of documents to request in total. -1 means no limit.
+     * @param readAhead   the maximum number of pages to request ahead of the page being processed.
+     * @param solrCall    performs the request against Solr.
+     */
+    public CursorPager(SolrParams baseRequest, PageSizer pageSizer, long max, int readAhead,
+                       Function<SolrParams, QueryResponse> solrCall) {
+        this(baseRequest, pageSizer, CursorMarkParams.CURSOR_MARK_START, max, readAhead, solrCall);
+    }
+
+    /**
+     * Create a pager for the given request, starting from the given cursorMark.
+     * No requests are issued before {@link #hasNext()} is called.
+     * @param baseRequest     query, filters etc. The sort must end with a tie breaker.
+     *                        The {@code rows} and {@code cursorMark} parameters are set by the pager.
+     * @param pageSizer       determines the number of documents in each page.
+     * @param startCursorMark the cursorMark for the first page, typically from a previous, interrupted paging.
+     * @param max             the maximum number of documents to request in total. -1 means no limit.
+     * @param readAhead       the maximum number of pages to request ahead of the page being processed.
+     * @param solrCall        performs the request against Solr.
+     */
+    public CursorPager(SolrParams baseRequest, PageSizer pageSizer, String startCursorMark, long max, int readAhead,
+                       Function<SolrParams, QueryResponse> solrCall) {
+        this.last = CompletableFuture.completedFuture(new Page(null, startCursorMark, 0, false));
+        this.baseRequest = baseRequest;
+        this.pageSizer = pageSizer;
+        this.max = max;
+        this.readAhead = Math.max(0, readAhead);
+        this.solrCall = solrCall;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextPage != null) {
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+        if (readAhead == 0) {
+            nextPage = fetch(last.join());
+            last = CompletableFuture.completedFuture(nextPage);
+        } else {
+            fill();
+            nextPage = await(pending.removeFirst());
+            fill();
+        }
+        if (nextPage == null || nextPage.response.getResults().isEmpty()) {
+            nextPage = null;
+            exhausted = true;
+            pending.forEach(future -> future.cancel(false));
+            pending.clear();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public QueryResponse next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more pages available");
+        }
+        QueryResponse response = nextPage.response;
+        nextPage = null;
+        return response;
+    }
+
+    /**
+     * Request further pages until there are readAhead pages pending.
+     */
+    private void fill() {
+        if (last.isDone() && !last.isCompletedExceptionally() && last.join() == null) {
+            return; // No more pages
+        }
+        while (pending.size() < readAhead) {
+            last = last.thenApplyAsync(this::fetch, executor);
+            pending.add(last);
+        }
+    }
+
+    /**
+     * Request the page following the given page.
+     * @param previous the previous page, a page without response holding the start cursorMark if the first page is
+     *                 to be requested or null if there are no more pages.
+     * @return the next page or null if there are no more pages.
+     */
+    private Page fetch(Page previous) {
+        if (previous == null || previous.last) {
+            return null;
+        }
+        String cursorMark = previous.nextCursorMark;
+        long delivered = previous.total;
+        int rows = (int) Math.min(pageSizer.getRows(), max == -1 ? Integer.MAX_VALUE : max - delivered);
+        ModifiableSolrParams request = new ModifiableSolrParams(baseRequest);
+        request.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        request.set(CommonParams.ROWS, rows);
+        QueryResponse response = solrCall.apply(request);
+        long bytes = pageSizer.isWeighing() ? ResponseWeigher.weigh(response) : 0;
+        pageSizer.update(rows, response.getResults().size(), bytes, response.getElapsedTime());
+        long total = delivered + response.getResults().size();
+        boolean isLast = response.getResults().isEmpty() ||
+                         cursorMark.equals(response.getNextCursorMark()) ||
+                         (max != -1 && total >= max);
+        return new Page(response, response.getNextCursorMark(), total, isLast);
+    }
+
+    private static Page await(CompletableFuture<Page> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Exception requesting page", e.getCause());
+        }
+    }
+
+    /**
+     * A received page and the information needed for requesting the next page.
+     */
+    private static class Page {
+        final QueryResponse response;
+        final String nextCursorMark;
+        final long total;
+        final boolean last;
+
+        Page(QueryResponse response, String nextCursorMark, long total, boolean last) {
+            this.response = response;
+            this.nextCursorMark = nextCursorMark;
+            this.total = total;
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Streams the documents for a Solr request using cursorMark paging, where each document is handed to the processor
+ * as soon as it has been parsed from the response.
+ * <p>
+ * Contrary to {@link CursorPager}, pages are never materialised as a whole: The heap needed is bounded by a single
+ * document, independent of the page size. The price is that there is no read-ahead and that the connection to Solr
+ * is held while the documents are processed, so slow processing means slower paging.
+ * <p>
+ * The latency for the {@link PageSizer} is taken from {@link QueryResponse#getElapsedTime()}, which SolrJ measures
+ * around the request itself, so time spent waiting for a connection is not counted. The time spent in the
+ * processor is subtracted, as a slow receiver would otherwise shrink the pages.
+ * <p>
+ * The documents are processed on the thread calling {@link #process(Consumer)}.
+ */
+public class CursorStreamer {
+    private final SolrParams baseRequest;
+    private final PageSizer pageSizer;
+    private final String startCursorMark;
+    private final long max;
+    private final BiFunction<SolrParams, StreamingResponseCallback, QueryResponse> solrCall;
+
+    /**
+     * Create a streamer for the given request. No requests are issued before {@link #process(Consumer)} is called.
+     * @param baseRequest query, filters etc. The sort must end with a tie breaker.
+     *                    The {@code rows} and {@code cursorMark} parameters are set by the streamer.
+     * @param pageSizer   determines the number of documents in each page.
+     * @param max         the maximum number of documents to request in total. -1 means no limit.
+     * @param solrCall    performs the request against Solr, delivering the documents to the callback as they are
+     *                    received. The returned response is expected to hold {@code nextCursorMark} but no documents.
+     */
+    public CursorStreamer(SolrParams baseRequest, PageSizer pageSizer, long max,
+                          BiFunction<SolrParams, StreamingResponseCallback, QueryResponse> solrCall) {
+        this(baseRequest, pageSizer, CursorMarkParams.CURSOR_MARK_START, max, solrCall);
+    }
+
+    /**
+     * Create a streamer for the given request, starting from the given cursorMark.
+     * No requests are issued before {@link #process(Consumer)} is called.
+     * @param baseRequest     query, filters etc. The sort must end with a tie breaker.
+     *                        The {@code rows} and {@code cursorMark} parameters are set by the streamer.
+     * @param pageSizer       determines the number of documents in each page.
+     * @param startCursorMark the cursorMark for the first page, typically from a previous, interrupted paging.
+     * @param max             the maximum number of documents to request in total. -1 means no limit.
+     * @param solrCall        performs the request against Solr, delivering the documents to the callback as they
+     *                        are received. The returned response is expected to hold {@code nextCursorMark} but no
+     *                        documents.
+     */
+    public CursorStreamer(SolrParams baseRequest, PageSizer pageSizer, String startCursorMark, long max,
+                          BiFunction<SolrParams, StreamingResponseCallback, QueryResponse> solrCall) {
+        this.baseRequest = baseRequest;
+        this.pageSizer = pageSizer;
+        this.startCursorMark = startCursorMark;
+        this.max = max;
+        this.solrCall = solrCall;
+    }
+
+    /**
+     * Request all pages, feeding the documents to the processor in the order they are received.
+     * @param processor receives each document.
+     * @return the number of received documents.
+     */
+    public long process(Consumer<SolrDocument> processor) {
+        return process(processor, null);
+    }
+
+    /**
+     * Request all pages, feeding the documents to the processor in the order they are received.
+     * @param processor  receives each document.
+     * @param checkpoint optionally receives the cursorMark for the next page and the number of received documents
+     *                   after each page, unless paging is known to be finished. Can be null.
+     * @return the number of received documents.
+     */
+    public long process(Consumer<SolrDocument> processor, BiConsumer<String, Long> checkpoint) {
+        String cursorMark = startCursorMark;
+        long total = 0;
+        while (max == -1 || total < max) {
+            int rows = (int) Math.min(pageSizer.getRows(), max == -1 ? Integer.MAX_VALUE : max - total);
+            ModifiableSolrParams request = new ModifiableSolrParams(baseRequest);
+            request.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            request.set(CommonParams.ROWS, rows);
+
+            PageCallback callback = new PageCallback(processor, pageSizer.isWeighing());
+            QueryResponse response = solrCall.apply(request, callback);
+            long solrMS = response.getElapsedTime() - callback.processNS/1000000;
+            pageSizer.update(rows, callback.docs, callback.bytes, Math.max(0, solrMS));
+            total += callback.docs;
+
+            String nextCursorMark = response.getNextCursorMark();
+            if (callback.docs == 0 || nextCursorMark == null || cursorMark.equals(nextCursorMark)) {
+                break;
+            }
+            cursorMark = nextCursorMark;
+            if (checkpoint != null && (max == -1 || total < max)) {
+                checkpoint.accept(cursorMark, total);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Hands the documents to the processor and measures the page.
+     */
+    private static class PageCallback extends StreamingResponseCallback {
+        private final Consumer<SolrDocument> processor;
+        private final boolean weigh;
+        int docs = 0;
+        // The estimated heap size the page would have had if it had been materialised
+        long bytes = 0;
+        // Time spent in the processor, which is typically delivery to the client
+        long processNS = 0;
+
+        PageCallback(Consumer<SolrDocument> processor, boolean weigh) {
+            this.processor = processor;
+            this.weigh = weigh;
+        }
+
+        @Override
+        public void streamSolrDocument(SolrDocument doc) {
+            docs++;
+            if (weigh) {
+                bytes += ResponseWeigher.estimate(doc, 0);
+            }
+            final long startTime = System.nanoTime();
+            processor.accept(doc);
+            processNS += System.nanoTime()-startTime;
+        }
+
+        @Override
+        public void streamDocListInfo(long numFound, long start, Float maxScore) {
+            // Not needed as paging ends when a page is empty or the cursorMark is unchanged
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent second level cache for Solr responses, intended for expensive requests against rarely changing data,
+ * such as timelines. The cache survives restarts.
+ * <p>
+ * Each entry is stored as a single file named from the digest of the {@link CacheKey}. The file contains a small
+ * header (creation time, index version marker and the canonical key for collision checking), followed by the Solr
+ * response in javabin encoding.
+ * <p>
+ * Entries are invalid if they are older than the max age or if their index version marker differs from the current
+ * marker. If the total size of the files exceeds the max size, the least recently used entries are deleted.
+ * The last modified time of the files is used for tracking use.
+ * <p>
+ * If the index version is polled from Solr, the last polled version is stored in the folder, so that the entries
+ * survive restarts. Until the version is known, either from the stored marker or from the first poll, the cache
+ * is bypassed but the entries are kept.
+ */
+public class DiskCache {
+    private static final Logger log = LoggerFactory.getLogger(DiskCache.class);
+
+    private static final int MAGIC = 0x4C414232; // LAB2
+    private static final String SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String VERSION_FILE = "indexVersion.marker";
+
+    private final Path folder;
+    private final long maxBytes;
+    private final long maxAgeMS;
+    private final boolean polled;
+    private volatile String indexVersion; // null means unknown
+
+    private final AtomicLong totalBytes = new AtomicLong(0);
+    private final AtomicLong calls = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong writes = new AtomicLong(0);
+
+    /**
+     * Create a disk cache in the given folder. Existing entries in the folder are reused if they are still valid.
+     * @param folder       where to store the cache files. Will be created if it does not exist.
+     * @param maxBytes     the maximum total size of the cache files. -1 means no limit.
+     * @param maxAgeMS     the maximum age of entries. -1 means no limit.
+     * @param indexVersion marker for the version of the Solr index. Entries with another marker are invalid.
+     *                     Can be null.
+     * @throws IOException if the folder could not be created or scanned.
+     */
+    public DiskCache(Path folder, long maxBytes, long maxAgeMS, String indexVersion) throws IOException {
+        this(folder, maxBytes, maxAgeMS, indexVersion, false);
+    }
+
+    /**
+     * Create a disk cache in the given folder. Existing entries in the folder are reused if they are still valid.
+     * @param folder       where to store the cache files. Will be created if it does not exist.
+     * @param maxBytes     the maximum total size of the cache files. -1 means no limit.
+     * @param maxAgeMS     the maximum age of entries. -1 means no limit.
+     * @param indexVersion marker for the version of the Solr index. Entries with another marker are invalid.
+     *                     Can be null. Ignored if polled is true.
+     * @param polled       if true, the index version is delivered with {@link #setIndexVersion} from polling of Solr.
+     *                     The last delivered version is stored in the folder and used on startup.
+     * @throws IOException if the folder could not be created or scanned.
+     */
+    public DiskCache(Path folder, long maxBytes, long maxAgeMS, String indexVersion, boolean polled)
+            throws IOException {
+        this.folder = folder;
+        this.maxBytes = maxBytes == -1 ? Long.MAX_VALUE : maxBytes;
+        this.maxAgeMS = maxAgeMS == -1 ? Long.MAX_VALUE : maxAgeMS;
+        this.polled = polled;
+        Files.createDirectories(folder);
+        this.indexVersion = polled ? readVersionMarker() : indexVersion == null ? "" : indexVersion;
+        cleanup();
+        log.info("Created " + this);
+    }
+
+    /**
+     * Get the response for the given key, if present and valid.
+     * @param key the key for the response.
+     * @return the response or null if not available.
+     */
+    public NamedList<Object> get(CacheKey key) {
+        calls.incrementAndGet();
+        if (indexVersion == null) {
+            return null;
+        }
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            Header header = Header.read(in);
+            if (!isValid(header) || !key.matches(header.canonical)) {
+                delete(file);
+                return null;
+            }
+            NamedList<Object> response = unmarshal(in);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return response;
+        } catch (NoSuchFileException e) {
+            return null; // Deleted by another thread between exists and read
+        } catch (Exception e) {
+            log.warn("Unable to read disk cache entry '{}'. The entry will be deleted", file, e);
+            delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Store the response for the given key. Problems with storing are logged but not propagated.
+     * @param key      the key for the response.
+     * @param response the response to store.
+     */
+    public void put(CacheKey key, NamedList<Object> response) {
+        String indexVersion = this.indexVersion;
+        if (response == null || indexVersion == null) {
+            return;
+        }
+        Path file = getFile(key);
+        Path temp = folder.resolve(key.getDigest() + "_" + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                new Header(System.currentTimeMillis(), indexVersion, key.getCanonical()).write(out);
+                marshal(response, out);
+            }
+            long oldSize = Files.exists(file) ? Files.size(file) : 0;
+            long newSize = Files.size(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            totalBytes.addAndGet(newSize - oldSize);
+            writes.incrementAndGet();
+        } catch (Exception e) {
+            log.warn("Unable to write disk cache entry '{}'", file, e);
+            delete(temp);
+            return;
+        }
+        if (totalBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Change the index version marker. Entries with another marker become invalid and are deleted.
+     * @param indexVersion the new marker for the version of the Solr index.
+     */
+    public void setIndexVersion(String indexVersion) {
+        String newVersion = indexVersion == null ? "" : indexVersion;
+        if (newVersion.equals(this.indexVersion)) {
+            return;
+        }
+        log.info("Changing index version for disk cache '{}' from '{}' to '{}'", folder, this.indexVersion, newVersion);
+        this.indexVersion = newVersion;
+        if (polled) {
+            writeVersionMarker(newVersion);
+        }
+        try {
+            cleanup();
+        } catch (IOException e) {
+            log.warn("Unable to clean up disk cache '{}' after index version change", folder, e);
+        }
+    }
+
+    /**
+     * @return the index version from the last run or null if it is not available.
+     */
+    private String readVersionMarker() {
+        Path marker = folder.resolve(VERSION_FILE);
+        if (!Files.exists(marker)) {
+            return null;
+        }
+        try {
+            return Files.readString(marker, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warn("Unable to read index version marker '{}'", marker, e);
+            return null;
+        }
+    }
+
+    private void writeVersionMarker(String version) {
+        Path marker = folder.resolve(VERSION_FILE);
+        Path temp = folder.resolve(VERSION_FILE + "_" + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try {
+            Files.writeString(temp, version, StandardCharsets.UTF_8);
+            Files.move(temp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to write index version marker '{}'. Entries will not survive a restart", marker, e);
+            delete(temp);
+        }
+    }
+
+    /**
+     * @return the current index version marker or null if it is not yet known.
+     */
+    public String getIndexVersion() {
+        return indexVersion;
+    }
+
+    /**
+     * Delete all entries in the cache.
+     */
+    public synchronized void clear() {
+        for (Path file: listEntries()) {
+            delete(file);
+        }
+    }
+
+    /**
+     * @return the number of lookups in the cache.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of successful lookups in the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of entries written to the cache.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @return the total size in bytes of the cache files.
+     */
+    public long getBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Delete invalid entries, leftover temporary files and calculate the size of the remaining entries.
+     */
+    private synchronized void cleanup() throws IOException {
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file: files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    delete(file);
+                    continue;
+                }
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    if (!isValid(Header.read(in))) {
+                        delete(file);
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.debug("Unable to read header for '{}'. Deleting entry", file, e);
+                    delete(file);
+                    continue;
+                }
+                bytes += Files.size(file);
+            }
+        }
+        totalBytes.set(bytes);
+        if (bytes > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the total size is below the max size.
+     */
+    private synchronized void evict() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Path> entries = listEntries();
+        entries.sort(Comparator.comparingLong(DiskCache::lastModified));
+        for (Path file: entries) {
+            if (totalBytes.get() <= maxBytes) {
+                break;
+            }
+            delete(file);
+        }
+    }
+
+    private List<Path> listEntries() {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + SUFFIX)) {
+            files.forEach(entries::add);
+        } catch (IOException e) {
+            log.warn("Unable to list entries in disk cache '{}'", folder, e);
+        }
+        return entries;
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void delete(Path file) {
+        try {
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file) && file.getFileName().toString().endsWith(SUFFIX)) {
+                totalBytes.addAndGet(-size);
+            }
+        } catch (NoSuchFileException e) {
+            // Already deleted
+        } catch (IOException e) {
+            log.warn("Unable to delete disk cache file '{}'", file, e);
+        }
+    }
+
+    /**
+     * If the index version is not yet known, only the age is checked.
+     */
+    private boolean isValid(Header header) {
+        String indexVersion = this.indexVersion;
+        return (indexVersion == null || indexVersion.equals(header.indexVersion)) &&
+               System.currentTimeMillis() - header.created <= maxAgeMS;
+    }
+
+    private Path getFile(CacheKey key) {
+        return folder.resolve(key.getDigest() + SUFFIX);
+    }
+
+    private static void marshal(NamedList<Object> response, OutputStream out) throws IOException {
+        try (JavaBinCodec codec = new JavaBinCodec()) {
+            codec.marshal(response, out);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static NamedList<Object> unmarshal(InputStream in) throws IOException {
+        try (JavaBinCodec codec = new JavaBinCodec()) {
+            return (NamedList<Object>) codec.unmarshal(in);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DiskCache{" +
+               "folder=" + folder +
+               ", bytes/maxBytes=" + getBytes() + "/" + maxBytes +
+               ", maxAgeMS=" + maxAgeMS +
+               ", indexVersion='" + indexVersion + '\'' +
+               ", polled=" + polled +
+               ", hits/calls=" + getHits() + "/" + getCalls() +
+               ", writes=" + getWrites() +
+               '}';
+    }
+
+    /**
+     * The metadata stored before the response in each cache file.
+     */
+    private static class Header {
+        final long created;
+        final String indexVersion;
+        final String canonical;
+
+        Header(long created, String indexVersion, String canonical) {
+            this.created = created;
+            this.indexVersion = indexVersion;
+            this.canonical = canonical;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeLong(created);
+            writeString(out, indexVersion);
+            writeString(out, canonical);
+        }
+
+        static Header read(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a disk cache file");
+            }
+            return new Header(in.readLong(), readString(in), readString(in));
+        }
+
+        // writeUTF is limited to 64KB, which might be exceeded by canonical keys for large requests
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
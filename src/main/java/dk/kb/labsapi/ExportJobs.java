@@ -0,0 +1,542 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import dk.kb.labsapi.config.ServiceConfig;
+import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.NotFoundServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Asynchronous exports, where the export is written to a GZIP compressed spool file that can be downloaded when
+ * the export has finished.
+ * <p>
+ * Direct exports are limited by the download speed of the client, holding a servlet thread and a Solr connection
+ * for the full duration. Export jobs run at the speed of Solr and the local disk, after which the Solr resources
+ * are released and the spool file can be downloaded at any speed, with support for resuming using HTTP Range.
+ * <p>
+ * At most {@code maxConcurrent} jobs run at the same time, with at most {@code maxQueued} jobs waiting. Finished
+ * jobs and their spool files are removed {@code maxAgeMS} after they have finished. Spool files left from a previous
+ * run are removed at startup, as the job information is only held in memory.
+ */
+public class ExportJobs {
+    private static final Logger log = LoggerFactory.getLogger(ExportJobs.class);
+
+    public enum STATE { queued, running, completed, failed }
+
+    static final String SPOOL_SUFFIX = ".spool.gz";
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static ExportJobs instance;
+
+    private final Path folder;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxAgeMS;
+    private final int retryAfterSeconds;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService collector;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * @return the singleton instance, created from {@link ServiceConfig} on first call.
+     */
+    public static synchronized ExportJobs getInstance() {
+        if (instance == null) {
+            YAML conf = ServiceConfig.getConfig();
+            instance = new ExportJobs(conf.containsKey(".labsapi.jobs") ?
+                                              conf.getSubMap(".labsapi.jobs") :
+                                              new YAML(new LinkedHashMap<>()));
+        }
+        return instance;
+    }
+
+    /**
+     * Stop the singleton instance if it has been created. Running jobs are interrupted.
+     */
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Create a job handler from the given configuration. Normally {@link #getInstance()} should be used.
+     * @param conf the {@code .labsapi.jobs} part of the configuration.
+     */
+    ExportJobs(YAML conf) {
+        folder = Path.of(conf.getString(".folder",
+                                        Path.of(System.getProperty("java.io.tmpdir"), "labsapi-jobs").toString()));
+        maxConcurrent = conf.getInteger(".maxConcurrent", 2);
+        maxQueued = conf.getInteger(".maxQueued", 20);
+        maxAgeMS = conf.getLong(".maxAgeMS", 24*60*60*1000L);
+        retryAfterSeconds = conf.getInteger(".retryAfterSeconds", 60);
+        long gcIntervalMS = conf.getLong(".gcIntervalMS", 10*60*1000L);
+
+        try {
+            Files.createDirectories(folder);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create export job folder '" + folder + "'", e);
+        }
+        removeOrphans();
+
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<>(Math.max(1, maxQueued)), runnable -> {
+            Thread thread = new Thread(runnable, "ExportJobs-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+        collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ExportJobs-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        collector.scheduleWithFixedDelay(this::gc, gcIntervalMS, gcIntervalMS, TimeUnit.MILLISECONDS);
+        log.info("Created " + this);
+    }
+
+    /**
+     * Queue an export job.
+     * @param type     the type of export, such as {@code fields} or {@code images}. Informational only.
+     * @param filename the filename for the export when downloaded, without the {@code .gz} extension.
+     * @param export   the export to write to the spool file.
+     * @return the queued job.
+     * @throws ServiceUnavailableServiceException if the maximum number of queued jobs has been reached.
+     */
+    public Job submit(String type, String filename, StreamingOutput export) {
+        Job job = new Job(UUID.randomUUID().toString(), type, filename);
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(() -> job.run(export));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            throw new ServiceUnavailableServiceException(
+                    "The maximum number of queued export jobs (" + maxQueued + ") has been reached",
+                    retryAfterSeconds);
+        }
+        log.debug("Queued {}", job);
+        return job;
+    }
+
+    /**
+     * @param id the ID of a job.
+     * @return the job with the given ID.
+     * @throws NotFoundServiceException if the job does not exist or has been removed.
+     */
+    public Job getJob(String id) {
+        Job job = id == null ? null : jobs.get(id);
+        if (job == null) {
+            throw new NotFoundServiceException("The export job '" + id + "' does not exist or has expired");
+        }
+        return job;
+    }
+
+    /**
+     * @return all known jobs.
+     */
+    public List<Job> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Remove jobs that finished more than {@code maxAgeMS} ago, together with their spool files.
+     * @return the number of removed jobs.
+     */
+    public int gc() {
+        final long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Job job: getJobs()) {
+            if (job.getFinished() > 0 && now - job.getFinished() > maxAgeMS) {
+                jobs.remove(job.getId());
+                job.deleteSpool();
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            log.info("Removed {} expired export jobs", removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Stop all jobs and remove all spool files.
+     */
+    public void shutdown() {
+        collector.shutdownNow();
+        executor.shutdownNow();
+        jobs.values().forEach(Job::deleteSpool);
+        jobs.clear();
+    }
+
+    /**
+     * @return the number of jobs that are currently running.
+     */
+    public int getRunning() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of jobs waiting to run.
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    private void removeOrphans() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*{" + SPOOL_SUFFIX + "," + TEMP_SUFFIX + "}")) {
+            for (Path file: files) {
+                Files.deleteIfExists(file);
+                log.debug("Removed orphan spool file '{}'", file);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to remove orphan spool files from '{}'", folder, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "ExportJobs(folder='%s', maxConcurrent=%d, maxQueued=%d, maxAgeMS=%d, " +
+                                          "jobs=%d)", folder, maxConcurrent, maxQueued, maxAgeMS, jobs.size());
+    }
+
+    /**
+     * A single export job. The job is thread safe.
+     */
+    public class Job {
+        private final String id;
+        private final String type;
+        private final String filename;
+        private final long created = System.currentTimeMillis();
+        private final Path spool;
+        private final AtomicLong bytes = new AtomicLong(0);
+        private volatile STATE state = STATE.queued;
+        private volatile long started = 0;
+        private volatile long finished = 0;
+        private volatile long spoolBytes = 0;
+        private volatile String etag = null;
+        private volatile String message = null;
+
+        Job(String id, String type, String filename) {
+            this.id = id;
+            this.type = type;
+            this.filename = filename;
+            this.spool = folder.resolve(id + SPOOL_SUFFIX);
+        }
+
+        /**
+         * Write the export to a temporary file, which is renamed to the spool file when the export has finished.
+         */
+        void run(StreamingOutput export) {
+            started = System.currentTimeMillis();
+            state = STATE.running;
+            Path temp = folder.resolve(id + TEMP_SUFFIX);
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                try (OutputStream out = new CountingOutputStream(new GZIPOutputStream(new DigestOutputStream(
+                        Files.newOutputStream(temp), digest), 64*1024), bytes)) {
+                    export.write(out);
+                }
+                Files.move(temp, spool, StandardCopyOption.REPLACE_EXISTING);
+                spoolBytes = Files.size(spool);
+                etag = "\"" + toHex(digest.digest()).substring(0, 32) + "\"";
+                state = STATE.completed;
+                log.info("Finished {}", this);
+            } catch (Exception e) {
+                message = "Export failed: " + e.getMessage();
+                state = STATE.failed;
+                log.warn("Export job {} failed", id, e);
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex) {
+                    log.warn("Unable to delete temporary spool file '{}'", temp, ex);
+                }
+            } finally {
+                finished = System.currentTimeMillis();
+            }
+        }
+
+        void deleteSpool() {
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                log.warn("Unable to delete spool file '{}'", spool, e);
+            }
+        }
+
+        /**
+         * Open the spool file for reading. Only valid for {@link STATE#completed} jobs.
+         * @return a channel for the spool file.
+         * @throws IOException if the spool file could not be opened.
+         */
+        public FileChannel openSpool() throws IOException {
+            return FileChannel.open(spool, StandardOpenOption.READ);
+        }
+
+        /**
+         * Write the given part of the spool file to the output.
+         * @param range  the part of the spool file to write.
+         * @param output the destination.
+         * @throws IOException if the spool file could not be read or the output could not be written.
+         */
+        public void writeSpool(ByteRange range, OutputStream output) throws IOException {
+            try (FileChannel channel = openSpool()) {
+                long position = range.getStart();
+                long remaining = range.getLength();
+                WritableByteChannel target = Channels.newChannel(output);
+                while (remaining > 0) {
+                    long transferred = channel.transferTo(position, remaining, target);
+                    if (transferred <= 0) {
+                        throw new IOException("Unexpected end of spool file '" + spool + "'");
+                    }
+                    position += transferred;
+                    remaining -= transferred;
+                }
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return the filename for the download, including the {@code .gz} extension.
+         */
+        public String getFilename() {
+            return filename + ".gz";
+        }
+
+        public STATE getState() {
+            return state;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return the time the job was started or 0 if it has not been started.
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * @return the time the job finished, either completed or failed, or 0 if it has not finished.
+         */
+        public long getFinished() {
+            return finished;
+        }
+
+        /**
+         * @return the number of uncompressed bytes written by the export.
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return the size of the compressed spool file or 0 if the job has not completed.
+         */
+        public long getSpoolBytes() {
+            return spoolBytes;
+        }
+
+        /**
+         * @return the quoted entity tag for the spool file or null if the job has not completed.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return the error message if the job failed, else null.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the time the job expires as ISO-8601 or null if it has not finished.
+         */
+        public String getExpires() {
+            return finished == 0 ? null : Instant.ofEpochMilli(finished + maxAgeMS).toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Job(id='%s', type='%s', state=%s, bytes=%d, spoolBytes=%d)",
+                                 id, type, state, bytes.get(), spoolBytes);
+        }
+    }
+
+    /**
+     * A single HTTP byte range, resolved against the length of the content.
+     */
+    public static class ByteRange {
+        private static final Pattern RANGE = Pattern.compile("bytes=([0-9]*)-([0-9]*)");
+        /**
+         * Signals that the requested range cannot be satisfied.
+         */
+        public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1, -1);
+
+        private final long start;
+        private final long end;
+        private final long total;
+
+        ByteRange(long start, long end, long total) {
+            this.start = start;
+            this.end = end;
+            this.total = total;
+        }
+
+        /**
+         * @param total the length of the content.
+         * @return a range covering all of the content.
+         */
+        public static ByteRange full(long total) {
+            return new ByteRange(0, total-1, total);
+        }
+
+        /**
+         * Parse the HTTP Range header. Only single ranges are supported: Multiple ranges or malformed headers are
+         * ignored, as permitted by RFC 7233.
+         * @param header the value of the Range header. Can be null.
+         * @param total  the length of the content.
+         * @return the requested range, null if the full content should be delivered or {@link #UNSATISFIABLE}.
+         */
+        public static ByteRange parse(String header, long total) {
+            if (header == null) {
+                return null;
+            }
+            Matcher matcher = RANGE.matcher(header.trim());
+            if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                return null;
+            }
+            try {
+                if (matcher.group(1).isEmpty()) { // Suffix: The last n bytes
+                    long suffix = Long.parseLong(matcher.group(2));
+                    return suffix == 0 ? UNSATISFIABLE : new ByteRange(Math.max(0, total-suffix), total-1, total);
+                }
+                long start = Long.parseLong(matcher.group(1));
+                long end = matcher.group(2).isEmpty() ? total-1 : Math.min(Long.parseLong(matcher.group(2)), total-1);
+                if (start >= total || end < start) {
+                    return UNSATISFIABLE;
+                }
+                return new ByteRange(start, end, total);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the last byte in the range, inclusive.
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public long getLength() {
+            return end-start+1;
+        }
+
+        /**
+         * @return the range as a HTTP Content-Range header value.
+         */
+        public String toContentRange() {
+            return "bytes " + start + "-" + end + "/" + total;
+        }
+
+        @Override
+        public String toString() {
+            return this == UNSATISFIABLE ? "ByteRange(unsatisfiable)" : "ByteRange(" + toContentRange() + ")";
+        }
+    }
+
+    /**
+     * Counts the bytes written to the inner stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong counter;
+
+        CountingOutputStream(OutputStream out, AtomicLong counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.addAndGet(len);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length*2);
+        for (byte b: bytes) {
+            sb.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent store for finished exports, so that repeated identical exports are delivered from local disk without
+ * any Solr traffic. The store survives restarts.
+ * <p>
+ * Each entry is stored as a single file named from the digest of the {@link CacheKey}, which must cover everything
+ * that affects the export bytes: Query, fields, format, structure, max and the index version. The file contains a
+ * small header (creation time and the canonical key for collision checking), followed by the export bytes, which
+ * are delivered with {@link FileChannel#transferTo}.
+ * <p>
+ * Exports are written to the store while they are delivered to the first caller and only become visible when they
+ * have completed. Exports larger than the max entry size are not stored. If the total size of the files exceeds the
+ * max size, the least recently used entries are deleted. The last modified time of the files is used for tracking use.
+ */
+public class ExportStore {
+    private static final Logger log = LoggerFactory.getLogger(ExportStore.class);
+
+    private static final int MAGIC = 0x4C414245; // LABE
+    private static final String SUFFIX = ".export";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path folder;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long maxAgeMS;
+
+    private final AtomicLong totalBytes = new AtomicLong(0);
+    private final AtomicLong calls = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong writes = new AtomicLong(0);
+
+    /**
+     * Create an export store in the given folder. Existing entries in the folder are reused if they are still valid.
+     * @param folder        where to store the exports. Will be created if it does not exist.
+     * @param maxBytes      the maximum total size of the stored exports. -1 means no limit.
+     * @param maxEntryBytes the maximum size of a single export. Larger exports are not stored. -1 means maxBytes.
+     * @param maxAgeMS      the maximum age of entries. -1 means no limit.
+     * @throws IOException if the folder could not be created or scanned.
+     */
+    public ExportStore(Path folder, long maxBytes, long maxEntryBytes, long maxAgeMS) throws IOException {
+        this.folder = folder;
+        this.maxBytes = maxBytes == -1 ? Long.MAX_VALUE : maxBytes;
+        this.maxEntryBytes = maxEntryBytes == -1 ? this.maxBytes : Math.min(maxEntryBytes, this.maxBytes);
+        this.maxAgeMS = maxAgeMS == -1 ? Long.MAX_VALUE : maxAgeMS;
+        Files.createDirectories(folder);
+        cleanup();
+        log.info("Created " + this);
+    }
+
+    /**
+     * Wrap the given export, so that it is delivered from the store if an entry for the key exists and written to
+     * the store while it is delivered if not. The lookup is performed when the returned output is written.
+     * @param key    the key for the export.
+     * @param export produces the export if it is not in the store.
+     * @return the export, delivered from the store if possible.
+     */
+    public StreamingOutput wrap(CacheKey key, StreamingOutput export) {
+        return output -> {
+            if (!deliver(key, output)) {
+                storeWhileDelivering(key, export, output);
+            }
+        };
+    }
+
+    /**
+     * Write the stored export for the given key to the output, if present and valid.
+     * @param key    the key for the export.
+     * @param output the destination for the export.
+     * @return true if the export was delivered, false if there was no valid entry for the key.
+     * @throws IOException if writing to the output failed.
+     */
+    public boolean deliver(CacheKey key, OutputStream output) throws IOException {
+        calls.incrementAndGet();
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return false;
+        }
+        FileChannel channel = null;
+        long start;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            // Unbuffered, so that the channel position is at the start of the content after reading the header
+            Header header = Header.read(new DataInputStream(Channels.newInputStream(channel)));
+            if (!isValid(header) || !key.matches(header.canonical)) {
+                channel.close();
+                delete(file);
+                return false;
+            }
+            start = channel.position();
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            return false; // Deleted by another thread between exists and open
+        } catch (Exception e) {
+            log.warn("Unable to read export store entry '{}'. The entry will be deleted", file, e);
+            closeQuietly(channel);
+            delete(file);
+            return false;
+        }
+        // Problems from here on are with the output and must be propagated, as content might have been delivered
+        try (FileChannel in = channel) {
+            long position = start;
+            long remaining = in.size() - start;
+            WritableByteChannel target = Channels.newChannel(output);
+            while (remaining > 0) {
+                long transferred = in.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of export store entry '" + file + "'");
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+        hits.incrementAndGet();
+        log.debug("Delivered export {} from store", key.getDigest());
+        return true;
+    }
+
+    /**
+     * Deliver the export to the output while writing it to a temporary file, which is moved into the store when
+     * the export has completed. Problems with the store are logged but not propagated.
+     */
+    private void storeWhileDelivering(CacheKey key, StreamingOutput export, OutputStream output) throws IOException {
+        Path temp = folder.resolve(key.getDigest() + "_" + Thread.currentThread().getId() + TEMP_SUFFIX);
+        TeeOutputStream tee;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+            new Header(System.currentTimeMillis(), key.getCanonical()).write(out);
+            tee = new TeeOutputStream(output, out, maxEntryBytes);
+        } catch (Exception e) {
+            log.warn("Unable to create export store entry '{}'. The export will not be stored", temp, e);
+            delete(temp);
+            export.write(output);
+            return;
+        }
+        try {
+            export.write(tee);
+        } catch (IOException | RuntimeException e) {
+            tee.abandon();
+            delete(temp);
+            throw e;
+        }
+        if (!tee.finish()) {
+            delete(temp);
+            return;
+        }
+
+        Path file = getFile(key);
+        try {
+            long oldSize = Files.exists(file) ? Files.size(file) : 0;
+            long newSize = Files.size(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            totalBytes.addAndGet(newSize - oldSize);
+            writes.incrementAndGet();
+            log.debug("Stored export {} of {} bytes", key.getDigest(), newSize);
+        } catch (Exception e) {
+            log.warn("Unable to store export '{}'", file, e);
+            delete(temp);
+            return;
+        }
+        if (totalBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Delete all entries in the store.
+     */
+    public synchronized void clear() {
+        for (Path file: listEntries()) {
+            delete(file);
+        }
+    }
+
+    /**
+     * @return the number of lookups in the store.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of exports delivered from the store.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of exports written to the store.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @return the total size in bytes of the stored exports.
+     */
+    public long getBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Delete invalid entries, leftover temporary files and calculate the size of the remaining entries.
+     */
+    private synchronized void cleanup() throws IOException {
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file: files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    delete(file);
+                    continue;
+                }
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+                    if (!isValid(Header.read(in))) {
+                        delete(file);
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.debug("Unable to read header for '{}'. Deleting entry", file, e);
+                    delete(file);
+                    continue;
+                }
+                bytes += Files.size(file);
+            }
+        }
+        totalBytes.set(bytes);
+        if (bytes > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the total size is below the max size.
+     */
+    private synchronized void evict() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Path> entries = listEntries();
+        entries.sort(Comparator.comparingLong(ExportStore::lastModified));
+        for (Path file: entries) {
+            if (totalBytes.get() <= maxBytes) {
+                break;
+            }
+            delete(file);
+        }
+    }
+
+    private List<Path> listEntries() {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + SUFFIX)) {
+            files.forEach(entries::add);
+        } catch (IOException e) {
+            log.warn("Unable to list entries in export store '{}'", folder, e);
+        }
+        return entries;
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void delete(Path file) {
+        try {
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file) && file.getFileName().toString().endsWith(SUFFIX)) {
+                totalBytes.addAndGet(-size);
+            }
+        } catch (NoSuchFileException e) {
+            // Already deleted
+        } catch (IOException e) {
+            log.warn("Unable to delete export store file '{}'", file, e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Exception closing export store entry", e);
+        }
+    }
+
+    private boolean isValid(Header header) {
+        return System.currentTimeMillis() - header.created <= maxAgeMS;
+    }
+
+    private Path getFile(CacheKey key) {
+        return folder.resolve(key.getDigest() + SUFFIX);
+    }
+
+    @Override
+    public String toString() {
+        return "ExportStore{" +
+               "folder=" + folder +
+               ", bytes/maxBytes=" + getBytes() + "/" + maxBytes +
+               ", maxEntryBytes=" + maxEntryBytes +
+               ", maxAgeMS=" + maxAgeMS +
+               ", hits/calls=" + getHits() + "/" + getCalls() +
+               ", writes=" + getWrites() +
+               '}';
+    }
+
+    /**
+     * Writes to the primary output and a copy to the store entry. If the entry exceeds the max size or cannot be
+     * written, the copy is abandoned while writing to the primary output continues.
+     */
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream primary;
+        private final long maxBytes;
+        private OutputStream copy;
+        private long copied = 0;
+
+        TeeOutputStream(OutputStream primary, OutputStream copy, long maxBytes) {
+            this.primary = primary;
+            this.copy = copy;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writePrimary(() -> primary.write(b));
+            if (copy != null && ensureSpace(1)) {
+                try {
+                    copy.write(b);
+                } catch (IOException e) {
+                    log.warn("Unable to write export store entry. The export will not be stored", e);
+                    abandon();
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writePrimary(() -> primary.write(b, off, len));
+            if (copy != null && ensureSpace(len)) {
+                try {
+                    copy.write(b, off, len);
+                } catch (IOException e) {
+                    log.warn("Unable to write export store entry. The export will not be stored", e);
+                    abandon();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writePrimary(primary::flush);
+        }
+
+        /**
+         * If the primary output fails, the export is incomplete and the copy is abandoned. As exports might catch
+         * and log the exception, it cannot be relied upon to propagate to {@link #storeWhileDelivering}.
+         */
+        private void writePrimary(IOAction action) throws IOException {
+            try {
+                action.run();
+            } catch (IOException | RuntimeException e) {
+                abandon();
+                throw e;
+            }
+        }
+
+        /**
+         * The primary output is owned by the caller of the export and is not closed.
+         */
+        @Override
+        public void close() throws IOException {
+            primary.flush();
+        }
+
+        private boolean ensureSpace(long bytes) {
+            copied += bytes;
+            if (copied <= maxBytes) {
+                return true;
+            }
+            log.debug("Export exceeds the max entry size of {} bytes and will not be stored", maxBytes);
+            abandon();
+            return false;
+        }
+
+        /**
+         * Close the copy without storing it.
+         */
+        void abandon() {
+            if (copy == null) {
+                return;
+            }
+            try {
+                copy.close();
+            } catch (IOException e) {
+                log.debug("Exception closing abandoned export store entry", e);
+            }
+            copy = null;
+        }
+
+        /**
+         * Close the copy.
+         * @return true if the copy is complete and can be stored.
+         */
+        boolean finish() {
+            if (copy == null) {
+                return false;
+            }
+            try {
+                copy.close();
+                copy = null;
+                return true;
+            } catch (IOException e) {
+                log.warn("Unable to finish export store entry. The export will not be stored", e);
+                copy = null;
+                return false;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * The metadata stored before the export in each entry.
+     */
+    private static class Header {
+        final long created;
+        final String canonical;
+
+        Header(long created, String canonical) {
+            this.created = created;
+            this.canonical = canonical;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeLong(created);
+            byte[] bytes = canonical.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        static Header read(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an export store file");
+            }
+            long created = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new Header(created, new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+}
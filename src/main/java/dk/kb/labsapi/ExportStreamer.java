@@ -0,0 +1,145 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Streams the documents for a Solr request using the {@code /export} handler, where each document is handed to the
+ * processor as soon as it has been read from the response.
+ * <p>
+ * The {@code /export} handler resolves the query and the sort once and streams all matching documents from
+ * docValues, contrary to cursorMark paging where the query is re-executed for every page. It requires that all
+ * requested fields and all sort fields have docValues: See {@link #supports(Set, Collection, String)}.
+ * <p>
+ * The documents are processed on the thread calling {@link #process(Consumer)}.
+ */
+public class ExportStreamer {
+    public static final String EXPORT_HANDLER = "/export";
+
+    private final SolrParams request;
+    private final long max;
+    private final Function<SolrParams, TupleStream> streamFactory;
+    private long delivered = 0;
+
+    /**
+     * Create a streamer for the given request. No requests are issued before {@link #process(Consumer)} is called.
+     * @param baseRequest   query, filters, sort and fields. Paging and faceting parameters are removed.
+     * @param max           the maximum number of documents to deliver. -1 means no limit.
+     * @param streamFactory creates a stream for the /export request, typically a
+     *                      {@link org.apache.solr.client.solrj.io.stream.SolrStream}.
+     */
+    public ExportStreamer(SolrParams baseRequest, long max, Function<SolrParams, TupleStream> streamFactory) {
+        this.request = toExportRequest(baseRequest);
+        this.max = max;
+        this.streamFactory = streamFactory;
+    }
+
+    /**
+     * Checks whether the {@code /export} handler can deliver the given fields in the given sort order.
+     * @param docValuesFields the fields with docValues in the Solr schema.
+     * @param fields          the fields to deliver.
+     * @param sort            the sort for the export, such as {@code sort_year_asc asc, recordID asc}.
+     * @return true if all fields and sort fields are docValues fields.
+     */
+    public static boolean supports(Set<String> docValuesFields, Collection<String> fields, String sort) {
+        if (docValuesFields == null || docValuesFields.isEmpty() || sort == null || sort.isBlank() ||
+            !docValuesFields.containsAll(fields)) {
+            return false;
+        }
+        return Arrays.stream(sort.split(","))
+                .map(String::trim)
+                .map(clause -> clause.split(" +")[0])
+                .allMatch(docValuesFields::contains);
+    }
+
+    /**
+     * Stream all documents, feeding them to the processor in the order they are received.
+     * <p>
+     * If the export fails, {@link #getDelivered()} tells whether any documents were delivered before the failure.
+     * If not, the caller can safely fall back to another export method.
+     * @param processor receives each document.
+     * @return the number of delivered documents.
+     * @throws IOException if the export could not be completed.
+     */
+    public long process(Consumer<SolrDocument> processor) throws IOException {
+        TupleStream stream = streamFactory.apply(request);
+        try {
+            stream.open();
+            while (max == -1 || delivered < max) {
+                Tuple tuple = stream.read();
+                if (tuple.EXCEPTION) {
+                    throw new IOException("The " + EXPORT_HANDLER + " handler failed for " + request + ": " +
+                                          tuple.getException());
+                }
+                if (tuple.EOF) {
+                    break;
+                }
+                processor.accept(toDocument(tuple));
+                delivered++;
+            }
+        } finally {
+            // Closing before EOF aborts the remaining export
+            stream.close();
+        }
+        return delivered;
+    }
+
+    /**
+     * @return the number of documents delivered to the processor.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    private static SolrParams toExportRequest(SolrParams baseRequest) {
+        ModifiableSolrParams request = new ModifiableSolrParams(baseRequest);
+        request.remove(CommonParams.ROWS);
+        request.remove(CommonParams.START);
+        request.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+        request.remove(FacetParams.FACET);
+        request.set(CommonParams.QT, EXPORT_HANDLER);
+        return request;
+    }
+
+    private static SolrDocument toDocument(Tuple tuple) {
+        SolrDocument doc = new SolrDocument();
+        for (Map.Entry<Object, Object> entry: tuple.getFields().entrySet()) {
+            doc.setField(entry.getKey().toString(), entry.getValue());
+        }
+        return doc;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "ExportStreamer(max=%d, delivered=%d, request=%s)", max, delivered, request);
+    }
+}
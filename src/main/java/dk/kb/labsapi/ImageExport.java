@@ -11,6 +11,9 @@ import dk.kb.labsapi.metadataFormats.IllustrationMetadata;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.yaml.YAML;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.QuoteMode;
 import org.apache.commons.io.IOUtils;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.common.SolrDocument;
@@ -21,8 +24,13 @@ import org.slf4j.LoggerFactory;
 import javax.ws.rs.core.StreamingOutput;
 import java.io.*;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -42,6 +50,7 @@ public class ImageExport {
     private static final Logger log = LoggerFactory.getLogger(ImageExport.class);
     public static int pageSize;
     private static ImageExport instance;
+    private static SolrBase solrBase;
     private final String ImageExportService;
     private static int partitionSize;
 
@@ -53,6 +62,18 @@ public class ImageExport {
     private int maxAllowedEndYear;
     private int maxExport;
     private int defaultExport;
+    // Image downloads are performed concurrently within a window and written to the ZIP in order
+    private int fetchWindow = 1;
+    private long fetchMaxBufferedBytes = -1;
+    private static ExecutorService fetchExecutor;
+    // Failed downloads are retried. Sequential exports stream the images into the ZIP and only buffer on retry
+    private int fetchRetries = 2;
+    private long fetchRetryDelayMS = 500;
+    // Page deduplication sets larger than this are placed off-heap. -1 means never
+    private long dedupOffHeapBytes = -1;
+    // Solr returns only the first document for each page, if it supports collapsing. Null means no collapsing
+    private String collapseFilter = null;
+    private static final ThreadLocal<byte[]> copyBuffer = ThreadLocal.withInitial(() -> new byte[64*1024]);
     static final Pattern pagePattern = Pattern.compile("doms_aviser_page:uuid:(\\S*)");
 
     public static ImageExport getInstance() {
@@ -77,9 +98,36 @@ public class ImageExport {
         defaultExport = conf.getInteger(".imageserver.defaultExport");
         CSVFIELDS = new LinkedHashSet<>(conf.getList(".imageserver.metadataFields"));
         partitionSize = conf.getInteger(".imageserver.csvPartitionSize");
+        fetchWindow = conf.getInteger(".imageserver.fetch.window", 8);
+        fetchMaxBufferedBytes = conf.getLong(".imageserver.fetch.maxBufferedBytes", 64*1024*1024L);
+        fetchRetries = conf.getInteger(".imageserver.fetch.retries", 2);
+        fetchRetryDelayMS = conf.getLong(".imageserver.fetch.retryDelayMS", 500L);
+        ensureFetchExecutor(conf.getInteger(".imageserver.fetch.threads", 16));
+        dedupOffHeapBytes = conf.getLong(".imageserver.dedup.offHeapBytes", -1L);
+        if (conf.getBoolean(".imageserver.collapse.enabled", false)) {
+            collapseFilter = "{!collapse field=" + conf.getString(".imageserver.collapse.field", "pageUUID") +
+                             " sort='recordID asc'}";
+        }
         log.info("Created ImageExport that exports images from this server: '{}'", ImageExportService);
     }
 
+    /**
+     * Create the executor for image downloads, shared between all exports, if it does not already exist.
+     * @param threads the maximum number of concurrent image downloads for all exports.
+     */
+    private static synchronized void ensureFetchExecutor(int threads) {
+        if (fetchExecutor != null) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        fetchExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ImageExport-fetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("Created image download executor with {} threads", threads);
+    }
+
     /**
      * Create map of metadata for query.
      * @param query used to query solr.
@@ -125,6 +173,17 @@ public class ImageExport {
         return solrQuery;
     }
 
+    /**
+     * Collapsing returns the first document, ordered by recordID, for each page. This matches the order of the
+     * export and thus the document that the client side deduplication would keep.
+     * <p>
+     * Only illustration exports are collapsed: Full page exports deliver CSV metadata for all matching documents.
+     * @return true if collapsing is enabled and supported by the Solr setup.
+     */
+    boolean isCollapseSupported() {
+        return collapseFilter != null && getSolrBase().isFilterSupported(collapseFilter);
+    }
+
     /**
      * Validate query parameters that are to be used for image extraction.
      * @param startYear of timespan for query.
@@ -196,11 +255,85 @@ public class ImageExport {
      * @return downloaded image as byte array.
      */
      public byte[] downloadSingleIllustration(URL url) {
+        return downloadSingleIllustration(url, 0);
+    }
+
+    /**
+     * Download an illustration, continuing the attempts of an earlier failed download.
+     * @param url          pointing to the image to download.
+     * @param firstAttempt the number of attempts already made. Downloads are attempted until
+     *                     {@link #fetchRetries} retries have been made in total.
+     * @return downloaded image as byte array.
+     */
+    private byte[] downloadSingleIllustration(URL url, int firstAttempt) {
+        IOException lastException = null;
+        for (int attempt = firstAttempt ; attempt <= fetchRetries ; attempt++) {
+            if (attempt > 0) {
+                log.debug("Retrying download of illustration from {} (retry {}/{})", url, attempt, fetchRetries);
+                pauseBeforeRetry();
+            }
+            try (InputStream in = openImage(url)) {
+                return IOUtils.toByteArray(in);
+            } catch (IOException e) {
+                lastException = e;
+            }
+        }
+        log.error("Failed to download illustration from " + url + " while reading bytes");
+        throw new RuntimeException(lastException);
+    }
+
+    /**
+     * Open a connection to the image server. Separate method so that connection failures can be simulated.
+     * @param url pointing to the image to download.
+     * @return a stream with the image.
+     */
+    InputStream openImage(URL url) throws IOException {
+        return url.openStream();
+    }
+
+    /**
+     * Copy an illustration from the given URL directly into a new entry in the ZIP, without holding the full image
+     * in memory.
+     * <p>
+     * If the connection to the image server cannot be established, nothing has been written to the ZIP and the
+     * download is retried as a buffered download with the remaining retries, so that a retry failing halfway cannot
+     * leave a partial entry. Failures after copying has started fail the export.
+     * @param url      pointing to the image to download.
+     * @param fileName the name of the entry in the ZIP.
+     * @param zos      ZipOutputStream that gets streamed to.
+     */
+    void streamSingleIllustration(URL url, String fileName, ZipOutputStream zos) throws IOException {
+        InputStream image;
         try {
-            return IOUtils.toByteArray(url);
-        }  catch (IOException e) {
-            log.error("Failed to download illustration from " + url + " while reading bytes");
-            throw new RuntimeException(e);
+            image = openImage(url);
+        } catch (IOException e) {
+            if (fetchRetries <= 0) {
+                log.error("Failed to download illustration from " + url + " while opening connection");
+                throw e;
+            }
+            log.debug("Unable to open connection to {}. Retrying with buffered download", url, e);
+            // The failed connection counts as the first attempt
+            addToZipStream(downloadSingleIllustration(url, 1), fileName, zos);
+            return;
+        }
+        try (InputStream in = image) {
+            zos.putNextEntry(new ZipEntry(fileName));
+            byte[] buffer = copyBuffer.get();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                zos.write(buffer, 0, read);
+            }
+            zos.closeEntry();
+            zos.flush();
+        }
+    }
+
+    private void pauseBeforeRetry() {
+        try {
+            Thread.sleep(fetchRetryDelayMS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to retry image download", e);
         }
     }
 
@@ -241,8 +374,6 @@ public class ImageExport {
      * @param zos ZipOutputStream that gets streamed to.
      */
     private void addToZipStream(byte[] data, String fileName, ZipOutputStream zos) throws IOException{
-        // Create a buffer to read into
-        byte[] buffer = new byte[1024];
         // Create a zip entry with individual filename
         ZipEntry ze = new ZipEntry(fileName);
         // Add the zip entry to the zip output stream
@@ -258,13 +389,19 @@ public class ImageExport {
 
     /**
      * Get images of newspaper pages with given query present in text.
+     * <p>
+     * The export is done in a single pass over the Solr result: The documents are deduplicated to pages, which are
+     * delivered to the image fetcher, while the CSV metadata for the documents are written to a temporary file that
+     * is added to the ZIP after the images.
+     * <p>
+     * Reading stops when max pages have been found, so the CSV does not hold the matching documents on the exported
+     * pages that come later in the result. Reading further would mean scanning the full result for the query.
      * @param query     to search for.
      * @param startYear is the earliest boundary for the query. Boundaries are inclusive.
      * @param endYear   is the latest boundary for the query. Boundaries are inclusive.
      * @param max       number of documents to fetch.
      * @param output    to write images to as one combined zip file.
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public void exportFullpages(String query, Integer startYear, Integer endYear, Integer max, OutputStream output, String exportFormat) throws IOException {
         if (instance.ImageExportService == null) {
             throw new InternalServiceException("Illustration delivery service has not been configured, sorry");
@@ -273,31 +410,52 @@ public class ImageExport {
         SolrQuery finalQuery = fullpageSolrQuery(query, startYear, endYear);
         Stream<SolrDocument> docs = streamSolr(finalQuery);
 
-        // Get fullPage metadata
-        HashSet<String> UUIDs = new HashSet<>();
-        docs
-                .filter(doc -> deduplicateUUIDS(doc, UUIDs))
-                .limit(max)
-                .count();
-
-        Stream<SolrDocument> illustrationDocs = streamSolr(finalQuery);
-        // Get fullPage metadata
-        HashSet<String> illUUIDs = new HashSet<>();
-        Stream<FullPageMetadata> pageMetadata = illustrationDocs
-                .filter(doc -> deduplicateUUIDS(doc, illUUIDs))
-                .map(doc -> getMetadataForFullPage(doc, illUUIDs))
-                .limit(max);
-
-        // Create csv stream containing metadata from query
-        Stream<StreamingOutput> fullCsv = Stream.concat(Stream.of(createHeaderForCsvStream()), streamCsvOfUniqueUUIDsMetadata(UUIDs));
-
-        // Create metadata file, that has to be added to output zip
-        Map<String, Object> metadataMap = makeMetadataMap(query, startYear, endYear);
+        Path csvSpool = Files.createTempFile("imageMetadata_", ".csv");
+        try (CSVPrinter csvPrinter = new CSVPrinter(
+                Files.newBufferedWriter(csvSpool, StandardCharsets.UTF_8),
+                CSVFormat.DEFAULT.withQuoteMode(QuoteMode.NON_NUMERIC).withHeader(CSVFIELDS.toArray(new String[0])))) {
+            // Get fullPage metadata and CSV metadata from the same documents
+            UUIDSet UUIDs = createPageSet(max);
+            Stream<FullPageMetadata> pageMetadata = docs
+                    .peek(doc -> printCsvRecord(doc, csvPrinter))
+                    .map(doc -> getMetadataForFullPage(doc, UUIDs))
+                    .filter(Objects::nonNull)
+                    .limit(max);
+
+            // The CSV is added after the images, at which point all documents have been processed
+            Stream<StreamingOutput> fullCsv = Stream.of(csvOutput -> {
+                csvPrinter.flush();
+                Files.copy(csvSpool, csvOutput);
+            });
+
+            // Create metadata file, that has to be added to output zip
+            Map<String, Object> metadataMap = makeMetadataMap(query, startYear, endYear);
+
+            // Streams pages from URL to zip file with all illustrations
+            log.debug("Creating zip for '{}'", query);
+            int count = createZipOfImages(pageMetadata, output, metadataMap, fullCsv, exportFormat);
+            log.info("Found: '" + count + "' unique UUIDs in query");
+        } finally {
+            Files.deleteIfExists(csvSpool);
+        }
+    }
 
-        // Streams pages from URL to zip file with all illustrations
-        log.debug("Creating zip for '{}'", query);
-        int count = createZipOfImages(pageMetadata, output, metadataMap, fullCsv, exportFormat);
-        log.info("Found: '" + count + "' unique UUIDs in query");
+    /**
+     * Write the {@link #CSVFIELDS} from the given document as a CSV record.
+     * @param doc     a Solr document with the {@link #CSVFIELDS}.
+     * @param printer the destination for the record.
+     */
+    private void printCsvRecord(SolrDocument doc, CSVPrinter printer) {
+        SolrExport.getInstance().expandExportResponse(doc, CSVFIELDS);
+        try {
+            printer.printRecord(CSVFIELDS.stream()
+                                        .map(doc::get)
+                                        .map(SolrExport::flattenStringList)
+                                        .map(SolrBase::escapeCSVString)
+                                        .collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new RuntimeException("Exception writing CSV metadata for page " + doc.getFieldValue("pageUUID"), e);
+        }
     }
 
     /**
@@ -319,7 +477,7 @@ public class ImageExport {
         Map<String, Object> metadataMap = makeMetadataMap(query, startYear, endYear);
 
         // Create metadata objects
-        HashSet<String> uniqueUUIDs = new HashSet<>();
+        UUIDSet uniqueUUIDs = createPageSet(max);
         Stream<IllustrationMetadata> illustrationMetadata = docs
                 .flatMap(doc -> getMetadataForIllustrations(doc, uniqueUUIDs)
                 .limit(max));
@@ -335,11 +493,14 @@ public class ImageExport {
      * @param startYear is the earliest boundary for the query. Boundaries are inclusive.
      * @param endyear is the latest boundary for the query. Boundaries are inclusive.
      * @return a solr query used to deliver images of all pages. The fields asked for are the following: <em>pageUUID, page_width and page_height</em>
+     *         as well as the fields for the CSV metadata.
      */
     public SolrQuery fullpageSolrQuery(String query, Integer startYear, Integer endyear) throws IOException {
         // Construct solr query with filter
         SolrQuery solrQuery = createSolrQuery(query, startYear, endyear);
-        solrQuery.setFields("pageUUID, page_width, page_height");
+        Set<String> fields = new LinkedHashSet<>(Arrays.asList("pageUUID", "page_width", "page_height"));
+        fields.addAll(CSVFIELDS);
+        solrQuery.setFields(String.join(", ", fields));
 
         return solrQuery;
     }
@@ -356,6 +517,10 @@ public class ImageExport {
         // Construct solr query with filter
         SolrQuery solrQuery = createSolrQuery(query, startYear, endYear);
         solrQuery.addFilterQuery("illustration: [* TO *]");
+        if (isCollapseSupported()) {
+            // Only one document per page is delivered. The client side deduplication is kept as fallback
+            solrQuery.addFilterQuery(collapseFilter);
+        }
         solrQuery.setFields("pageUUID, illustration, page_width, page_height");
 
         return solrQuery;
@@ -367,17 +532,27 @@ public class ImageExport {
      * @return a stream of SolrDocuments representing newspaper article hits.
      */
     public Stream<SolrDocument> streamSolr(SolrQuery query){
-        SolrBase base = new SolrBase(".labsapi.aviser");
-        Stream<SolrDocument> docs = base.streamSolr(query);
+        Stream<SolrDocument> docs = getSolrBase().streamSolr(query);
         return docs;
     }
 
+    /**
+     * The SolrBase is shared between calls, as each instance holds a cache and background threads.
+     * @return the SolrBase used for streaming documents, created on first call.
+     */
+    public static synchronized SolrBase getSolrBase() {
+        if (solrBase == null) {
+            solrBase = new SolrBase(".labsapi.aviser");
+        }
+        return solrBase;
+    }
+
     /**
      * Get metadata values for a given SolrDocument.
      * The returned object contains metadata about a single page.
      * @return an object containing metadata from a single page. metadata values are: pageUUID, pageWidth and pageHeight.
      */
-    public FullPageMetadata getMetadataForFullPage(SolrDocument doc, Set<String> uniqueUUIDs) {
+    public FullPageMetadata getMetadataForFullPage(SolrDocument doc, UUIDSet uniqueUUIDs) {
         FullPageMetadata page = null;
 
         // Extract metadata from SolrDocument
@@ -401,7 +576,7 @@ public class ImageExport {
      * X and Y are coordinates, w = width and h = height. pageUUID, pageWidth and pageHeight are related to the page, which the illustration has been extracted from and imageURL is the URL where the illustration is available.
      * @return a list of metadata objects consisting of the id, x, y, w, h, pageUUID, pageWidth and pageHeight values that are used to extract illustrations.
      */
-    public Stream<IllustrationMetadata> getMetadataForIllustrations(SolrDocument doc, HashSet<String> uniqueUUIDs) {
+    public Stream<IllustrationMetadata> getMetadataForIllustrations(SolrDocument doc, UUIDSet uniqueUUIDs) {
         // TODO: This endpoint still returns some odd illustrations, which are clearly not illustrations nut flaws in the illustration boxes. However it works and these illustrations can be filtered away later by filtering small hights away
 
         // Extract metadata from SolrDocument
@@ -436,10 +611,21 @@ public class ImageExport {
         AtomicInteger count = new AtomicInteger();
         switch (exportFormat){
             case "illustrations":
-                imageMetadata.forEach(metadata -> exportImage(metadata, exportFormat, count, zos));
-                break;
             case "fullPage":
-                imageMetadata.forEach(metadata -> exportImage(metadata, exportFormat, count, zos));
+                // Full pages are several MB each, so buffering a window of them costs more memory than the
+                // concurrency gains. They are always streamed, while the small illustration crops are fetched
+                // concurrently
+                if (fetchWindow <= 1 || fetchExecutor == null || "fullPage".equals(exportFormat)) {
+                    // Sequential: Stream each image directly into the ZIP
+                    imageMetadata.forEach(metadata -> streamImageToZip(metadata, exportFormat, count, zos));
+                } else {
+                    // Parallel: Images are buffered until their turn, bounded by fetchMaxBufferedBytes
+                    new OrderedFetcher<BasicMetadata>(
+                            fetchWindow, fetchMaxBufferedBytes,
+                            metadata -> downloadSingleIllustration(metadata.getImageURL()), fetchExecutor)
+                            .process(imageMetadata.iterator(),
+                                     (metadata, image) -> addImageToZip(metadata, image, exportFormat, count, zos));
+                }
                 break;
         }
 
@@ -468,25 +654,77 @@ public class ImageExport {
      * @param zos to deliver all images to.
      */
     public void exportImage(BasicMetadata metadata, String exportFormat, AtomicInteger count, ZipOutputStream zos){
-        byte[] illustration = downloadSingleIllustration(metadata.getImageURL());
-        String pageUuid = metadata.getPageUUID();
+        addImageToZip(metadata, downloadSingleIllustration(metadata.getImageURL()), exportFormat, count, zos);
+    }
+
+    /**
+     * Stream an image directly into the ZIP.
+     * @param metadata     to download image for.
+     * @param exportFormat that determines export type.
+     * @param count        to construct filenames.
+     * @param zos          to deliver all images to.
+     */
+    private void streamImageToZip(BasicMetadata metadata, String exportFormat, AtomicInteger count,
+                                  ZipOutputStream zos) {
+        String fileName = nextImageFilename(metadata, exportFormat, count);
+        if (fileName == null) {
+            return;
+        }
         try {
-            if (exportFormat.equals("illustrations")) {
-                addToZipStream(illustration, String.format(Locale.ROOT, "pageUUID_%s_" + exportFormat + "_%03d.jpeg", pageUuid, count.get()), zos);
-                count.addAndGet(1);
-            }
-            if (exportFormat.equals("fullPage")){
-                addToZipStream(illustration, String.format(Locale.ROOT, "pageUUID_%s_" + exportFormat + ".jpeg", pageUuid), zos);
-            }
-            count.addAndGet(1);
+            streamSingleIllustration(metadata.getImageURL(), fileName, zos);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Add a downloaded image to the ZIP.
+     * @param metadata     for the image.
+     * @param illustration the downloaded image.
+     * @param exportFormat that determines export type.
+     * @param count        to construct filenames.
+     * @param zos          to deliver all images to.
+     */
+    private void addImageToZip(BasicMetadata metadata, byte[] illustration, String exportFormat, AtomicInteger count,
+                               ZipOutputStream zos) {
+        String fileName = nextImageFilename(metadata, exportFormat, count);
+        if (fileName == null) {
+            return;
+        }
+        try {
+            addToZipStream(illustration, fileName, zos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Construct the filename for the next image in the ZIP and advance the count.
+     * @param metadata     for the image.
+     * @param exportFormat that determines export type.
+     * @param count        to construct filenames.
+     * @return the filename or null if the export format does not produce images.
+     */
+    private String nextImageFilename(BasicMetadata metadata, String exportFormat, AtomicInteger count) {
+        String pageUuid = metadata.getPageUUID();
+        switch (exportFormat) {
+            case "illustrations":
+                return String.format(Locale.ROOT, "pageUUID_%s_" + exportFormat + "_%03d.jpeg",
+                                     pageUuid, count.getAndAdd(2));
+            case "fullPage":
+                count.incrementAndGet();
+                return String.format(Locale.ROOT, "pageUUID_%s_" + exportFormat + ".jpeg", pageUuid);
+            default:
+                count.incrementAndGet();
+                return null;
+        }
+    }
+
 
     /**
      * Create a stream of streaming outputs containing metadata for images in CSV-format from a set of unique IDs.
+     * Note: This issues a Solr request for each partition of IDs. {@link #exportFullpages} collects the metadata
+     * from its own Solr result instead.
      * @param uniqueUUIDs to extract metadata for.
      * @return a stream consisting of StreamingOutputs with a given size
      */
@@ -540,12 +778,20 @@ public class ImageExport {
     /**
      * Deduplicates pageUUIDs
      * @param doc Solrdocument which pageUUID gets extracted from
-     * @param uniqueUUIDs is a hashset, used for looking up duplicates.
+     * @param uniqueUUIDs is a set, used for looking up duplicates.
      * @return the pageUUID if unique.
      */
-    public boolean deduplicateUUIDS(SolrDocument doc, HashSet<String> uniqueUUIDs){
+    public boolean deduplicateUUIDS(SolrDocument doc, UUIDSet uniqueUUIDs){
         String pageUUID = doc.getFieldValue("pageUUID").toString();
-        log.info(pageUUID);
         return uniqueUUIDs.add(pageUUID);
     }
+
+    /**
+     * Create a set for deduplication of pages.
+     * @param expectedPages the expected number of unique pages.
+     * @return a set for pageUUIDs, placed off-heap if it grows beyond {@code .imageserver.dedup.offHeapBytes}.
+     */
+    UUIDSet createPageSet(int expectedPages) {
+        return new UUIDSet(Math.min(expectedPages, maxExport), dedupOffHeapBytes);
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of latencies in milliseconds, with buckets growing by powers of 2.
+ * <p>
+ * Bucket 0 holds 0 ms, bucket 1 holds 1 ms, bucket 2 holds 2-3 ms, bucket 3 holds 4-7 ms and so forth.
+ * The last bucket holds all latencies above the previous bucket.
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong totalMS = new AtomicLong(0);
+
+    /**
+     * Add a measurement to the histogram.
+     * @param ms a latency in milliseconds.
+     */
+    public void record(long ms) {
+        ms = Math.max(0, ms);
+        counts.incrementAndGet(Math.min(BUCKETS-1, 64-Long.numberOfLeadingZeros(ms)));
+        total.incrementAndGet();
+        totalMS.addAndGet(ms);
+    }
+
+    /**
+     * @return the number of measurements.
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return the sum of all measured latencies in milliseconds.
+     */
+    public long getTotalMS() {
+        return totalMS.get();
+    }
+
+    /**
+     * @param bucket a bucket index.
+     * @return the maximum latency in milliseconds for the bucket (inclusive).
+     */
+    public static long getUpperMS(int bucket) {
+        return bucket == BUCKETS-1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /**
+     * @return the count for each bucket, up to and including the last non-empty bucket.
+     */
+    public List<Long> getCounts() {
+        int last = BUCKETS-1;
+        while (last >= 0 && counts.get(last) == 0) {
+            last--;
+        }
+        List<Long> result = new ArrayList<>(last+1);
+        for (int i = 0 ; i <= last ; i++) {
+            result.add(counts.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount() + ", totalMS=" + getTotalMS() + ", counts=" + getCounts() + "}";
+    }
+}
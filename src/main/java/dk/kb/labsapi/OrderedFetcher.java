@@ -0,0 +1,155 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Fetches binary content for a sequence of inputs with a bounded number of concurrent fetches, delivering the
+ * results to a consumer in input order.
+ * <p>
+ * At most {@code window} fetches are in flight or waiting to be consumed at any time. New fetches are not started
+ * while the content that has been fetched but not yet consumed exceeds {@code maxBufferedBytes}. The heap needed
+ * is thus bounded by {@code maxBufferedBytes} plus {@code window} times the size of the largest content.
+ * <p>
+ * Inputs are pulled from the iterator and results are consumed on the thread calling {@link #process}, so neither
+ * the iterator nor the consumer needs to be thread safe. If a fetch fails, the remaining fetches are cancelled and
+ * the failure is thrown from {@link #process}. Running fetches are cancelled by interrupting them.
+ */
+public class OrderedFetcher<T> {
+    private static final Logger log = LoggerFactory.getLogger(OrderedFetcher.class);
+
+    private final int window;
+    private final long maxBufferedBytes;
+    private final Function<T, byte[]> fetcher;
+    private final ExecutorService executor;
+
+    private long maxObservedBufferedBytes = 0;
+
+    /**
+     * @param window           the maximum number of fetched or in-flight results. 1 means sequential fetching.
+     * @param maxBufferedBytes the soft limit for fetched but not yet consumed content. -1 means no limit.
+     * @param fetcher          fetches the content for a single input. Called from the executor threads.
+     * @param executor         performs the fetches. Fetches are interrupted if they are cancelled.
+     */
+    public OrderedFetcher(int window, long maxBufferedBytes, Function<T, byte[]> fetcher, ExecutorService executor) {
+        if (window < 1) {
+            throw new IllegalArgumentException("The window must be at least 1, but was " + window);
+        }
+        this.window = window;
+        this.maxBufferedBytes = maxBufferedBytes == -1 ? Long.MAX_VALUE : maxBufferedBytes;
+        this.fetcher = fetcher;
+        this.executor = executor;
+    }
+
+    /**
+     * Fetch the content for all inputs and deliver it to the consumer in input order.
+     * @param inputs   the inputs to fetch content for.
+     * @param consumer receives each input together with its content.
+     * @return the number of consumed results.
+     * @throws RuntimeException if a fetch failed. Checked exceptions are wrapped.
+     */
+    public long process(Iterator<? extends T> inputs, BiConsumer<T, byte[]> consumer) {
+        Deque<Pending<T>> pending = new ArrayDeque<>(window);
+        // Local, as cancelled fetches from a failed call might still complete after the call has returned
+        AtomicLong bufferedBytes = new AtomicLong(0);
+        long consumed = 0;
+        try {
+            while (true) {
+                // Fill the window, but always keep at least one fetch going to guarantee progress
+                while (inputs.hasNext() && pending.size() < window &&
+                       (pending.isEmpty() || bufferedBytes.get() < maxBufferedBytes)) {
+                    T input = inputs.next();
+                    pending.addLast(new Pending<>(input, executor.submit(() -> {
+                        byte[] content = fetcher.apply(input);
+                        updateObserved(bufferedBytes.addAndGet(content.length));
+                        return content;
+                    })));
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                Pending<T> head = pending.removeFirst();
+                byte[] content = await(head.future);
+                bufferedBytes.addAndGet(-content.length);
+                consumer.accept(head.input, content);
+                consumed++;
+            }
+        } finally {
+            // Only non-empty on failure
+            pending.forEach(p -> p.future.cancel(true));
+        }
+        log.debug("Fetched {} results with window {} and max observed buffer of {} bytes",
+                  consumed, window, maxObservedBufferedBytes);
+        return consumed;
+    }
+
+    private synchronized void updateObserved(long current) {
+        if (current > maxObservedBufferedBytes) {
+            maxObservedBufferedBytes = current;
+        }
+    }
+
+    /**
+     * @return the maximum amount of fetched but not yet consumed content observed during processing.
+     */
+    public synchronized long getMaxObservedBufferedBytes() {
+        return maxObservedBufferedBytes;
+    }
+
+    private static byte[] await(Future<byte[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for fetch", e);
+        } catch (CancellationException e) {
+            throw new RuntimeException("Fetch was cancelled", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ?
+                    (RuntimeException) cause :
+                    new RuntimeException("Exception fetching content", cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "OrderedFetcher(window=%d, maxBufferedBytes=%d)", window, maxBufferedBytes);
+    }
+
+    private static class Pending<T> {
+        final T input;
+        final Future<byte[]> future;
+
+        Pending(T input, Future<byte[]> future) {
+            this.input = input;
+            this.future = future;
+        }
+    }
+}
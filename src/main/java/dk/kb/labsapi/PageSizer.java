@@ -0,0 +1,124 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import java.util.Locale;
+
+/**
+ * Determines the number of rows to request for each page when paging through Solr results.
+ * <p>
+ * An adaptive sizer measures the size and latency of the received pages and adjusts the number of rows, aiming for
+ * pages of the target size that takes the target time to resolve, within the given bounds. This means that pages
+ * grow for thin field sets such as {@code recordID} only and shrink for heavy field sets such as full text.
+ * The number of rows at most doubles and at least quarters from one page to the next, to avoid oscillation.
+ * <p>
+ * A fixed sizer always returns the same number of rows but still updates the statistics.
+ * <p>
+ * The sizer is thread safe, so it can be shared between concurrent pagers for the same request.
+ */
+public class PageSizer {
+    private final int minRows;
+    private final int maxRows;
+    private final long targetBytes;
+    private final long targetMS;
+    private final PagingStats stats;
+    private int rows;
+
+    /**
+     * Create an adaptive sizer.
+     * @param initialRows the number of rows for the first page.
+     * @param minRows     the minimum number of rows for a page.
+     * @param maxRows     the maximum number of rows for a page.
+     * @param targetBytes the wanted estimated heap size of a page.
+     * @param targetMS    the wanted time for resolving a page.
+     * @param stats       statistics to update with the measurements. Can be null.
+     */
+    public PageSizer(int initialRows, int minRows, int maxRows, long targetBytes, long targetMS, PagingStats stats) {
+        if (minRows < 1 || maxRows < minRows) {
+            throw new IllegalArgumentException(
+                    "The rows must satisfy 1 <= minRows <= maxRows, but was minRows=" + minRows +
+                    ", maxRows=" + maxRows);
+        }
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+        this.targetBytes = targetBytes;
+        this.targetMS = targetMS;
+        this.stats = stats;
+        this.rows = clamp(initialRows, minRows, maxRows);
+    }
+
+    /**
+     * Create a sizer that always returns the same number of rows.
+     * @param rows  the number of rows for all pages.
+     * @param stats statistics to update with the measurements. Can be null.
+     * @return a fixed sizer.
+     */
+    public static PageSizer fixed(int rows, PagingStats stats) {
+        return new PageSizer(rows, rows, rows, Long.MAX_VALUE, Long.MAX_VALUE, stats);
+    }
+
+    /**
+     * @return the number of rows to request for the next page.
+     */
+    public synchronized int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return true if the number of rows is adjusted from measurements.
+     */
+    public boolean isAdaptive() {
+        return minRows != maxRows;
+    }
+
+    /**
+     * Weighing a page means visiting all values in the documents, so it is skipped if the bytes are not used.
+     * @return true if the bytes given to {@link #update} are used, either for sizing or for statistics.
+     */
+    public boolean isWeighing() {
+        return isAdaptive() || (stats != null && stats.isWeighing());
+    }
+
+    /**
+     * Adjust the number of rows based on the measurements for a received page.
+     * @param requestedRows the number of rows that was requested.
+     * @param docs          the number of documents in the page.
+     * @param bytes         the estimated heap size of the page. Only used if {@link #isWeighing()}.
+     * @param ms            the time it took to resolve the page.
+     */
+    public synchronized void update(int requestedRows, int docs, long bytes, long ms) {
+        if (stats != null) {
+            stats.record(requestedRows, docs, bytes, ms);
+        }
+        if (!isAdaptive() || docs == 0) {
+            return;
+        }
+        double idealByBytes = bytes <= 0 ? maxRows : 1.0 * targetBytes * docs / bytes;
+        double idealByTime = ms <= 0 ? maxRows : 1.0 * targetMS * docs / ms;
+        long ideal = (long) Math.min(idealByBytes, idealByTime);
+        ideal = Math.max(requestedRows/4, Math.min(ideal, requestedRows*2L));
+        rows = clamp(ideal, minRows, maxRows);
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(value, max));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "PageSizer(rows=%d, minRows=%d, maxRows=%d, targetBytes=%d, targetMS=%d)",
+                             rows, minRows, maxRows, targetBytes, targetMS);
+    }
+}
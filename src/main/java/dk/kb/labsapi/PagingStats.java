@@ -0,0 +1,129 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe statistics for the pages requested when paging through Solr results.
+ */
+public class PagingStats {
+    private final AtomicLong pages = new AtomicLong(0);
+    private final AtomicLong docs = new AtomicLong(0);
+    private final AtomicLong rows = new AtomicLong(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicLong ms = new AtomicLong(0);
+    private final AtomicLong minRows = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxRows = new AtomicLong(0);
+    private final boolean weighing;
+
+    /**
+     * Create statistics where the pages are weighed.
+     */
+    public PagingStats() {
+        this(true);
+    }
+
+    /**
+     * @param weighing if true, the pages should be weighed for the statistics. Weighing a page means visiting all
+     *                 values in the documents, so it should be disabled if the sizes are not needed.
+     */
+    public PagingStats(boolean weighing) {
+        this.weighing = weighing;
+    }
+
+    /**
+     * @return true if the pages should be weighed for the statistics.
+     */
+    public boolean isWeighing() {
+        return weighing;
+    }
+
+    /**
+     * Add the measurements for a single page.
+     * @param requestedRows the number of rows that was requested.
+     * @param docs          the number of documents in the page.
+     * @param bytes         the estimated heap size of the page.
+     * @param ms            the time it took to resolve the page.
+     */
+    public void record(int requestedRows, int docs, long bytes, long ms) {
+        pages.incrementAndGet();
+        this.docs.addAndGet(docs);
+        rows.addAndGet(requestedRows);
+        this.bytes.addAndGet(bytes);
+        this.ms.addAndGet(ms);
+        minRows.accumulateAndGet(requestedRows, Math::min);
+        maxRows.accumulateAndGet(requestedRows, Math::max);
+    }
+
+    /**
+     * @return the number of requested pages.
+     */
+    public long getPages() {
+        return pages.get();
+    }
+
+    /**
+     * @return the number of received documents.
+     */
+    public long getDocs() {
+        return docs.get();
+    }
+
+    /**
+     * @return the average number of requested rows per page.
+     */
+    public double getAverageRows() {
+        long p = pages.get();
+        return p == 0 ? 0 : 1.0 * rows.get() / p;
+    }
+
+    /**
+     * @return the smallest number of requested rows for a page or 0 if no pages has been requested.
+     */
+    public long getMinRows() {
+        return pages.get() == 0 ? 0 : minRows.get();
+    }
+
+    /**
+     * @return the largest number of requested rows for a page.
+     */
+    public long getMaxRows() {
+        return maxRows.get();
+    }
+
+    /**
+     * @return the average estimated heap size of a page or 0 if the pages are not weighed.
+     */
+    public double getAverageBytes() {
+        long p = pages.get();
+        return p == 0 ? 0 : 1.0 * bytes.get() / p;
+    }
+
+    /**
+     * @return the average time for resolving a page.
+     */
+    public double getAverageMS() {
+        long p = pages.get();
+        return p == 0 ? 0 : 1.0 * ms.get() / p;
+    }
+
+    @Override
+    public String toString() {
+        return "PagingStats{pages=" + getPages() + ", docs=" + getDocs() + ", averageRows=" + getAverageRows() +
+               ", minRows=" + getMinRows() + ", maxRows=" + getMaxRows() + ", averageBytes=" + getAverageBytes() +
+               ", averageMS=" + getAverageMS() + "}";
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Rough estimation of the heap size of Solr responses, used for weighing entries in {@link TimeCache}.
+ * <p>
+ * The estimates are based on typical 64 bit JVM object sizes with compressed references. They are not exact, but
+ * they are good enough for keeping the cache within a memory budget: A response with 1000 documents will be
+ * weighed as much larger than a response with a handful of facet counts.
+ */
+public class ResponseWeigher {
+    // Object header + a few fields
+    static final long OBJECT_OVERHEAD = 16;
+    static final long REFERENCE = 4;
+    // String object + backing byte array header
+    static final long STRING_OVERHEAD = 40;
+    // Entry in a hash based map (node object + table slot)
+    static final long MAP_ENTRY_OVERHEAD = 36;
+    // Protection against cyclic structures and extremely deep responses
+    static final int MAX_DEPTH = 20;
+
+    /**
+     * Estimate the heap size of the given QueryResponse.
+     * <p>
+     * QueryResponse holds both the raw NamedList response and parsed representations of parts of it. The parsed
+     * documents reference the same objects as the raw response, but parsed facets are copies, so the facet part
+     * is counted twice.
+     * @param response a Solr response.
+     * @return the estimated number of bytes on the heap retained by the response.
+     */
+    public static long weigh(QueryResponse response) {
+        if (response == null) {
+            return 0;
+        }
+        NamedList<Object> raw = response.getResponse();
+        long weight = OBJECT_OVERHEAD * 4 + estimate(raw, 0);
+        if (raw != null) {
+            weight += estimate(raw.get("facet_counts"), 0);
+            weight += estimate(raw.get("facets"), 0);
+        }
+        return weight;
+    }
+
+    /**
+     * Estimate the heap size of the given NamedList.
+     * @param response a Solr response.
+     * @return the estimated number of bytes on the heap retained by the response.
+     */
+    public static long weigh(NamedList<?> response) {
+        return estimate(response, 0);
+    }
+
+    /**
+     * Recursively estimate the heap size of the given object.
+     * @param o     a value from a Solr response.
+     * @param depth the current recursion depth.
+     * @return the estimated number of bytes on the heap retained by the object.
+     */
+    static long estimate(Object o, int depth) {
+        if (o == null) {
+            return 0;
+        }
+        if (depth > MAX_DEPTH) {
+            return OBJECT_OVERHEAD;
+        }
+        if (o instanceof String) {
+            // Latin-1 compact strings are the norm for Solr field values
+            return STRING_OVERHEAD + ((String)o).length();
+        }
+        if (o instanceof Number || o instanceof Boolean || o instanceof Date) {
+            return OBJECT_OVERHEAD + 8;
+        }
+        if (o instanceof NamedList) {
+            NamedList<?> list = (NamedList<?>)o;
+            // Backing ArrayList holds name and value alternately
+            long weight = OBJECT_OVERHEAD * 2 + list.size() * 2 * REFERENCE;
+            for (int i = 0 ; i < list.size() ; i++) {
+                weight += estimate(list.getName(i), depth+1);
+                weight += estimate(list.getVal(i), depth+1);
+            }
+            return weight;
+        }
+        if (o instanceof SolrDocument) {
+            // SolrDocument is backed by a LinkedHashMap
+            return estimateMap(((SolrDocument)o).getFieldValueMap().size(), ((SolrDocument)o), depth);
+        }
+        if (o instanceof Map) {
+            return estimateMap(((Map<?, ?>)o).size(), ((Map<?, ?>)o).entrySet(), depth);
+        }
+        if (o instanceof Collection) {
+            // Also covers SolrDocumentList
+            Collection<?> collection = (Collection<?>)o;
+            long weight = OBJECT_OVERHEAD * 2 + collection.size() * REFERENCE;
+            for (Object element: collection) {
+                weight += estimate(element, depth+1);
+            }
+            return weight;
+        }
+        if (o instanceof byte[]) {
+            return OBJECT_OVERHEAD + ((byte[])o).length;
+        }
+        if (o instanceof Object[]) {
+            Object[] array = (Object[])o;
+            long weight = OBJECT_OVERHEAD + array.length * REFERENCE;
+            for (Object element: array) {
+                weight += estimate(element, depth+1);
+            }
+            return weight;
+        }
+        return OBJECT_OVERHEAD * 2;
+    }
+
+    private static long estimateMap(int size, Iterable<? extends Map.Entry<?, ?>> entries, int depth) {
+        long weight = OBJECT_OVERHEAD * 3 + size * MAP_ENTRY_OVERHEAD;
+        for (Map.Entry<?, ?> entry: entries) {
+            weight += estimate(entry.getKey(), depth+1);
+            weight += estimate(entry.getValue(), depth+1);
+        }
+        return weight;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Checkpoint for an export using cursorMark paging, making it possible to continue an interrupted export from the
+ * page following the checkpoint instead of from the beginning.
+ * <p>
+ * The token holds the cursorMark for the next page, the number of documents delivered before the checkpoint and a
+ * hash of the export request, so that a token cannot be used for another query, field set or sort.
+ * The encoded form is URL safe.
+ */
+public class ResumeToken {
+    private static final String VERSION = "v1";
+
+    private final long count;
+    private final String cursorMark;
+    private final String requestHash;
+
+    /**
+     * @param count       the number of documents delivered before the checkpoint.
+     * @param cursorMark  the cursorMark for the page following the checkpoint.
+     * @param requestHash the hash of the export request, as calculated by {@link #hash(SolrParams)}.
+     */
+    public ResumeToken(long count, String cursorMark, String requestHash) {
+        this.count = count;
+        this.cursorMark = cursorMark;
+        this.requestHash = requestHash;
+    }
+
+    /**
+     * Calculate a hash for the parts of the request that determines the documents and their order.
+     * @param request an export request.
+     * @return a hash for the query, filters, fields and sort of the request.
+     */
+    public static String hash(SolrParams request) {
+        String[] filters = request.getParams(CommonParams.FQ);
+        String key = String.join("\n",
+                                 String.valueOf(request.get(CommonParams.Q)),
+                                 filters == null ? "" : Arrays.toString(filters),
+                                 String.valueOf(request.get(CommonParams.FL)),
+                                 String.valueOf(request.get(CommonParams.SORT)));
+        return Integer.toHexString(key.hashCode());
+    }
+
+    /**
+     * @return the token in URL safe form, intended for {@link #decode(String, SolrParams)}.
+     */
+    public String encode() {
+        String raw = VERSION + ":" + count + ":" + requestHash + ":" + cursorMark;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode the given token and verify that it was issued for the given request.
+     * @param token   a token produced by {@link #encode()}.
+     * @param request the export request that the token is used for.
+     * @return the decoded token.
+     * @throws InvalidArgumentServiceException if the token is malformed or was issued for another request.
+     */
+    public static ResumeToken decode(String token, SolrParams request) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8).split(":", 4);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException("Error: The resume token '" + token + "' is malformed");
+        }
+        if (parts.length != 4 || !VERSION.equals(parts[0]) || parts[3].isEmpty()) {
+            throw new InvalidArgumentServiceException("Error: The resume token '" + token + "' is malformed");
+        }
+        long count;
+        try {
+            count = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new InvalidArgumentServiceException("Error: The resume token '" + token + "' is malformed");
+        }
+        if (!hash(request).equals(parts[2])) {
+            throw new InvalidArgumentServiceException(
+                    "Error: The resume token '" + token + "' was issued for another query, field set or sort");
+        }
+        return new ResumeToken(count, parts[3], parts[2]);
+    }
+
+    /**
+     * @return the number of documents delivered before the checkpoint.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the cursorMark for the page following the checkpoint.
+     */
+    public String getCursorMark() {
+        return cursorMark;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "ResumeToken(count=%d, cursorMark='%s')", count, cursorMark);
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Iterates the pages for a list of disjoint shard requests, where the shards are paged concurrently using
+ * cursorMark paging and the pages are delivered shard by shard in the order of the given requests.
+ * <p>
+ * If the shard requests are ordered so that all documents in a shard sorts before the documents in the following
+ * shard, the pages are delivered in the global sort order. This is typically achieved by splitting on ranges of the
+ * primary sort field.
+ * <p>
+ * At most {@code parallelism} shards are paged at the same time: The shard currently being delivered and the
+ * following ones. Each shard holds at most {@code bufferPages} pages that are not yet delivered, after which it
+ * waits for delivery to catch up. Memory use is thus bounded by {@code parallelism * bufferPages} pages.
+ * Each shard is limited to the documents remaining of {@code max} when it is started.
+ * <p>
+ * {@link #close()} must be called if iteration is stopped before all pages are delivered.
+ */
+public class ShardedPager implements Iterator<QueryResponse>, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ShardedPager.class);
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ShardedPager-shard");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Signals that a shard has no more pages
+    private static final QueryResponse END = new QueryResponse();
+
+    private final long max;
+    private final int parallelism;
+    private final List<Shard> shards = new ArrayList<>();
+
+    private int current = 0;
+    private int started = 0;
+    private long delivered = 0;
+    private QueryResponse nextPage = null;
+    private boolean closed = false;
+
+    /**
+     * Create a pager for the given shard requests. No requests are issued before {@link #hasNext()} is called.
+     * @param shardRequests disjoint requests, ordered by their documents' position in the global sort order.
+     *                      The sort must end with a tie breaker.
+     * @param pageSize      the maximum number of documents in each page.
+     * @param max           the maximum number of documents to deliver in total. -1 means no limit.
+     * @param parallelism   the maximum number of shards to page concurrently.
+     * @param bufferPages   the maximum number of undelivered pages to hold for each shard.
+     * @param solrCall      performs the request against Solr. Must be thread safe.
+     */
+    public ShardedPager(List<SolrParams> shardRequests, int pageSize, long max, int parallelism, int bufferPages,
+                        Function<SolrParams, QueryResponse> solrCall) {
+        this(shardRequests, PageSizer.fixed(pageSize, null), max, parallelism, bufferPages, solrCall);
+    }
+
+    /**
+     * Create a pager for the given shard requests. No requests are issued before {@link #hasNext()} is called.
+     * @param shardRequests disjoint requests, ordered by their documents' position in the global sort order.
+     *                      The sort must end with a tie breaker.
+     * @param pageSizer     determines the number of documents in each page. Shared between the shards.
+     * @param max           the maximum number of documents to deliver in total. -1 means no limit.
+     * @param parallelism   the maximum number of shards to page concurrently.
+     * @param bufferPages   the maximum number of undelivered pages to hold for each shard.
+     * @param solrCall      performs the request against Solr. Must be thread safe.
+     */
+    public ShardedPager(List<SolrParams> shardRequests, PageSizer pageSizer, long max, int parallelism,
+                        int bufferPages, Function<SolrParams, QueryResponse> solrCall) {
+        this.max = max;
+        this.parallelism = Math.max(1, parallelism);
+        for (SolrParams request: shardRequests) {
+            shards.add(new Shard(request, pageSizer, Math.max(1, bufferPages), solrCall));
+        }
+    }
+
+    /**
+     * Checks that the shards for the given field can be delivered in the sort order.
+     * @param sort  a Solr sort, such as {@code py asc, id asc}.
+     * @param field the field to split on.
+     * @return true if the primary sort is ascending on the field.
+     */
+    public static boolean isAscendingOn(String sort, String field) {
+        if (sort == null || field == null) {
+            return false;
+        }
+        String[] primary = sort.split(",")[0].trim().split("\\s+");
+        return primary.length == 2 && primary[0].equals(field) && "asc".equalsIgnoreCase(primary[1]);
+    }
+
+    /**
+     * Split the request into shards on ranges of the given field, with the ranges sized from the facet counts
+     * so that the shards hold approximately the same number of documents.
+     * <p>
+     * The shards are only useful for a global sort order if the primary sort is ascending on the values of the field.
+     * @param request the request to split. The shards add a filter for their range of the field.
+     * @param field   a numeric single valued field, such as the publication year.
+     * @param facet   counts for the values of the field for the request, requested with {@code facet.missing=true}.
+     * @param max     the maximum number of documents to export. -1 means no limit.
+     * @param shards  the maximum number of shards to split into.
+     * @param minDocs the minimum number of documents to export before splitting.
+     * @return requests for the shards, ordered by the field values, or null if splitting is not possible or
+     *         the export is too small.
+     */
+    public static List<SolrParams> createRangeShards(
+            SolrParams request, String field, FacetField facet, long max, int shards, long minDocs) {
+        if (facet == null || facet.getValues() == null || shards < 2) {
+            return null;
+        }
+        List<long[]> valueCounts = new ArrayList<>();
+        for (FacetField.Count count: facet.getValues()) {
+            if (count.getCount() == 0) {
+                continue;
+            }
+            if (count.getName() == null) {
+                log.debug("Unable to split on field '{}' as {} documents are missing a value", field, count.getCount());
+                return null;
+            }
+            try {
+                valueCounts.add(new long[]{Long.parseLong(count.getName()), count.getCount()});
+            } catch (NumberFormatException e) {
+                log.debug("Unable to split on non-numeric value '{}' for field '{}'", count.getName(), field);
+                return null;
+            }
+        }
+        valueCounts.sort(Comparator.comparingLong(valueCount -> valueCount[0]));
+        long total = valueCounts.stream().mapToLong(valueCount -> valueCount[1]).sum();
+        long considered = max == -1 ? total : Math.min(max, total);
+        if (considered < minDocs) {
+            return null;
+        }
+
+        // Cut after the value where the accumulated count reaches the next multiple of the target.
+        // There is no need to cut if the documents up to the cut are enough to satisfy max
+        long target = (considered + shards - 1) / shards;
+        List<Long> cuts = new ArrayList<>();
+        long accumulated = 0;
+        for (int i = 0 ; i < valueCounts.size()-1 && cuts.size() < shards-1 ; i++) {
+            accumulated += valueCounts.get(i)[1];
+            if (accumulated >= considered) {
+                break;
+            }
+            if (accumulated >= target * (cuts.size()+1)) {
+                cuts.add(valueCounts.get(i)[0]);
+            }
+        }
+        if (cuts.isEmpty()) {
+            return null;
+        }
+
+        // The ranges are open ended at both ends so that no documents are lost if the index changes
+        List<SolrParams> shardRequests = new ArrayList<>(cuts.size()+1);
+        String lower = "*";
+        for (long cut: cuts) {
+            shardRequests.add(withFilter(request, field + ":[" + lower + " TO " + cut + "]"));
+            lower = Long.toString(cut+1);
+        }
+        shardRequests.add(withFilter(request, field + ":[" + lower + " TO *]"));
+        return shardRequests;
+    }
+
+    private static SolrParams withFilter(SolrParams request, String filter) {
+        ModifiableSolrParams shardRequest = new ModifiableSolrParams(request);
+        shardRequest.add(CommonParams.FQ, filter);
+        return shardRequest;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextPage != null) {
+            return true;
+        }
+        while (!closed && current < shards.size() && (max == -1 || delivered < max)) {
+            while (started < shards.size() && started < current + parallelism) {
+                // The earlier shards deliver at least the delivered documents, so no more than the rest is needed
+                executor.submit(shards.get(started++).limit(max == -1 ? -1 : max - delivered));
+            }
+            QueryResponse page = shards.get(current).take();
+            if (page == END) {
+                current++;
+                continue;
+            }
+            SolrDocumentList docs = page.getResults();
+            if (max != -1 && delivered + docs.size() > max) {
+                docs.subList((int) (max - delivered), docs.size()).clear();
+            }
+            delivered += docs.size();
+            nextPage = page;
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public QueryResponse next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more pages available");
+        }
+        QueryResponse page = nextPage;
+        nextPage = null;
+        return page;
+    }
+
+    /**
+     * Stop paging of all shards. Pages that are currently being requested are discarded when received.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        shards.forEach(Shard::cancel);
+    }
+
+    /**
+     * Pages through a single shard, buffering the pages until they are delivered.
+     */
+    private static class Shard implements Runnable {
+        private final SolrParams request;
+        private final PageSizer pageSizer;
+        private long max = -1;
+        private final Function<SolrParams, QueryResponse> solrCall;
+        private final BlockingQueue<QueryResponse> pages;
+        private volatile boolean cancelled = false;
+        private volatile RuntimeException failure = null;
+
+        Shard(SolrParams request, PageSizer pageSizer, int bufferPages,
+              Function<SolrParams, QueryResponse> solrCall) {
+            this.request = request;
+            this.pageSizer = pageSizer;
+            this.solrCall = solrCall;
+            this.pages = new ArrayBlockingQueue<>(bufferPages);
+        }
+
+        /**
+         * Set the maximum number of documents to request for the shard. Must be called before the shard is started.
+         * @param max the maximum number of documents. -1 means no limit.
+         * @return the shard, for chaining.
+         */
+        Shard limit(long max) {
+            this.max = max;
+            return this;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // The buffer takes the role of read-ahead
+                CursorPager pager = new CursorPager(request, pageSizer, max, 0, solrCall);
+                while (!cancelled && pager.hasNext()) {
+                    put(pager.next());
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new RuntimeException("Interrupted while paging shard " + request, e);
+            } finally {
+                try {
+                    put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Add the page to the buffer, waiting for space if the buffer is full.
+         */
+        private void put(QueryResponse page) throws InterruptedException {
+            while (!cancelled) {
+                if (pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the next page for the shard or {@link #END} if there are no more pages.
+         * @throws RuntimeException if paging the shard failed.
+         */
+        QueryResponse take() {
+            QueryResponse page;
+            try {
+                page = pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a page from shard " + request, e);
+            }
+            if (page == END && failure != null) {
+                throw new RuntimeException("Exception paging shard " + request, failure);
+            }
+            return page;
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (pages.size() > 0) {
+                log.debug("Discarding {} buffered pages for cancelled shard {}", pages.size(), request);
+            }
+            pages.clear();
+        }
+    }
+}
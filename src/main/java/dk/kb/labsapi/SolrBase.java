@@ -17,13 +17,19 @@ package dk.kb.labsapi;
 import dk.kb.labsapi.config.ServiceConfig;
 import dk.kb.util.yaml.YAML;
 import dk.kb.webservice.exception.InternalServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.io.SolrClientCache;
+import org.apache.solr.client.solrj.io.stream.SolrStream;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
 import org.apache.solr.client.solrj.request.json.JsonQueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.FacetParams;
@@ -35,8 +41,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
@@ -49,19 +58,108 @@ public class SolrBase {
     private static final Logger log = LoggerFactory.getLogger(SolrBase.class);
     protected final CachingSolrClient solrClient;
     protected final SolrClient rawSolrClient;
+    // The number of documents in each page when streaming documents with cursorMark paging
+    protected final int defaultPageSize;
+    // The number of pages to request ahead of the page being processed when paging. 0 means no read-ahead
+    protected final int readAhead;
+    // Adaptive page sizing when paging. If disabled, the given page sizes are used directly
+    private final boolean adaptivePaging;
+    private final int adaptiveMinRows;
+    private final int adaptiveMaxRows;
+    private final long adaptiveTargetBytes;
+    private final long adaptiveTargetMS;
+    private final PagingStats pagingStats;
+    // Used for streaming from the /export handler, which does not use the SolrClients above
+    private final String collectionURL;
+    // The filter added to all requests by the SolrClients
+    protected final String filter;
+    private final SolrClientCache exportClientCache = new SolrClientCache();
+    // Filter queries that have been checked for support with isFilterSupported
+    private final Map<String, Boolean> supportedFilters = new ConcurrentHashMap<>();
 
     public SolrBase(String configRoot) {
         this(resolveConfig(configRoot));
     }
     public SolrBase(YAML conf) {
         rawSolrClient = createRawClient(conf);
+        String solrURL = conf.getString(".solr.url");
+        collectionURL = solrURL + (solrURL.endsWith("/") ? "" : "/") + conf.getString(".solr.collection");
+        filter = conf.getString(".solr.filter", null);
         SolrClient innerSolrClient = createClient(conf);
+        int softMaxAgeMS = conf.getInteger(".solr.cache.softMaxAgeMS", -1);
         solrClient = new CachingSolrClient(
                 innerSolrClient,
-                conf.getInteger(".solr.connections", 3),
                 conf.getInteger(".solr.cache.maxEntries", 50),
-                conf.getInteger(".solr.cache.maxAgeMS", 1*60*1000)/1000
+                conf.getLong(".solr.cache.maxBytes", -1L),
+                conf.getInteger(".solr.cache.maxAgeMS", 1*60*1000)/1000,
+                softMaxAgeMS == -1 ? -1 : softMaxAgeMS/1000,
+                conf.getInteger(".solr.connections", 3)
         );
+        configureScheduler(solrClient.getScheduler(), conf);
+        if (conf.containsKey(".solr.cache.disk.folder")) {
+            solrClient.setDiskCache(createDiskCache(conf));
+        }
+        long indexVersionPollMS = conf.getLong(".solr.cache.indexVersionPollMS", -1L);
+        if (indexVersionPollMS > 0) {
+            solrClient.startIndexVersionPolling(indexVersionPollMS);
+        }
+        defaultPageSize = conf.getInteger(".solr.paging.pageSize", 1000);
+        readAhead = conf.getInteger(".solr.paging.readAhead", 1);
+        adaptivePaging = conf.getBoolean(".solr.paging.adaptive.enabled", false);
+        adaptiveMinRows = conf.getInteger(".solr.paging.adaptive.minRows", 50);
+        adaptiveMaxRows = conf.getInteger(".solr.paging.adaptive.maxRows", 10000);
+        adaptiveTargetBytes = conf.getLong(".solr.paging.adaptive.targetBytes", 4*1024*1024L);
+        adaptiveTargetMS = conf.getLong(".solr.paging.adaptive.targetMS", 1000L);
+        // The pages are weighed anyway for adaptive paging. If not, weighing only for statistics is too costly
+        pagingStats = new PagingStats(adaptivePaging);
+    }
+
+    /**
+     * Adjust the connection scheduler with the priority settings from the given configuration.
+     * Settings that are not specified keeps their defaults.
+     * @param scheduler the scheduler to adjust.
+     * @param conf      the configuration for the Solr client.
+     */
+    private void configureScheduler(SolrConnectionScheduler scheduler, YAML conf) {
+        scheduler.setRetryAfterSeconds(conf.getInteger(".solr.scheduler.retryAfterSeconds", 5));
+        for (SolrConnectionScheduler.PRIORITY priority: SolrConnectionScheduler.PRIORITY.values()) {
+            String key = ".solr.scheduler." + priority;
+            if (!conf.containsKey(key)) {
+                continue;
+            }
+            YAML pConf = conf.getSubMap(key);
+            scheduler.configure(priority,
+                                pConf.getInteger(".weight"),
+                                pConf.getInteger(".maxConnections", -1),
+                                pConf.getInteger(".maxQueue"),
+                                pConf.getLong(".maxWaitMS"));
+        }
+        log.info("Created " + scheduler);
+    }
+
+    /**
+     * Setup the persistent second level cache based on the given configuration.
+     * @param conf the configuration for the Solr client.
+     * @return a DiskCache ready for use.
+     */
+    private DiskCache createDiskCache(YAML conf) {
+        Path folder = Path.of(conf.getString(".solr.cache.disk.folder"));
+        try {
+            return new DiskCache(folder,
+                                 conf.getLong(".solr.cache.disk.maxBytes", -1L),
+                                 conf.getLong(".solr.cache.disk.maxAgeMS", -1L),
+                                 conf.getString(".solr.cache.disk.indexVersion", null),
+                                 conf.getLong(".solr.cache.indexVersionPollMS", -1L) > 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create disk cache in folder '" + folder + "'", e);
+        }
+    }
+
+    /**
+     * @return the caching SolrClient used for filtered requests. Intended for statistics and management.
+     */
+    public CachingSolrClient getSolrClient() {
+        return solrClient;
     }
 
     private static YAML resolveConfig(String configRoot) {
@@ -109,7 +207,8 @@ public class SolrBase {
 
     /**
      * Performs paging searches for the given baseRequest, expanding the returned {@link SolrDocument}s
-     * and feeding them to the processor.
+     * and feeding them to the processor. The next pages are requested while the current page is processed:
+     * See {@link CursorPager}.
      * @param baseRequest query, filters etc. {@link CursorMarkParams#CURSOR_MARK_START} will be automatically added.
      * @param pageSize    the number of SolrDocuments to fetch for each request.
      * @param max         the maximum number of SolrDocuments to process.
@@ -125,26 +224,201 @@ public class SolrBase {
             SolrParams baseRequest, int pageSize, long max, Consumer<SolrDocument> processor,
             Function<SolrDocument, SolrDocument> responseExpander)
             throws IOException, SolrServerException {
-        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
-        ModifiableSolrParams request = new ModifiableSolrParams(baseRequest);
-        AtomicLong counter = new AtomicLong(0);
-        while (max == -1 || counter.get() < max) {
-            int rows = (int) Math.min(pageSize, max == -1 ? Integer.MAX_VALUE : max - counter.get());
-            request.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
-            request.set(CommonParams.ROWS, rows);
-            QueryResponse response;
-            response = callSolr(request);
+        return searchAndProcess(baseRequest, pageSize, CursorMarkParams.CURSOR_MARK_START, max,
+                                processor, responseExpander, null);
+    }
+
+    /**
+     * Performs paging searches for the given baseRequest, starting from the given cursorMark, expanding the returned
+     * {@link SolrDocument}s and feeding them to the processor. The next pages are requested while the current page
+     * is processed: See {@link CursorPager}.
+     * @param baseRequest     query, filters etc.
+     * @param pageSize        the number of SolrDocuments to fetch for each request.
+     * @param startCursorMark the cursorMark for the first page, typically from a previous, interrupted paging.
+     * @param max             the maximum number of SolrDocuments to process.
+     * @param processor       received each retrieved and expanded SolrDocument.
+     * @param responseExpander optionally transforms responses from Solr requests.
+     *                         If the responseExpander is null, it is ignored.
+     *                         If the responseExpander returns null, the response is skipped.
+     * @param checkpoint      optionally receives the cursorMark for the next page and the number of retrieved
+     *                        documents after each page has been processed. Can be null.
+     * @return the number of processed documents.
+     */
+    protected long searchAndProcess(
+            SolrParams baseRequest, int pageSize, String startCursorMark, long max, Consumer<SolrDocument> processor,
+            Function<SolrDocument, SolrDocument> responseExpander, BiConsumer<String, Long> checkpoint) {
+        return processPages(new CursorPager(baseRequest, createPageSizer(pageSize), startCursorMark, max, readAhead,
+                                            this::callSolrUncached),
+                            processor, responseExpander, checkpoint);
+    }
+
+    /**
+     * Performs paging searches for the given baseRequest, expanding the returned {@link SolrDocument}s
+     * and feeding them to the processor as they are parsed from the responses: See {@link CursorStreamer}.
+     * <p>
+     * Contrary to {@link #searchAndProcess}, the pages are not materialised, so the heap needed is bounded by a
+     * single document instead of a page of documents. There is no read-ahead.
+     * @param baseRequest query, filters etc. {@link CursorMarkParams#CURSOR_MARK_START} will be automatically added.
+     * @param pageSize    the number of SolrDocuments to fetch for each request.
+     * @param max         the maximum number of SolrDocuments to process.
+     * @param processor   received each retrieved and expanded SolrDocument.
+     * @param responseExpander optionally transforms responses from Solr requests.
+     *                         If the responseExpander is null, it is ignored.
+     *                         If the responseExpander returns null, the response is skipped.
+     * @return the number of processed documents.
+     */
+    protected long searchAndProcessStreaming(
+            SolrParams baseRequest, int pageSize, long max, Consumer<SolrDocument> processor,
+            Function<SolrDocument, SolrDocument> responseExpander) {
+        return searchAndProcessStreaming(baseRequest, pageSize, CursorMarkParams.CURSOR_MARK_START, max,
+                                         processor, responseExpander, null);
+    }
+
+    /**
+     * Performs paging searches for the given baseRequest, starting from the given cursorMark, expanding the returned
+     * {@link SolrDocument}s and feeding them to the processor as they are parsed from the responses:
+     * See {@link CursorStreamer}.
+     * @param baseRequest     query, filters etc.
+     * @param pageSize        the number of SolrDocuments to fetch for each request.
+     * @param startCursorMark the cursorMark for the first page, typically from a previous, interrupted paging.
+     * @param max             the maximum number of SolrDocuments to process.
+     * @param processor       received each retrieved and expanded SolrDocument.
+     * @param responseExpander optionally transforms responses from Solr requests.
+     *                         If the responseExpander is null, it is ignored.
+     *                         If the responseExpander returns null, the response is skipped.
+     * @param checkpoint      optionally receives the cursorMark for the next page and the number of retrieved
+     *                        documents after each page has been processed. Can be null.
+     * @return the number of processed documents.
+     */
+    protected long searchAndProcessStreaming(
+            SolrParams baseRequest, int pageSize, String startCursorMark, long max, Consumer<SolrDocument> processor,
+            Function<SolrDocument, SolrDocument> responseExpander, BiConsumer<String, Long> checkpoint) {
+        CursorStreamer streamer = new CursorStreamer(
+                baseRequest, createPageSizer(pageSize), startCursorMark, max, solrClient::queryStreaming);
+        return streamer.process(doc -> {
+            SolrDocument expanded = responseExpander == null ? doc : responseExpander.apply(doc);
+            if (expanded != null) {
+                processor.accept(expanded);
+            }
+        }, checkpoint);
+    }
+
+    /**
+     * Create a streamer for the {@code /export} handler for the given request: See {@link ExportStreamer}.
+     * The filter for the Solr client is added to the request.
+     * @param request query, filters, sort and fields. All fields and sort fields must have docValues.
+     * @param max     the maximum number of SolrDocuments to deliver.
+     * @return a streamer ready for use with {@link #exportAndProcess}.
+     */
+    protected ExportStreamer createExportStreamer(SolrParams request, long max) {
+        return new ExportStreamer(request, max, this::createExportStream);
+    }
+
+    /**
+     * Streams all documents from the given streamer, expanding them and feeding them to the processor.
+     * A single connection is acquired for the full duration of the export. As the documents are delivered to the
+     * processor while Solr streams them, the connection is also held while the processor writes to the client.
+     * @param streamer  a streamer from {@link #createExportStreamer}.
+     * @param processor received each retrieved and expanded SolrDocument.
+     * @param responseExpander optionally transforms responses from Solr requests.
+     *                         If the responseExpander is null, it is ignored.
+     *                         If the responseExpander returns null, the response is skipped.
+     * @return the number of processed documents.
+     * @throws UncheckedIOException if the export could not be completed.
+     *         Use {@link ExportStreamer#getDelivered()} to determine whether any documents were processed.
+     */
+    protected long exportAndProcess(ExportStreamer streamer, Consumer<SolrDocument> processor,
+                                    Function<SolrDocument, SolrDocument> responseExpander) {
+        return solrClient.uncachedSolrCall(() -> {
+            try {
+                return streamer.process(doc -> {
+                    SolrDocument expanded = responseExpander == null ? doc : responseExpander.apply(doc);
+                    if (expanded != null) {
+                        processor.accept(expanded);
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException("Exception streaming " + streamer, e);
+            }
+        });
+    }
+
+    private TupleStream createExportStream(SolrParams request) {
+        ModifiableSolrParams params = new ModifiableSolrParams(request);
+        if (filter != null) {
+            params.add(CommonParams.FQ, filter);
+        }
+        SolrStream stream = new SolrStream(collectionURL, params);
+        StreamContext context = new StreamContext();
+        context.setSolrClientCache(exportClientCache);
+        stream.setStreamContext(context);
+        return stream;
+    }
+
+    /**
+     * Performs concurrent paging searches for the given disjoint shard requests, expanding the returned
+     * {@link SolrDocument}s and feeding them to the processor in the order of the shards: See {@link ShardedPager}.
+     * @param shardRequests disjoint requests, ordered by their documents' position in the global sort order.
+     * @param pageSize      the number of SolrDocuments to fetch for each request.
+     * @param max           the maximum number of SolrDocuments to process.
+     * @param parallelism   the maximum number of shards to page concurrently.
+     * @param bufferPages   the maximum number of undelivered pages to hold for each shard.
+     * @param processor     received each retrieved and expanded SolrDocument.
+     * @param responseExpander optionally transforms responses from Solr requests.
+     *                         If the responseExpander is null, it is ignored.
+     *                         If the responseExpander returns null, the response is skipped.
+     * @return the number of processed documents.
+     */
+    protected long searchAndProcessSharded(
+            List<SolrParams> shardRequests, int pageSize, long max, int parallelism, int bufferPages,
+            Consumer<SolrDocument> processor, Function<SolrDocument, SolrDocument> responseExpander) {
+        try (ShardedPager pages = new ShardedPager(
+                shardRequests, createPageSizer(pageSize), max, parallelism, bufferPages, this::callSolrUncached)) {
+            return processPages(pages, processor, responseExpander, null);
+        }
+    }
+
+    /**
+     * @param initialRows the number of rows for the first page.
+     * @return an adaptive page sizer if adaptive paging is enabled, else a sizer always returning initialRows.
+     */
+    protected PageSizer createPageSizer(int initialRows) {
+        return adaptivePaging ?
+                new PageSizer(initialRows, adaptiveMinRows, adaptiveMaxRows,
+                              adaptiveTargetBytes, adaptiveTargetMS, pagingStats) :
+                PageSizer.fixed(initialRows, pagingStats);
+    }
+
+    /**
+     * @return statistics for the pages requested when paging through Solr results.
+     */
+    public PagingStats getPagingStats() {
+        return pagingStats;
+    }
+
+    /**
+     * @return true if the number of rows for each page is adjusted from measurements when paging.
+     */
+    public boolean isAdaptivePaging() {
+        return adaptivePaging;
+    }
+
+    private long processPages(Iterator<QueryResponse> pages, Consumer<SolrDocument> processor,
+                              Function<SolrDocument, SolrDocument> responseExpander,
+                              BiConsumer<String, Long> checkpoint) {
+        long counter = 0;
+        while (pages.hasNext()) {
+            QueryResponse response = pages.next();
             response.getResults().stream()
                     .map(doc -> responseExpander == null ? doc : responseExpander.apply(doc))
                     .filter(Objects::nonNull)
                     .forEach(processor);
-            counter.addAndGet(response.getResults().size());
-            if (cursorMark.equals(response.getNextCursorMark()) || (max != -1 && counter.get() >= max)) {
-                return counter.get();
+            counter += response.getResults().size();
+            if (checkpoint != null && response.getNextCursorMark() != null) {
+                checkpoint.accept(response.getNextCursorMark(), counter);
             }
-            cursorMark = response.getNextCursorMark();
         }
-        return counter.get();
+        return counter;
     }
     protected void initialSolrCall(SolrParams request, Consumer<SolrDocument> processor,
                                    Function<SolrDocument, SolrDocument> responseExpander) throws Exception {
@@ -186,30 +460,32 @@ public class SolrBase {
      * https://solr.apache.org/guide/8_10/pagination-of-results.html#fetching-a-large-number-of-sorted-results-cursors
      * To facilitate this the {@code rows} parameter is ignored. If the result set should be limited in size, it must
      * happen in the calling code.
+     * <p>
+     * Pages of {@link #defaultPageSize} documents are requested with {@link #readAhead} pages requested in the
+     * background while the current page is processed.
      * @param baseRequest the request to Solr.
      * @return an iterator of {@link SolrDocument}s.
      */
     private Iterator<SolrDocument> iterateSolr(SolrParams baseRequest) {
         ModifiableSolrParams request = new ModifiableSolrParams(baseRequest);
-        request.set(CommonParams.ROWS, 1000); // TODO: Make the batch size configurable
         String sort = request.get(CommonParams.SORT);
         if (sort != null && !sort.isEmpty()) {
             request.set(CommonParams.SORT, sort + ", recordID asc"); // Tie breaker
         } else {
             request.set(CommonParams.SORT, "recordID asc"); // Tie breaker
         }
+        CursorPager pages = new CursorPager(
+                request, createPageSizer(defaultPageSize), -1, readAhead, this::callSolrUncached);
 
         return new Iterator<>() {
-            final LinkedList<SolrDocument> docs = new LinkedList<>();
-            boolean hasMoreRemoteDocs = true;
-            String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+            Iterator<SolrDocument> docs = Collections.emptyIterator();
 
             @Override
             public boolean hasNext() {
-                if (docs.isEmpty() && hasMoreRemoteDocs) {
-                    fillDocs();
+                while (!docs.hasNext() && hasNextPage()) {
+                    docs = pages.next().getResults().iterator();
                 }
-                return !docs.isEmpty();
+                return docs.hasNext();
             }
 
             @Override
@@ -217,35 +493,16 @@ public class SolrBase {
                 if (!hasNext()) {
                     throw new NoSuchElementException("No more documents available");
                 }
-                return docs.removeFirst();
+                return docs.next();
             }
 
-            private void fillDocs() {
-                if (!hasMoreRemoteDocs) {
-                    return;
-                }
-
-                request.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark); // Adjust request for next page
-
-                QueryResponse response;
+            private boolean hasNextPage() {
                 try {
-                    response = callSolr(request);
+                    return pages.hasNext();
                 } catch (Exception e) {
                     throw new RuntimeException("Exception performing streaming export for " + baseRequest, e);
                 }
-                docs.addAll(response.getResults());
-
-                if (docs.isEmpty()) {
-                    hasMoreRemoteDocs = false;
-                    return;
-                }
-
-                if (cursorMark.equals(response.getNextCursorMark())) { // Last page
-                    hasMoreRemoteDocs = false;
-                }
-                cursorMark = response.getNextCursorMark(); // Ready for next page
             }
-
         };
     }
 
@@ -259,6 +516,17 @@ public class SolrBase {
         return callSolr(request, false);
     }
 
+    /**
+     * Performs a Solr call for the given request, ensuring that the maximum amount of concurrent connections are obeyed.
+     * The response is not cached. Used for deep paging where each page is only requested once.
+     * @param request the request to Solr.
+     * @return the response from Solr.
+     * @throws RuntimeException if the Solr call could not be completed.
+     */
+    protected QueryResponse callSolrUncached(SolrParams request) {
+        return solrClient.queryUncached(request);
+    }
+
     /**
      * Performs a Solr call for the given request, ensuring that the maximum amount of concurrent connections are obeyed.
      * @param request the request to Solr.
@@ -312,6 +580,8 @@ public class SolrBase {
         try {
             QueryResponse response = callSolr(request, useRaw);
             return response.getResults().getNumFound();
+        } catch (ServiceUnavailableServiceException e) {
+            throw e; // Rejected by the connection scheduler
         } catch (Exception e) {
             log.warn("Exception calling Solr for countHits(" + query + ")", e);
             throw new InternalServiceException(
@@ -319,6 +589,42 @@ public class SolrBase {
         }
     }
 
+    /**
+     * Check whether Solr accepts the given filter query. Used for filters that depend on the Solr setup, such as
+     * {@code {!collapse field=pageUUID}}, which requires a single valued field with docValues.
+     * <p>
+     * The answer is remembered if Solr responded. If Solr could not be reached, false is returned and the check is
+     * retried on next call.
+     * @param filterQuery a Solr filter query.
+     * @return true if Solr accepted a request with the filter query.
+     */
+    public boolean isFilterSupported(String filterQuery) {
+        Boolean supported = supportedFilters.get(filterQuery);
+        if (supported != null) {
+            return supported;
+        }
+        SolrQuery request = new SolrQuery(
+                CommonParams.Q, "*:*",
+                FacetParams.FACET, "false",
+                GroupParams.GROUP, "false",
+                HighlightParams.HIGHLIGHT, "false",
+                CommonParams.ROWS, Integer.toString(0));
+        request.setFilterQueries(filterQuery);
+        try {
+            // The probe is not an export page, so it should neither take a bulk connection nor count as bypassed
+            solrClient.queryBackground(request);
+            supported = true;
+        } catch (SolrException e) {
+            log.info("Solr does not support the filter query '{}': {}", filterQuery, e.getMessage());
+            supported = false;
+        } catch (Exception e) {
+            log.warn("Unable to check Solr support for the filter query '" + filterQuery + "'", e);
+            return false;
+        }
+        supportedFilters.put(filterQuery, supported);
+        return supported;
+    }
+
     /**
      * Sanitize the given Solr query against the most obvious tricks (regexp bombs and behaviour modification).
      * @param query a Solr query.
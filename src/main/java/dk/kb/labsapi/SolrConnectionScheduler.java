@@ -0,0 +1,364 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Scheduler for a limited number of connections to Solr, shared between requests of different priority.
+ * <p>
+ * Each {@link PRIORITY} has a weight, a maximum number of concurrent connections, a maximum queue length and a
+ * maximum wait time. When connections are contended, they are handed out to the waiting priorities in proportion
+ * to their weights (stride scheduling), so that cheap interactive requests are not starved by long running exports
+ * and vice versa. Requests that cannot be queued or that are not granted a connection within their maximum wait time
+ * are rejected with a {@link ServiceUnavailableServiceException} carrying a Retry-After hint.
+ * <p>
+ * The priority for the current thread is set with {@link #callWithPriority(PRIORITY, Supplier)} and defaults to
+ * {@link PRIORITY#interactive}.
+ */
+public class SolrConnectionScheduler {
+    private static final Logger log = LoggerFactory.getLogger(SolrConnectionScheduler.class);
+
+    /**
+     * interactive: Small requests from users waiting for the answer, such as hit counts and timelines.<br>
+     * bulk: Pages in exports.<br>
+     * background: Cache refreshes, warm-up and other requests without users waiting for them.
+     */
+    public enum PRIORITY { interactive, bulk, background }
+
+    private static final ThreadLocal<PRIORITY> threadPriority = ThreadLocal.withInitial(() -> PRIORITY.interactive);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxConnections;
+    private final Lane[] lanes;
+    private int available;
+    private int retryAfterSeconds = 5;
+    // The pass of the latest granted connection. Used for lanes that become backlogged after being idle
+    private double virtualTime = 0;
+
+    /**
+     * Create a scheduler with default settings for the priorities.
+     * @param maxConnections the maximum number of concurrent connections. -1 means no limit.
+     */
+    public SolrConnectionScheduler(int maxConnections) {
+        this.maxConnections = maxConnections == -1 ? Integer.MAX_VALUE : maxConnections;
+        available = this.maxConnections;
+        int reduced = Math.max(1, this.maxConnections == Integer.MAX_VALUE ?
+                this.maxConnections : this.maxConnections-1);
+        lanes = new Lane[PRIORITY.values().length];
+        lanes[PRIORITY.interactive.ordinal()] = new Lane(PRIORITY.interactive, 6, this.maxConnections, 100, 10*1000);
+        lanes[PRIORITY.bulk.ordinal()] = new Lane(PRIORITY.bulk, 3, reduced, 50, 5*60*1000);
+        lanes[PRIORITY.background.ordinal()] = new Lane(PRIORITY.background, 1, reduced, 20, 60*1000);
+    }
+
+    /**
+     * Adjust the settings for a priority.
+     * @param priority       the priority to adjust.
+     * @param weight         the relative share of connections when connections are contended. Must be at least 1.
+     * @param maxConnections the maximum number of concurrent connections for the priority. -1 means no limit.
+     * @param maxQueue       the maximum number of requests waiting for a connection. Further requests are rejected.
+     * @param maxWaitMS      the maximum time to wait for a connection before the request is rejected.
+     * @return the scheduler, for chaining.
+     */
+    public SolrConnectionScheduler configure(PRIORITY priority, int weight, int maxConnections,
+                                             int maxQueue, long maxWaitMS) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("The weight must be at least 1, but was " + weight);
+        }
+        lock.lock();
+        try {
+            Lane lane = lanes[priority.ordinal()];
+            lane.weight = weight;
+            lane.maxConnections = maxConnections == -1 ? Integer.MAX_VALUE : maxConnections;
+            lane.maxQueue = maxQueue;
+            lane.maxWaitMS = maxWaitMS;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * @param retryAfterSeconds the number of seconds that rejected clients are asked to wait before retrying.
+     * @return the scheduler, for chaining.
+     */
+    public SolrConnectionScheduler setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Perform the call with the given priority for all connections acquired by the current thread.
+     * The previous priority for the thread is restored afterwards.
+     * @param priority the priority to use.
+     * @param call     the call to perform.
+     * @return the result of the call.
+     */
+    public static <T> T callWithPriority(PRIORITY priority, Supplier<T> call) {
+        PRIORITY previous = threadPriority.get();
+        threadPriority.set(priority);
+        try {
+            return call.get();
+        } finally {
+            threadPriority.set(previous);
+        }
+    }
+
+    /**
+     * @return the priority for connections acquired by the current thread.
+     */
+    public static PRIORITY getThreadPriority() {
+        return threadPriority.get();
+    }
+
+    /**
+     * Acquire a connection with the priority for the current thread.
+     * Callers must call {@link #release(PRIORITY)} with the returned priority after use.
+     * @return the priority that the connection was acquired with.
+     * @throws ServiceUnavailableServiceException if the request was rejected.
+     */
+    public PRIORITY acquire() {
+        PRIORITY priority = getThreadPriority();
+        acquire(priority);
+        return priority;
+    }
+
+    /**
+     * Acquire a connection with the given priority, blocking until one is available, the maximum wait time is
+     * exceeded or the queue for the priority is full.
+     * Callers must call {@link #release(PRIORITY)} with the same priority after use.
+     * @param priority the priority for the request.
+     * @throws ServiceUnavailableServiceException if the request was rejected.
+     */
+    public void acquire(PRIORITY priority) {
+        Lane lane = lanes[priority.ordinal()];
+        lock.lock();
+        try {
+            if (lane.queue.isEmpty() && available > 0 && lane.active < lane.maxConnections) {
+                // An idle lane does not keep the credit from before it became idle
+                lane.pass = Math.max(lane.pass, virtualTime);
+                grant(lane);
+                return;
+            }
+            if (lane.queue.size() >= lane.maxQueue) {
+                throw reject(lane, "queue full with " + lane.queue.size() + " waiting requests");
+            }
+            if (lane.queue.isEmpty()) {
+                lane.pass = Math.max(lane.pass, virtualTime);
+            }
+            Waiter waiter = new Waiter(lock.newCondition());
+            lane.queue.add(waiter);
+            long remainingNS = TimeUnit.MILLISECONDS.toNanos(lane.maxWaitMS);
+            try {
+                while (!waiter.granted && remainingNS > 0) {
+                    remainingNS = waiter.condition.awaitNanos(remainingNS);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    Thread.currentThread().interrupt();
+                    return; // The caller will release the connection as usual
+                }
+                lane.queue.remove(waiter);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a " + priority + " connection", e);
+            }
+            if (!waiter.granted) {
+                lane.queue.remove(waiter);
+                throw reject(lane, "no connection available within " + lane.maxWaitMS + " ms");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release a connection previously acquired with the given priority.
+     * @param priority the priority that the connection was acquired with.
+     */
+    public void release(PRIORITY priority) {
+        Lane lane = lanes[priority.ordinal()];
+        lock.lock();
+        try {
+            lane.active--;
+            available++;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hand out available connections to the waiting lane with the lowest pass, until there are no more available
+     * connections or no eligible waiting lanes. Must be called with the lock held.
+     */
+    private void dispatch() {
+        while (available > 0) {
+            Lane next = null;
+            for (Lane lane: lanes) {
+                if (!lane.queue.isEmpty() && lane.active < lane.maxConnections &&
+                    (next == null || lane.pass < next.pass)) {
+                    next = lane;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            Waiter waiter = next.queue.poll();
+            waiter.granted = true;
+            grant(next);
+            waiter.condition.signal();
+        }
+    }
+
+    private void grant(Lane lane) {
+        available--;
+        lane.active++;
+        lane.acquires.incrementAndGet();
+        virtualTime = Math.max(virtualTime, lane.pass);
+        lane.pass += 1.0/lane.weight;
+    }
+
+    private ServiceUnavailableServiceException reject(Lane lane, String reason) {
+        lane.rejections.incrementAndGet();
+        String message = String.format(Locale.ROOT, "Solr is busy: The %s request was rejected as there was %s",
+                                       lane.priority, reason);
+        log.debug(message);
+        return new ServiceUnavailableServiceException(message, retryAfterSeconds);
+    }
+
+    /**
+     * @return the number of connections that are not in use.
+     */
+    public int getAvailable() {
+        lock.lock();
+        try {
+            return available;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the maximum number of concurrent connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param priority a priority.
+     * @return the number of requests with the given priority that are waiting for a connection.
+     */
+    public int getQueued(PRIORITY priority) {
+        lock.lock();
+        try {
+            return lanes[priority.ordinal()].queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param priority a priority.
+     * @return the number of connections acquired with the given priority.
+     */
+    public long getAcquires(PRIORITY priority) {
+        return lanes[priority.ordinal()].acquires.get();
+    }
+
+    /**
+     * @param priority a priority.
+     * @return the number of rejected requests with the given priority.
+     */
+    public long getRejections(PRIORITY priority) {
+        return lanes[priority.ordinal()].rejections.get();
+    }
+
+    /**
+     * @return the total number of rejected requests.
+     */
+    public long getRejections() {
+        long total = 0;
+        for (Lane lane: lanes) {
+            total += lane.rejections.get();
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SolrConnectionScheduler(available/max=").append(getAvailable()).append("/").append(maxConnections);
+        for (Lane lane: lanes) {
+            sb.append(", ").append(lane);
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * A request waiting for a connection.
+     */
+    private static class Waiter {
+        final Condition condition;
+        boolean granted = false;
+
+        Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * Settings, state and statistics for a single priority. The state is guarded by the scheduler lock.
+     */
+    private static class Lane {
+        final PRIORITY priority;
+        final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        final AtomicLong acquires = new AtomicLong(0);
+        final AtomicLong rejections = new AtomicLong(0);
+        int weight;
+        int maxConnections;
+        int maxQueue;
+        long maxWaitMS;
+        int active = 0;
+        double pass = 0;
+
+        Lane(PRIORITY priority, int weight, int maxConnections, int maxQueue, long maxWaitMS) {
+            this.priority = priority;
+            this.weight = weight;
+            this.maxConnections = maxConnections;
+            this.maxQueue = maxQueue;
+            this.maxWaitMS = maxWaitMS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s(weight=%d, maxConnections=%d, maxQueue=%d, maxWaitMS=%d, " +
+                                              "active=%d, queued=%d, acquires=%d, rejections=%d)",
+                                 priority, weight, maxConnections, maxQueue, maxWaitMS,
+                                 active, queue.size(), acquires.get(), rejections.get());
+        }
+    }
+}
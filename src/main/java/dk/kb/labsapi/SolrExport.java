@@ -20,6 +20,7 @@ import dk.kb.labsapi.config.ServiceConfig;
 import dk.kb.util.yaml.YAML;
 import dk.kb.webservice.exception.InternalServiceException;
 import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.QuoteMode;
@@ -38,12 +39,17 @@ import javax.xml.stream.XMLStreamWriter;
 import java.io.*;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -66,16 +72,47 @@ public class SolrExport extends SolrBase {
     private final int pageSize;
     private final String linkPrefix;
     private final String exportSort;
+    // If true, sequential exports stream the documents from the Solr responses instead of materialising pages
+    private final boolean streaming;
+    // If true, unlimited exports where all fields have docValues uses the /export handler
+    private final boolean exportHandler;
+    private final Set<String> docValuesFields;
 
     private final int minYear;
     private final int maxYear;
 
+    // Parallel export by splitting into shards on ranges of shardField. Disabled if shards <= 1
+    private final int shards;
+    private final String shardField;
+    private final long shardMinHits;
+    private final int shardConnections;
+    private final int shardBufferPages;
+
+    private final ExportStore store;
+
     public SolrExport() {
         super(".labsapi.aviser");
         YAML conf = ServiceConfig.getConfig().getSubMap(".labsapi.aviser.export");
         pageSize = conf.getInteger(".solr.pagesize", 500);
         linkPrefix = conf.getString(".link.prefix", LINK_PREFIX_DEFAULT);
         exportSort = conf.getString(".solr.sort");
+        streaming = conf.getBoolean(".solr.streaming", false);
+        exportHandler = conf.getBoolean(".exportHandler.enabled", false);
+        docValuesFields = conf.containsKey(".exportHandler.docValuesFields") ?
+                new HashSet<>(conf.getList(".exportHandler.docValuesFields")) :
+                Collections.emptySet();
+        shardField = conf.getString(".parallel.field", "py");
+        int shards = conf.getInteger(".parallel.shards", 1);
+        if (shards > 1 && exportSort != null && !ShardedPager.isAscendingOn(exportSort, shardField)) {
+            log.warn("Disabling parallel export as the primary export sort '{}' is not ascending on the shard field " +
+                     "'{}'. Shards would be delivered out of order", exportSort, shardField);
+            shards = 1;
+        }
+        this.shards = shards;
+        shardMinHits = conf.getLong(".parallel.minHits", 50000L);
+        shardConnections = conf.getInteger(".parallel.connections", 2);
+        shardBufferPages = conf.getInteger(".parallel.bufferPages", 10);
+        store = conf.containsKey(".store.folder") ? createExportStore(conf) : null;
 
         final int nowYear = LocalDate.now(DA).getYear();
         minYear = conf.getInteger(".minYear", 1666);
@@ -84,6 +121,23 @@ public class SolrExport extends SolrBase {
                 conf.getInteger(".maxYear", nowYear);
     }
 
+    /**
+     * Setup the store for finished exports based on the given configuration.
+     * @param conf the configuration for export.
+     * @return an ExportStore ready for use.
+     */
+    private static ExportStore createExportStore(YAML conf) {
+        Path folder = Path.of(conf.getString(".store.folder"));
+        try {
+            return new ExportStore(folder,
+                                   conf.getLong(".store.maxBytes", 10L*1024*1024*1024),
+                                   conf.getLong(".store.maxEntryBytes", -1L),
+                                   conf.getLong(".store.maxAgeMS", -1L));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create export store in folder '" + folder + "'", e);
+        }
+    }
+
     public static SolrExport getInstance() {
         return instance;
     }
@@ -128,7 +182,30 @@ public class SolrExport extends SolrBase {
      */
     public StreamingOutput export(String query, Set<String> fields, long max, Set<STRUCTURE> structure,
                                          EXPORT_FORMAT format) {
-        log.debug("export(query='{}', fields='{}', max='{}', structure='{}, format='{}') called", query, fields, max, structure, format);
+        return export(query, fields, max, structure, format, null);
+    }
+
+    /**
+     * Export the fields from the documents from a search for query using {@link #solrClient} by streaming,
+     * optionally continuing an interrupted export.
+     * <p>
+     * CSV exports with {@link STRUCTURE#comments} and {@link STRUCTURE#content} are resumable: They contain a
+     * {@link ResumeToken} as a comment after each page. A resumed export continues the original output, so it has
+     * neither the header row nor the initial comment block.
+     * @param query     restraints for the export.
+     * @param fields    the fields to export.
+     * @param max       the maximum number of documents to export, counted from the start of the original export.
+     * @param structure the overall elements of the export.
+     * @param format    the export format.
+     * @param resume    a {@link ResumeToken} from an interrupted export of the same query and fields. Can be null.
+     * @return a lazy-evaluated stream delivering the content.
+     * @throws InvalidArgumentServiceException if the resume token is malformed or issued for another export, or if
+     *                                         the format and structure of the export does not support resuming.
+     */
+    public StreamingOutput export(String query, Set<String> fields, long max, Set<STRUCTURE> structure,
+                                  EXPORT_FORMAT format, String resume) {
+        log.debug("export(query='{}', fields='{}', max='{}', structure='{}, format='{}', resume='{}') called",
+                  query, fields, max, structure, format, resume);
         if (exportSort == null) {
             String message = "Error: Unable to export: " +
                              "No export sort (.labsapi.aviser.export.solr.sort) specified in config";
@@ -143,22 +220,75 @@ public class SolrExport extends SolrBase {
                 FacetParams.FACET, "false",
                 CommonParams.SORT, exportSort,
                  CommonParams.FL, String.join(",", expandRequestFields(fields)));
+        // Decoded before streaming starts, so that invalid tokens are reported to the caller
+        ResumeToken resumeToken = null;
+        if (resume != null && !resume.isBlank()) {
+            // The token hash does not cover format and structure, so tokens are only accepted where they are issued
+            if (!isResumable(format, structure)) {
+                throw new InvalidArgumentServiceException(
+                        "Error: Only CSV exports with the structure 'comments' and 'content' can be resumed, " +
+                        "but format was '" + format + "' and structure was " + structure);
+            }
+            resumeToken = ResumeToken.decode(resume, request);
+        }
 
+        StreamingOutput export;
         switch (format) {
-            case csv:   return streamExportCSV( request, query, fields, max, structure);
-            case json:  return streamExportJSON(request, query, fields, max, structure, format);
-            case jsonl: return streamExportJSON(request, query, fields, max, structure, format);
-            case txt:   return streamExportTXT( request, fields, max, structure);
-            case xml:   return streamExportXML( request, query, fields, max, structure);
+            case csv:   export = streamExportCSV( request, query, fields, max, structure, resumeToken); break;
+            case json:  export = streamExportJSON(request, query, fields, max, structure, format); break;
+            case jsonl: export = streamExportJSON(request, query, fields, max, structure, format); break;
+            case txt:   export = streamExportTXT( request, fields, max, structure); break;
+            case xml:   export = streamExportXML( request, query, fields, max, structure); break;
             default: throw new UnsupportedOperationException("The format '" + format + "' is unsupported");
         }
+        // Resumed exports are partial and not worth storing. Comments hold the export time and the number of
+        // matched articles, which would be stale if replayed. If the index version is polled but not yet known,
+        // the key would not change when the index does
+        boolean unknownVersion = solrClient.isIndexVersionPolling() && solrClient.getIndexVersion() == null;
+        return store == null || resumeToken != null || structure.contains(STRUCTURE.comments) || unknownVersion ?
+                export :
+                store.wrap(createStoreKey(request, fields, max, structure, format), export);
+    }
+
+    /**
+     * @return true if exports with the given format and structure write {@link ResumeToken} checkpoints.
+     */
+    static boolean isResumable(EXPORT_FORMAT format, Set<STRUCTURE> structure) {
+        return format == EXPORT_FORMAT.csv &&
+               structure.contains(STRUCTURE.comments) && structure.contains(STRUCTURE.content);
+    }
+
+    /**
+     * Create a key for the {@link #store}, covering everything that affects the bytes of the export.
+     * The index version is only known if index version polling is enabled. If not, changes to the index are only
+     * reflected when entries expire.
+     */
+    private CacheKey createStoreKey(SolrParams request, Set<String> fields, long max, Set<STRUCTURE> structure,
+                                    EXPORT_FORMAT format) {
+        String canonical = CacheKey.of(null, null, request).getCanonical() +
+                           "export.filter=" + filter + "\n" +
+                           "export.fields=" + String.join(",", fields) + "\n" +
+                           "export.max=" + max + "\n" +
+                           "export.structure=" + new TreeSet<>(structure) + "\n" +
+                           "export.format=" + format + "\n" +
+                           "export.indexVersion=" + solrClient.getIndexVersion() + "\n";
+        return new CacheKey(canonical);
+    }
+
+    /**
+     * @return the store for finished exports or null if it is not enabled.
+     */
+    public ExportStore getExportStore() {
+        return store;
     }
 
     private StreamingOutput streamExportCSV(
-            SolrParams request, String query, Set<String> fields, long max, Set<STRUCTURE> structure) {
+            SolrParams request, String query, Set<String> fields, long max, Set<STRUCTURE> structure,
+            ResumeToken resume) {
         return output -> {
             try (OutputStreamWriter os = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
-                if (structure.contains(STRUCTURE.comments)) {
+                // A resumed export is appended to the output of the interrupted one, which has the preamble
+                if (structure.contains(STRUCTURE.comments) && resume == null) {
                     os.write("# kb-labs-api export of Mediestream aviser data"+ "\n");
                     os.write("# query: " + query.replace("\n", "\\n") + "\n");
                     os.write("# fields: " + fields.toString() + "\n");
@@ -170,9 +300,13 @@ public class SolrExport extends SolrBase {
                 }
 
                 CSVFormat csvFormat = CSVFormat.DEFAULT.withQuoteMode(QuoteMode.NON_NUMERIC);
-                if (structure.contains(STRUCTURE.header)) {
+                if (structure.contains(STRUCTURE.comments)) {
+                    csvFormat = csvFormat.withCommentMarker('#');
+                }
+                if (structure.contains(STRUCTURE.header) && resume == null) {
                     csvFormat = csvFormat.withHeader(fields.toArray(new String[0]));
                 }
+                final String resumeHash = ResumeToken.hash(request);
                 try (CSVPrinter printer = new CSVPrinter(os, csvFormat)) {
                     Consumer<SolrDocument> docWriter = doc -> {
                         try {
@@ -186,15 +320,32 @@ public class SolrExport extends SolrBase {
                         }
                     };
 
+                    // Checkpoints are written after the documents of each page, so that a client receiving a
+                    // checkpoint has also received all documents before it
+                    BiConsumer<String, Long> checkpoint = !structure.contains(STRUCTURE.comments) ? null :
+                            (cursorMark, count) -> {
+                                try {
+                                    printer.printComment("resume: " +
+                                                         new ResumeToken(count, cursorMark, resumeHash).encode());
+                                } catch (IOException e) {
+                                    throw new RuntimeException("Exception writing checkpoint for " + request, e);
+                                }
+                            };
+
                     if (structure.contains(STRUCTURE.content)) {
-                        long processed = searchAndProcess(
-                                request, pageSize, max, docWriter, doc -> this.expandExportResponse(doc, fields));
+                        long processed = exportProcess(
+                                request, max, resume, checkpoint, docWriter,
+                                doc -> this.expandExportResponse(doc, fields));
                         log.debug("Wrote " + processed + " CSV entries for " + request);
                     }
+                    if (structure.contains(STRUCTURE.comments)) {
+                        printer.printComment("export complete");
+                    }
                 } catch (IOException e) {
                     log.error("IOException writing Solr response for " + request);
                 } catch (SolrServerException e) {
-                    log.error("SolrException during search for " + request);
+                    // Propagated, so that the incomplete export is not regarded as finished
+                    throw new RuntimeException("SolrException writing CSV for " + request, e);
                 }
             }
         };
@@ -214,7 +365,7 @@ public class SolrExport extends SolrBase {
                                         field -> field, field -> flattenStringList(doc.get(field)))));
 
                 if (structure.contains(STRUCTURE.content)) {
-                    searchAndProcess(request, pageSize, max, docWriter, null);
+                    exportProcess(request, max, null, null, docWriter, null);
                 }
             } catch (SolrServerException e) {
                 throw new RuntimeException("SolrException writing " + format + " for " + request, e);
@@ -244,10 +395,12 @@ public class SolrExport extends SolrBase {
                     if (structure.contains(STRUCTURE.content)) {
                         long processed = 0;
                         try {
-                            processed = searchAndProcess(
-                                    request, pageSize, max, docWriter, doc -> this.expandExportResponse(doc, fields));
+                            processed = exportProcess(
+                                    request, max, null, null, docWriter,
+                                    doc -> this.expandExportResponse(doc, fields));
                         } catch (SolrServerException e) {
-                            log.error("SolrException during search for " + request);
+                            // Propagated, so that the incomplete export is not regarded as finished
+                            throw new RuntimeException("SolrException writing TXT for " + request, e);
                         }
                         log.debug("Wrote " + processed + " TXT entries for " + request);
                     }
@@ -303,10 +456,11 @@ public class SolrExport extends SolrBase {
             if (structure.contains(STRUCTURE.content)) {
                 long processed = 0;
                 try {
-                    processed = searchAndProcess(
-                            request, pageSize, max, docWriter, doc -> this.expandExportResponse(doc, fields));
+                    processed = exportProcess(
+                            request, max, null, null, docWriter, doc -> this.expandExportResponse(doc, fields));
                 } catch (SolrServerException e) {
-                    log.error("SolrException during search for " + request);
+                    // Propagated, so that the incomplete export is not regarded as finished
+                    throw new RuntimeException("SolrException writing XML for " + request, e);
                 }
                 log.debug("Wrote " + processed + " TXT entries for " + request);
             }
@@ -322,6 +476,161 @@ public class SolrExport extends SolrBase {
         };
     }
 
+    /**
+     * Performs paging searches for the given export request, feeding the documents to the docWriter in the export
+     * sort order. If the {@link #exportHandler} is enabled, unlimited exports where all fields and sort fields are
+     * {@link #docValuesFields} are streamed using the {@code /export} handler, falling back to paging if that
+     * fails before any documents are delivered. If parallel export is enabled and the export is large enough, the request is split into shards on
+     * ranges of {@link #shardField} that are paged concurrently. Else the request is paged sequentially, streaming
+     * the documents one at a time from the responses if {@link #streaming} is enabled.
+     * <p>
+     * Parallel export requires that the primary export sort is ascending on the values of {@link #shardField}.
+     * <p>
+     * Resumed exports and exports with checkpoints always use sequential paging, as that is the only method
+     * with a single cursorMark.
+     * @param request     the export request.
+     * @param max         the maximum number of documents to export, counted from the start of the original export.
+     * @param resume      continue the export after this checkpoint. Can be null.
+     * @param checkpoint  receives the cursorMark for the next page and the number of exported documents, counted
+     *                    from the start of the original export, after each page. Can be null.
+     * @param docWriter   received each retrieved and expanded SolrDocument.
+     * @param docExpander optionally transforms the documents. See {@link #searchAndProcess}.
+     * @return the number of processed documents.
+     */
+    private long exportProcess(SolrParams request, long max, ResumeToken resume, BiConsumer<String, Long> checkpoint,
+                               Consumer<SolrDocument> docWriter, Function<SolrDocument, SolrDocument> docExpander)
+            throws IOException, SolrServerException {
+        if (resume != null || checkpoint != null) {
+            return resumableExportProcess(request, max, resume, checkpoint, docWriter, docExpander);
+        }
+        SolrParams exportRequest = getExportHandlerRequest(request, max);
+        if (exportRequest != null) {
+            ExportStreamer streamer = createExportStreamer(exportRequest, max);
+            Function<SolrDocument, SolrDocument> expander = docExpander == null ?
+                    SolrExport::convertExportTypes :
+                    doc -> docExpander.apply(convertExportTypes(doc));
+            try {
+                return exportAndProcess(streamer, docWriter, expander);
+            } catch (ServiceUnavailableServiceException e) {
+                throw e; // Rejected by the connection scheduler
+            } catch (RuntimeException e) {
+                if (streamer.getDelivered() > 0) {
+                    throw new RuntimeException("Exception streaming from " + ExportStreamer.EXPORT_HANDLER +
+                                               " after " + streamer.getDelivered() + " documents", e);
+                }
+                log.warn("Unable to export using {}. Falling back to paging for {}",
+                         ExportStreamer.EXPORT_HANDLER, request, e);
+            }
+        }
+        List<SolrParams> shardRequests = shards > 1 ? getShardRequests(request, max) : null;
+        if (shardRequests == null) {
+            return streaming ?
+                    searchAndProcessStreaming(request, pageSize, max, docWriter, docExpander) :
+                    searchAndProcess(request, pageSize, max, docWriter, docExpander);
+        }
+        log.debug("Exporting in {} shards with {} connections for {}", shardRequests.size(), shardConnections, request);
+        return searchAndProcessSharded(
+                shardRequests, pageSize, max, shardConnections, shardBufferPages, docWriter, docExpander);
+    }
+
+    /**
+     * Performs sequential paging searches for the given export request, starting from the resume checkpoint if given.
+     * See {@link #exportProcess} for parameters.
+     */
+    private long resumableExportProcess(
+            SolrParams request, long max, ResumeToken resume, BiConsumer<String, Long> checkpoint,
+            Consumer<SolrDocument> docWriter, Function<SolrDocument, SolrDocument> docExpander) {
+        final long offset = resume == null ? 0 : resume.getCount();
+        long remaining = max == -1 ? -1 : max - offset;
+        if (remaining == 0 || remaining < -1) {
+            return 0;
+        }
+        String startCursorMark = resume == null ? CursorMarkParams.CURSOR_MARK_START : resume.getCursorMark();
+        BiConsumer<String, Long> offsetCheckpoint = checkpoint == null ? null :
+                (cursorMark, count) -> checkpoint.accept(cursorMark, offset + count);
+        return streaming ?
+                searchAndProcessStreaming(request, pageSize, startCursorMark, remaining,
+                                          docWriter, docExpander, offsetCheckpoint) :
+                searchAndProcess(request, pageSize, startCursorMark, remaining,
+                                 docWriter, docExpander, offsetCheckpoint);
+    }
+
+    /**
+     * Determine whether the export request can use the {@code /export} handler and create the request for it.
+     * The {@link #LINK} pseudo field is removed from the fields as it is derived from {@code pageUUID}.
+     * @param request the export request.
+     * @param max     the maximum number of documents to export.
+     * @return a request for the /export handler or null if the handler should not be used.
+     */
+    private SolrParams getExportHandlerRequest(SolrParams request, long max) {
+        if (!exportHandler || max != -1) {
+            return null;
+        }
+        List<String> exportFields = Arrays.stream(request.get(CommonParams.FL, "").split(","))
+                .filter(field -> !field.isEmpty() && !LINK.equals(field))
+                .collect(Collectors.toList());
+        if (!ExportStreamer.supports(docValuesFields, exportFields, request.get(CommonParams.SORT))) {
+            log.debug("Not using {} as fields {} or sort '{}' are not all docValues fields",
+                      ExportStreamer.EXPORT_HANDLER, exportFields, request.get(CommonParams.SORT));
+            return null;
+        }
+        ModifiableSolrParams exportRequest = new ModifiableSolrParams(request);
+        exportRequest.set(CommonParams.FL, String.join(",", exportFields));
+        return exportRequest;
+    }
+
+    /**
+     * The {@code /export} handler delivers dates as ISO-8601 Strings, where paging delivers {@link Date}s.
+     * Convert the timestamp so that the documents are the same for both.
+     * @param doc a document from the /export handler.
+     * @return the document with the timestamp as a Date.
+     */
+    private static SolrDocument convertExportTypes(SolrDocument doc) {
+        Object timestamp = doc.getFieldValue(TIMESTAMP);
+        if (timestamp instanceof String) {
+            try {
+                doc.setField(TIMESTAMP, Date.from(Instant.parse((String) timestamp)));
+            } catch (DateTimeParseException e) {
+                log.warn("Unable to parse timestamp '{}' from {}", timestamp, ExportStreamer.EXPORT_HANDLER);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Split the export request into shards of approximately the same size, using a facet on {@link #shardField}.
+     * @param request the export request.
+     * @param max     the maximum number of documents to export.
+     * @return the shard requests or null if the request should not be split.
+     */
+    private List<SolrParams> getShardRequests(SolrParams request, long max) {
+        SolrQuery facetRequest = new SolrQuery(
+                CommonParams.Q, request.get(CommonParams.Q),
+                FacetParams.FACET, "true",
+                FacetParams.FACET_FIELD, shardField,
+                FacetParams.FACET_LIMIT, "-1",
+                FacetParams.FACET_MINCOUNT, "1",
+                FacetParams.FACET_MISSING, "true",
+                FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX,
+                // Filter is added automatically by the SolrClient
+                CommonParams.ROWS, Integer.toString(0));
+        if (request.getParams(CommonParams.FQ) != null) {
+            facetRequest.setFilterQueries(request.getParams(CommonParams.FQ));
+        }
+        QueryResponse response;
+        try {
+            response = solrClient.query(facetRequest);
+        } catch (ServiceUnavailableServiceException e) {
+            throw e; // Rejected by the connection scheduler
+        } catch (Exception e) {
+            log.warn("Unable to facet on '{}' for splitting export into shards. Falling back to sequential export " +
+                     "for {}", shardField, request, e);
+            return null;
+        }
+        return ShardedPager.createRangeShards(
+                request, shardField, response.getFacetField(shardField), max, shards, shardMinHits);
+    }
+
     private Set<String> expandRequestFields(Set<String> fields) {
         if (fields.contains(LINK) && !fields.contains("pageUUID")) { // link = URL to the page
             Set<String> expanded = new LinkedHashSet<>(fields);
@@ -330,7 +639,7 @@ public class SolrExport extends SolrBase {
         }
         return fields;
     }
-    private SolrDocument expandExportResponse(SolrDocument doc, Set<String> fields) {
+    SolrDocument expandExportResponse(SolrDocument doc, Set<String> fields) {
         if (fields.contains(LINK)) {
             if (doc.containsKey("pageUUID")) {
                 // http://www2.statsbiblioteket.dk/mediestream/avis/record/doms_aviser_page%3Auuid%3Af1ca07a5-6120-4429-ad73-5870d366b960/query/hestevogn
@@ -389,6 +698,8 @@ public class SolrExport extends SolrBase {
         QueryResponse response;
         try {
             response = solrClient.query(request);
+        } catch (ServiceUnavailableServiceException e) {
+            throw e; // Rejected by the connection scheduler
         } catch (Exception e) {
             log.warn("Exception calling Solr for countHits(" + query + ")", e);
             throw new InternalServiceException(
@@ -413,7 +724,7 @@ public class SolrExport extends SolrBase {
 
     // Is Object is a List<String> then it is flattened to a single String with newlines as delimiter
     @SuppressWarnings("unchecked")
-    private static Object flattenStringList(Object value) {
+    static Object flattenStringList(Object value) {
         if (value instanceof List &&
             (!((List<Object>)value).isEmpty() && ((List<Object>)value).get(0) instanceof String)) {
             return String.join("\n", ((List<String>)value));
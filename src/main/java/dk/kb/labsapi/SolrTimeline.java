@@ -22,6 +22,7 @@ import dk.kb.labsapi.model.TimelineRequestDto;
 import dk.kb.util.yaml.YAML;
 import dk.kb.webservice.exception.InternalServiceException;
 import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.QuoteMode;
@@ -129,6 +130,8 @@ public class SolrTimeline extends SolrBase {
         try {
             response = callSolr(jQuery);
             responseAll = callSolr(jQueryAll);
+        } catch (ServiceUnavailableServiceException e) {
+            throw e; // Rejected by the connection scheduler
         } catch (Exception e) {
             log.warn("Exception calling Solr for timeline(" + query + ")", e);
             throw new InternalServiceException(
@@ -20,23 +20,59 @@ import org.slf4j.LoggerFactory;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.function.ToLongFunction;
 
 /**
- * Special purpose cache for Solr requests. Supports max entry count and max age.
+ * Special purpose cache for Solr requests. Supports max entry count, max total weight and max age.
+ * <p>
+ * Optionally a soft max age can be specified. Entries older than the soft max age are still served, but if they were
+ * added together with a refresher, one background refresh of the entry is triggered. This keeps frequently requested
+ * entries warm. Entries older than max age are always removed.
+ * <p>
+ * The weight of an entry is calculated by a weigher when the entry is added to the cache. Typically the weight is
+ * an estimate of the heap size in bytes of the entry, making it possible to give the cache a memory budget.
+ * <p>
+ * The cache is thread safe. Entries are distributed over a number of segments, each guarded by its own lock and
+ * each maintaining its own least-recently-used order. Lookups in different segments does not block each other and
+ * eviction is performed round-robin on the segments, which approximates global LRU without a global lock.
  */
 public class TimeCache<O> implements Map<String, O> {
     private static final Logger log = LoggerFactory.getLogger(TimeCache.class);
 
-    private final LinkedHashMap<String, TimeEntry<O>> inner;
-    private final int maxCapacity;
-    private final long maxAge;
+    /**
+     * The default number of segments. Must be a power of 2.
+     */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * The maximum number of concurrent background refreshes, shared between all caches.
+     */
+    public static final int MAX_REFRESH_THREADS = 2;
+    private static final int MAX_REFRESH_QUEUE = 100;
+    private static final ThreadPoolExecutor refreshExecutor = createRefreshExecutor();
+
+    private final List<Segment> segments;
+    private final int segmentMask;
+    private final Limits limits;
+    private final ToLongFunction<? super O> weigher;
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicLong weight = new AtomicLong(0);
+    private final AtomicInteger evictionCursor = new AtomicInteger(0);
     private final AtomicLong calls = new AtomicLong(0);
     private final AtomicLong hits = new AtomicLong(0);
-
-    private final Set<TimeCache<?>> linkedCaches = new HashSet<>();
+    private final AtomicLong refreshes = new AtomicLong(0);
+    private final AtomicLong evictionsCapacity = new AtomicLong(0);
+    private final AtomicLong evictionsAge = new AtomicLong(0);
 
     /**
      *
@@ -44,41 +80,79 @@ public class TimeCache<O> implements Map<String, O> {
      * @param maxAgeMS    the maximum number og milliseconds that an object can exist in the cache.
      */
     public TimeCache(int maxCapacity, long maxAgeMS) {
+        this(new Limits(maxCapacity, Long.MAX_VALUE, maxAgeMS, -1), DEFAULT_SEGMENTS, null);
+    }
+
+    /**
+     *
+     * @param maxCapacity the maximum numbers of entries to hold in the cache.
+     * @param maxWeight   the maximum total weight of the entries in the cache.
+     * @param maxAgeMS    the maximum number og milliseconds that an object can exist in the cache.
+     * @param weigher     calculates the weight of entries, typically as estimated bytes on the heap.
+     *                    If null, all entries has weight 0.
+     */
+    public TimeCache(int maxCapacity, long maxWeight, long maxAgeMS, ToLongFunction<? super O> weigher) {
+        this(maxCapacity, maxWeight, maxAgeMS, -1, weigher);
+    }
+
+    /**
+     *
+     * @param maxCapacity  the maximum numbers of entries to hold in the cache.
+     * @param maxWeight    the maximum total weight of the entries in the cache.
+     * @param maxAgeMS     the maximum number og milliseconds that an object can exist in the cache.
+     * @param softMaxAgeMS the number of milliseconds after which an object is refreshed in the background when it is
+     *                     requested. -1 disables background refresh.
+     * @param weigher      calculates the weight of entries, typically as estimated bytes on the heap.
+     *                     If null, all entries has weight 0.
+     */
+    public TimeCache(int maxCapacity, long maxWeight, long maxAgeMS, long softMaxAgeMS,
+                     ToLongFunction<? super O> weigher) {
+        this(new Limits(maxCapacity, maxWeight, maxAgeMS, softMaxAgeMS), DEFAULT_SEGMENTS, weigher);
+    }
+
+    /**
+     *
+     * @param maxCapacity the maximum numbers of entries to hold in the cache.
+     * @param maxAgeMS    the maximum number og milliseconds that an object can exist in the cache.
+     * @param segmentCount the number of independently locked segments. Rounded up to nearest power of 2.
+     */
+    public TimeCache(int maxCapacity, long maxAgeMS, int segmentCount) {
+        this(new Limits(maxCapacity, Long.MAX_VALUE, maxAgeMS, -1), segmentCount, null);
+    }
+
+    private TimeCache(Limits limits, int segmentCount, ToLongFunction<? super O> weigher) {
         super();
-        this.maxCapacity = maxCapacity;
-        this.maxAge = maxAgeMS;
-        this.inner = new LinkedHashMap<String, TimeEntry<O>>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, TimeEntry<O>> eldest) {
-                int totalSize = size() + linkedCaches.stream().mapToInt(TimeCache::size).sum();
-                return totalSize > maxCapacity || eldest.getValue().isTooOld();
-            }
-        };
+        this.limits = limits;
+        this.weigher = weigher == null ? o -> 0L : weigher;
+        int trueSegmentCount = segmentCount <= 1 ? 1 : Integer.highestOneBit(segmentCount-1) << 1;
+        segments = new ArrayList<>(trueSegmentCount);
+        for (int i = 0 ; i < trueSegmentCount ; i++) {
+            segments.add(new Segment());
+        }
+        segmentMask = trueSegmentCount-1;
     }
 
     /**
      * Create a new cache, typically with another type, that is linked to this cached.
      * Linked cache has shared capacity.
+     * More than 2 caches can be linked.
      * @param <T> the type of the cache.
      * @return a new cache with limits (max count and age) shared with this cache.
      */
     public <T> TimeCache<T> createLinked() {
-        TimeCache<T> other = new TimeCache<T>(maxCapacity, maxAge);
-        other.link(this);
-        return other;
+        return createLinked(null);
     }
-    
+
     /**
-     * Link this cache to the other cache. maxCapacity must be equal and current capacity will be the sum.
+     * Create a new cache, typically with another type, that is linked to this cached.
+     * Linked cache has shared capacity and weight.
      * More than 2 caches can be linked.
-     * @param other another cache to link to.
+     * @param weigher calculates the weight of entries in the new cache. If null, all entries has weight 0.
+     * @param <T> the type of the cache.
+     * @return a new cache with limits (max count, weight and age) shared with this cache.
      */
-    private void link(TimeCache<?> other) {
-        if (linkedCaches.contains(other)) {
-            return; // Already linked. Needed to avoid endless loop
-        }
-        linkedCaches.add(other);
-        linkedCaches.forEach(c -> link(this));
+    public <T> TimeCache<T> createLinked(ToLongFunction<? super T> weigher) {
+        return new TimeCache<>(limits, segments.size(), weigher);
     }
 
     /**
@@ -99,7 +173,7 @@ public class TimeCache<O> implements Map<String, O> {
         if (o == null) {
             o = supplier.get();
             if (o != null) {
-                put(key, o);
+                put(key, null, o, supplier);
             }
         }
         return o;
@@ -110,20 +184,135 @@ public class TimeCache<O> implements Map<String, O> {
         if (!(key instanceof String)) {
             return null;
         }
-        calls.incrementAndGet();
-        TimeEntry<O> o = inner.get(key);
-        if (o == null) {
+        return get((String)key, (String)null);
+    }
+
+    /**
+     * Get the object with the given key from the cache, if the full key for the object matches the given fullKey.
+     * <p>
+     * This is used when the key is a digest of the full key: A mismatch on full keys means that there was a
+     * collision on digests and the cached object does not belong to the full key.
+     * @param key     the key for the object to retrieve.
+     * @param fullKey the full key for the object. If null, the full key is not checked.
+     * @return the object corresponding to the key or null if it is not available.
+     */
+    public O get(String key, String fullKey) {
+        return get(key, fullKey == null ? null : (Predicate<String>) fullKey::equals);
+    }
+
+    /**
+     * Get the object with the given key from the cache, if the full key for the object is accepted by the matcher.
+     * <p>
+     * This allows collision checking without materialising the requested full key, see {@link CacheKey#matches}.
+     * @param key            the key for the object to retrieve.
+     * @param fullKeyMatcher checks the full key for the cached object. If null, the full key is not checked.
+     * @return the object corresponding to the key or null if it is not available.
+     */
+    public O get(String key, Predicate<String> fullKeyMatcher) {
+        if (key == null) {
             return null;
         }
-        if (o.isTooOld()) {
-            inner.remove(key);
-            return null;
+        calls.incrementAndGet();
+        Segment segment = segmentFor(key);
+        TimeEntry<O> o;
+        segment.lock();
+        try {
+            o = segment.map.get(key); // Access ordered so this updates LRU
+            if (o == null) {
+                return null;
+            }
+            if (!o.matches(fullKeyMatcher)) {
+                log.warn("get({}, ...) key collision: Requested full key differs from the cached full key", key);
+                return null;
+            }
+            if (o.isTooOld()) {
+                segment.map.remove(key);
+                entryRemoved(o);
+                evictionsAge.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            o.hits++;
+        } finally {
+            segment.unlock();
+        }
+        if (o.isStale()) {
+            refresh(key, o);
         }
-        hits.incrementAndGet();
-        inner.put((String)key, o);
         return o.getValue();
     }
 
+    /**
+     * Trigger a background refresh of the entry, if it has a refresher and no refresh is already in progress.
+     * @param key   the key for the entry.
+     * @param entry the entry to refresh.
+     */
+    private void refresh(String key, TimeEntry<O> entry) {
+        if (entry.refresher == null || !entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    O value = entry.refresher.get();
+                    if (value != null) {
+                        put(key, entry.fullKey, value, entry.refresher);
+                        refreshes.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    log.warn("Background refresh of cache entry '{}' failed. The stale entry is kept", key, e);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Background refresh of cache entry '{}' rejected as the refresh queue is full", key);
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Get the object with the given key from the cache, without updating the statistics for the cache.
+     * Typically used for double-checking before performing an expensive operation.
+     * @param key the key for the object to retrieve.
+     * @return the object corresponding to the key or null if it is not available.
+     */
+    public O peek(String key) {
+        return peek(key, (Predicate<String>) null);
+    }
+
+    /**
+     * Get the object with the given key from the cache, without updating the statistics for the cache.
+     * Typically used for double-checking before performing an expensive operation.
+     * @param key     the key for the object to retrieve.
+     * @param fullKey the full key for the object. If null, the full key is not checked.
+     * @return the object corresponding to the key or null if it is not available.
+     */
+    public O peek(String key, String fullKey) {
+        return peek(key, fullKey == null ? null : (Predicate<String>) fullKey::equals);
+    }
+
+    /**
+     * Get the object with the given key from the cache, without updating the statistics for the cache.
+     * Typically used for double-checking before performing an expensive operation.
+     * @param key            the key for the object to retrieve.
+     * @param fullKeyMatcher checks the full key for the cached object. If null, the full key is not checked.
+     * @return the object corresponding to the key or null if it is not available.
+     */
+    public O peek(String key, Predicate<String> fullKeyMatcher) {
+        if (key == null) {
+            return null;
+        }
+        Segment segment = segmentFor(key);
+        segment.lock();
+        try {
+            TimeEntry<O> o = segment.map.get(key);
+            return o == null || o.isTooOld() || !o.matches(fullKeyMatcher) ? null : o.getValue();
+        } finally {
+            segment.unlock();
+        }
+    }
+
     @Override
     public O getOrDefault(Object key, O defaultValue) {
         return Optional.ofNullable(get(key)).orElse(defaultValue);
@@ -143,88 +332,408 @@ public class TimeCache<O> implements Map<String, O> {
         return hits.get();
     }
 
+    /**
+     * The number of entries removed to keep the cache within max capacity or max weight.
+     */
+    public long getEvictionsCapacity() {
+        return evictionsCapacity.get();
+    }
+
+    /**
+     * The number of entries removed because they were older than max age.
+     */
+    public long getEvictionsAge() {
+        return evictionsAge.get();
+    }
+
+    /**
+     * Locate the entries with the most hits since they were added to the cache.
+     * @param n the maximum number of entries to return.
+     * @return up to n entries, sorted by descending number of hits.
+     */
+    public List<HotKey> getHotKeys(int n) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        Comparator<HotKey> byHits = Comparator.comparingLong(HotKey::getHits);
+        PriorityQueue<HotKey> top = new PriorityQueue<>(n, byHits);
+        for (Segment segment: segments) {
+            segment.lock();
+            try {
+                for (Map.Entry<String, TimeEntry<O>> entry: segment.map.entrySet()) {
+                    TimeEntry<O> o = entry.getValue();
+                    if (top.size() < n || top.peek().getHits() < o.hits) {
+                        top.add(new HotKey(entry.getKey(), o.fullKey, o.hits, o.weight, o.created));
+                        if (top.size() > n) {
+                            top.poll();
+                        }
+                    }
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+        List<HotKey> result = new ArrayList<>(top);
+        result.sort(byHits.reversed());
+        return result;
+    }
+
     @Override
     public int size() {
-        return inner.size();
+        return size.get();
     }
 
     public int capacity() {
-        return maxCapacity;
+        return limits.maxCapacity;
+    }
+
+    /**
+     * @return the number of successful background refreshes of stale entries.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return the age in milliseconds after which entries are refreshed in the background or -1 if disabled.
+     */
+    public long getSoftMaxAge() {
+        return limits.softMaxAge;
+    }
+
+    /**
+     * @return the total weight of the entries in this cache.
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @return the maximum total weight of this cache and any linked caches.
+     */
+    public long getMaxWeight() {
+        return limits.maxWeight;
     }
 
     public long getMaxAge() {
-        return maxAge;
+        return limits.maxAge;
     }
 
     @Override
     public boolean isEmpty() {
-        return inner.isEmpty();
+        return size() == 0;
     }
 
     @Override
     public boolean containsKey(Object key) {
-        return inner.containsKey(key);
+        if (!(key instanceof String)) {
+            return false;
+        }
+        Segment segment = segmentFor(key);
+        segment.lock();
+        try {
+            return segment.map.containsKey(key);
+        } finally {
+            segment.unlock();
+        }
     }
 
     @Override
     public boolean containsValue(Object value) {
-        return inner.values().stream()
-                .map(TimeEntry::getValue)
-                .anyMatch(value::equals);
+        for (Segment segment: segments) {
+            segment.lock();
+            try {
+                if (segment.map.values().stream()
+                        .map(TimeEntry::getValue)
+                        .anyMatch(value::equals)) {
+                    return true;
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+        return false;
     }
 
+    /**
+     * Add the value to the cache. If the weight of the value exceeds {@link #getMaxWeight()} it is not added and any
+     * existing value for the key is removed.
+     * @param key   the key for the value.
+     * @param value the value to add.
+     * @return the previous value for the key or null if there were none.
+     */
     @Override
     public O put(String key, O value) {
-        TimeEntry<O> entry = new TimeEntry<>(value);
-        return Optional.ofNullable(inner.put(key, entry))
-                .map(TimeEntry::getValue)
-                .orElse(null);
+        return put(key, null, value);
+    }
+
+    /**
+     * Add the value to the cache. If the weight of the value exceeds {@link #getMaxWeight()} it is not added and any
+     * existing value for the key is removed.
+     * @param key     the key for the value.
+     * @param fullKey the full key for the value, used for collision checking in {@link #get(String, String)}.
+     *                Can be null.
+     * @param value   the value to add.
+     * @return the previous value for the key or null if there were none.
+     */
+    public O put(String key, String fullKey, O value) {
+        return put(key, fullKey, value, null);
+    }
+
+    /**
+     * Add the value to the cache. If the weight of the value exceeds {@link #getMaxWeight()} it is not added and any
+     * existing value for the key is removed.
+     * @param key       the key for the value.
+     * @param fullKey   the full key for the value, used for collision checking in {@link #get(String, String)}.
+     *                  Can be null.
+     * @param value     the value to add.
+     * @param refresher used for creating a new value in the background when the entry is older than the soft
+     *                  max age. Can be null, in which case the entry is never refreshed.
+     * @return the previous value for the key or null if there were none.
+     */
+    public O put(String key, String fullKey, O value, Supplier<O> refresher) {
+        long entryWeight = weigher.applyAsLong(value);
+        if (entryWeight > limits.maxWeight) {
+            log.debug("put({}, ...) called with weight {} > maxWeight {}: Entry not cached",
+                      key, entryWeight, limits.maxWeight);
+            return remove(key);
+        }
+        TimeEntry<O> entry = new TimeEntry<>(value, fullKey, entryWeight, refresher);
+        Segment segment = segmentFor(key);
+        TimeEntry<O> old;
+        segment.lock();
+        try {
+            old = segment.map.put(key, entry);
+            if (old != null) {
+                entryRemoved(old);
+            }
+            entryAdded(entry);
+        } finally {
+            segment.unlock();
+        }
+        evictIfNeeded();
+        return old == null ? null : old.getValue();
     }
 
     @Override
     public O remove(Object key) {
-        return Optional.ofNullable(inner.remove(key))
-                .map(TimeEntry::getValue)
-                .orElse(null);
+        if (!(key instanceof String)) {
+            return null;
+        }
+        Segment segment = segmentFor(key);
+        segment.lock();
+        try {
+            TimeEntry<O> old = segment.map.remove(key);
+            if (old == null) {
+                return null;
+            }
+            entryRemoved(old);
+            return old.getValue();
+        } finally {
+            segment.unlock();
+        }
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends O> m) {
-        m.forEach((key, value) -> inner.put(key, new TimeEntry<>(value)));
+        m.forEach(this::put);
     }
 
     @Override
     public void clear() {
-        inner.clear();
+        for (Segment segment: segments) {
+            segment.lock();
+            try {
+                segment.map.values().forEach(this::entryRemoved);
+                segment.map.clear();
+            } finally {
+                segment.unlock();
+            }
+        }
     }
 
+    /**
+     * @return a snapshot of the keys in the cache. Changes to the cache are not reflected in the returned set.
+     */
     @Override
     public Set<String> keySet() {
-        return inner.keySet();
+        Set<String> keys = new HashSet<>();
+        for (Segment segment: segments) {
+            segment.lock();
+            try {
+                keys.addAll(segment.map.keySet());
+            } finally {
+                segment.unlock();
+            }
+        }
+        return keys;
     }
 
+    /**
+     * @return a snapshot of the values in the cache. Changes to the cache are not reflected in the returned list.
+     */
     @Override
     public Collection<O> values() {
-        return inner.values().stream()
-                .map(TimeEntry::getValue)
-                .collect(Collectors.toList());
+        List<O> values = new ArrayList<>();
+        for (Segment segment: segments) {
+            segment.lock();
+            try {
+                segment.map.values().stream()
+                        .map(TimeEntry::getValue)
+                        .forEach(values::add);
+            } finally {
+                segment.unlock();
+            }
+        }
+        return values;
     }
 
+    /**
+     * @return a snapshot of the entries in the cache. Changes to the cache are not reflected in the returned set.
+     */
     @Override
     public Set<Entry<String, O>> entrySet() {
-        return inner.entrySet().stream()
-                .map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().getValue()))
-                .collect(Collectors.toSet());
+        Set<Entry<String, O>> entries = new HashSet<>();
+        for (Segment segment: segments) {
+            segment.lock();
+            try {
+                segment.map.forEach((key, value) ->
+                        entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value.getValue())));
+            } finally {
+                segment.unlock();
+            }
+        }
+        return entries;
     }
 
-    /* Helper class */
+    /**
+     * Evict entries from this cache until the total size and weight of this and linked caches are within the limits.
+     * Segments are visited round-robin and the least recently used entry of each visited segment is evicted.
+     */
+    private void evictIfNeeded() {
+        int emptyVisits = 0;
+        while (limits.isExceeded() && emptyVisits < segments.size()) {
+            Segment segment = segments.get(evictionCursor.getAndIncrement() & segmentMask);
+            if (segment.evictEldest()) {
+                emptyVisits = 0;
+            } else {
+                emptyVisits++; // Protect against endless loop if the excess is in linked caches
+            }
+        }
+    }
+
+    private void entryAdded(TimeEntry<O> entry) {
+        size.incrementAndGet();
+        weight.addAndGet(entry.getWeight());
+        limits.totalSize.incrementAndGet();
+        limits.totalWeight.addAndGet(entry.getWeight());
+    }
+
+    private void entryRemoved(TimeEntry<O> entry) {
+        size.decrementAndGet();
+        weight.addAndGet(-entry.getWeight());
+        limits.totalSize.decrementAndGet();
+        limits.totalWeight.addAndGet(-entry.getWeight());
+    }
+
+    private Segment segmentFor(Object key) {
+        int hash = key.hashCode();
+        return segments.get((hash ^ (hash >>> 16)) & segmentMask);
+    }
+
+    /* Helper classes */
+
+    /**
+     * Limits shared between linked caches.
+     */
+    private static class Limits {
+        private final int maxCapacity;
+        private final long maxWeight;
+        private final long maxAge;
+        private final long softMaxAge;
+        private final AtomicInteger totalSize = new AtomicInteger(0);
+        private final AtomicLong totalWeight = new AtomicLong(0);
+
+        public Limits(int maxCapacity, long maxWeight, long maxAge, long softMaxAge) {
+            this.maxCapacity = maxCapacity;
+            this.maxWeight = maxWeight;
+            this.maxAge = maxAge;
+            this.softMaxAge = softMaxAge;
+        }
+
+        public boolean isExceeded() {
+            return totalSize.get() > maxCapacity || totalWeight.get() > maxWeight;
+        }
+    }
+
+    private static ThreadPoolExecutor createRefreshExecutor() {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_REFRESH_THREADS, MAX_REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_REFRESH_QUEUE), runnable -> {
+                    Thread thread = new Thread(runnable, "TimeCache-refresh-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Independently locked part of the cache, with its own LRU ordering.
+     */
+    @SuppressWarnings("serial")
+    private class Segment extends ReentrantLock {
+        private final LinkedHashMap<String, TimeEntry<O>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * Remove the least recently used entry, if any.
+         * @return true if an entry was removed.
+         */
+        public boolean evictEldest() {
+            lock();
+            try {
+                Iterator<TimeEntry<O>> it = map.values().iterator();
+                if (!it.hasNext()) {
+                    return false;
+                }
+                TimeEntry<O> eldest = it.next();
+                it.remove();
+                entryRemoved(eldest);
+                (eldest.isTooOld() ? evictionsAge : evictionsCapacity).incrementAndGet();
+                return true;
+            } finally {
+                unlock();
+            }
+        }
+    }
 
     public class TimeEntry<O> {
         private final O value;
+        private final String fullKey;
+        private final long weight;
+        private final Supplier<O> refresher;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
         private final Instant created = Instant.now();
+        private long hits = 0; // Guarded by the segment lock
 
-        public TimeEntry(O o) {
+        public TimeEntry(O o, String fullKey, long weight, Supplier<O> refresher) {
             this.value = o;
+            this.fullKey = fullKey;
+            this.weight = weight;
+            this.refresher = refresher;
+        }
+
+        /**
+         * @param fullKeyMatcher a matcher for the full key or null.
+         * @return true if the given matcher is null or if it accepts the full key for this entry.
+         */
+        public boolean matches(Predicate<String> fullKeyMatcher) {
+            return fullKeyMatcher == null || (fullKey != null && fullKeyMatcher.test(fullKey));
+        }
+
+        public long getWeight() {
+            return weight;
         }
 
         public Instant getCreated() {
@@ -236,7 +745,60 @@ public class TimeCache<O> implements Map<String, O> {
         }
 
         public boolean isTooOld() {
-            return getCreated().plus(maxAge, ChronoUnit.MILLIS).isBefore(Instant.now());
+            return getCreated().plus(limits.maxAge, ChronoUnit.MILLIS).isBefore(Instant.now());
+        }
+
+        /**
+         * @return true if the entry is older than the soft max age and should be refreshed.
+         */
+        public boolean isStale() {
+            return limits.softMaxAge >= 0 &&
+                   getCreated().plus(limits.softMaxAge, ChronoUnit.MILLIS).isBefore(Instant.now());
+        }
+    }
+
+    /**
+     * Snapshot of the statistics for a cache entry.
+     */
+    public static class HotKey {
+        private final String key;
+        private final String fullKey;
+        private final long hits;
+        private final long weight;
+        private final Instant created;
+
+        public HotKey(String key, String fullKey, long hits, long weight, Instant created) {
+            this.key = key;
+            this.fullKey = fullKey;
+            this.hits = hits;
+            this.weight = weight;
+            this.created = created;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the full key for the entry or null if it was not specified when the entry was added.
+         */
+        public String getFullKey() {
+            return fullKey;
+        }
+
+        /**
+         * @return the number of hits for the entry since it was added to the cache.
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        public Instant getCreated() {
+            return created;
         }
     }
 }
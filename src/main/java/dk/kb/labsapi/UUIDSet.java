@@ -0,0 +1,286 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.labsapi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Set of UUIDs used for deduplication of pages in exports. Each UUID is stored as two longs in an open addressing
+ * hash table with linear probing.
+ * <p>
+ * A {@code HashSet<String>} holding IDs such as {@code doms_aviser_page:uuid:00005aff-ea53-46dd-bc90-0b0dd8917dbc}
+ * uses about 150 bytes per entry. This set uses 16 bytes per slot and keeps the table between a quarter and half full,
+ * which is 32-64 bytes per UUID.
+ * <p>
+ * Values are UUIDs, optionally with a prefix ending in {@code :}, such as {@code doms_aviser_page:uuid:}. The prefix
+ * is ignored, so {@code doms_aviser_page:uuid:<uuid>} and {@code <uuid>} are regarded as the same value, and UUIDs
+ * are case insensitive. Values that are not UUIDs are accepted and kept in a standard set.
+ * <p>
+ * Tables above {@code offHeapBytes} are allocated as direct memory, which does not count towards the heap of the
+ * JVM. The memory is released when the set is garbage collected.
+ * <p>
+ * This class is not thread safe.
+ */
+public class UUIDSet {
+    private static final Logger log = LoggerFactory.getLogger(UUIDSet.class);
+
+    public static final int DEFAULT_EXPECTED_SIZE = 1000;
+    // The table is doubled when it is more than half full
+    private static final int MAX_LOAD_DIVISOR = 2;
+    // Direct buffers are addressed with int, so the table must be below 2GB
+    private static final int MAX_SLOTS = 1 << 26;
+    private static final int UUID_LENGTH = 36;
+    private static final byte[] NIBBLES = createNibbles();
+
+    private final long offHeapBytes;
+
+    private LongBuffer table; // msb and lsb for each slot. 0 and 0 means free
+    private int slots; // Always a power of 2
+    private int tableEntries = 0;
+    private boolean containsNil = false; // The nil UUID has the same representation as a free slot
+    private final Set<String> others = new HashSet<>();
+    // The result of the last successful parseUUID
+    private long parsedMSB;
+    private long parsedLSB;
+
+    /**
+     * Create a set on the heap for {@link #DEFAULT_EXPECTED_SIZE} UUIDs, that grows as needed.
+     */
+    public UUIDSet() {
+        this(DEFAULT_EXPECTED_SIZE, -1);
+    }
+
+    /**
+     * @param expectedSize the expected number of UUIDs. The set grows as needed.
+     * @param offHeapBytes tables larger than this are allocated off-heap. -1 means always on the heap.
+     */
+    public UUIDSet(int expectedSize, long offHeapBytes) {
+        this.offHeapBytes = offHeapBytes;
+        slots = 16;
+        while (slots < MAX_SLOTS && slots / MAX_LOAD_DIVISOR < expectedSize) {
+            slots <<= 1;
+        }
+        table = allocate(slots);
+    }
+
+    /**
+     * Add the given value to the set.
+     * @param value a UUID, optionally with a prefix such as {@code doms_aviser_page:uuid:}.
+     * @return true if the value was not already in the set.
+     */
+    public boolean add(String value) {
+        return parseUUID(value) ? add(parsedMSB, parsedLSB) : others.add(value);
+    }
+
+    /**
+     * Add the UUID with the given bits to the set.
+     * @param msb the most significant bits of the UUID.
+     * @param lsb the least significant bits of the UUID.
+     * @return true if the UUID was not already in the set.
+     */
+    public boolean add(long msb, long lsb) {
+        if (msb == 0 && lsb == 0) {
+            boolean added = !containsNil;
+            containsNil = true;
+            return added;
+        }
+        if (tableEntries >= slots / MAX_LOAD_DIVISOR) {
+            grow();
+        }
+        if (!insert(table, slots, msb, lsb)) {
+            return false;
+        }
+        tableEntries++;
+        return true;
+    }
+
+    /**
+     * @param value a UUID, optionally with a prefix such as {@code doms_aviser_page:uuid:}.
+     * @return true if the value is in the set.
+     */
+    public boolean contains(String value) {
+        if (!parseUUID(value)) {
+            return others.contains(value);
+        }
+        long msb = parsedMSB;
+        long lsb = parsedLSB;
+        if (msb == 0 && lsb == 0) {
+            return containsNil;
+        }
+        int mask = slots - 1;
+        for (int slot = slot(msb, lsb, mask) ; ; slot = (slot + 1) & mask) {
+            long m = table.get(slot << 1);
+            long l = table.get((slot << 1) + 1);
+            if (m == 0 && l == 0) {
+                return false;
+            }
+            if (m == msb && l == lsb) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of values in the set.
+     */
+    public int size() {
+        return tableEntries + (containsNil ? 1 : 0) + others.size();
+    }
+
+    /**
+     * @return the number of bytes used by the hash table. Values that are not UUIDs are not counted.
+     */
+    public long getTableBytes() {
+        return 16L * slots;
+    }
+
+    /**
+     * @return true if the hash table is allocated off-heap.
+     */
+    public boolean isOffHeap() {
+        return table.isDirect();
+    }
+
+    private void grow() {
+        if (slots >= MAX_SLOTS) {
+            throw new IllegalStateException("The UUIDSet cannot hold more than " + MAX_SLOTS / MAX_LOAD_DIVISOR +
+                                            " UUIDs");
+        }
+        int newSlots = slots << 1;
+        LongBuffer newTable = allocate(newSlots);
+        for (int slot = 0 ; slot < slots ; slot++) {
+            long m = table.get(slot << 1);
+            long l = table.get((slot << 1) + 1);
+            if (m != 0 || l != 0) {
+                insert(newTable, newSlots, m, l);
+            }
+        }
+        if (newTable.isDirect() && !table.isDirect()) {
+            log.debug("Moved UUIDSet with {} UUIDs off-heap", tableEntries);
+        }
+        table = newTable;
+        slots = newSlots;
+    }
+
+    /**
+     * Insert the UUID in the table if it is not already there. Does not check the load or update the count.
+     */
+    private boolean insert(LongBuffer table, int slots, long msb, long lsb) {
+        int mask = slots - 1;
+        for (int slot = slot(msb, lsb, mask) ; ; slot = (slot + 1) & mask) {
+            long m = table.get(slot << 1);
+            long l = table.get((slot << 1) + 1);
+            if (m == 0 && l == 0) {
+                table.put(slot << 1, msb);
+                table.put((slot << 1) + 1, lsb);
+                return true;
+            }
+            if (m == msb && l == lsb) {
+                return false;
+            }
+        }
+    }
+
+    private LongBuffer allocate(int slots) {
+        long bytes = 16L * slots;
+        return offHeapBytes != -1 && bytes > offHeapBytes ?
+                ByteBuffer.allocateDirect((int) bytes).asLongBuffer() :
+                LongBuffer.allocate(slots << 1);
+    }
+
+    /**
+     * Mixes the bits of the UUID (the finalizer from MurmurHash3), as not all UUIDs are random.
+     */
+    private static int slot(long msb, long lsb, int mask) {
+        long h = msb * 31 + lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    /**
+     * Validate and parse the UUID at the end of the value in a single pass. The result is stored in
+     * {@link #parsedMSB} and {@link #parsedLSB}, to avoid allocating objects for each call.
+     * @param value a UUID, optionally with a prefix ending in {@code :}.
+     * @return true if the value held a UUID.
+     */
+    private boolean parseUUID(String value) {
+        int start = value.length() - UUID_LENGTH;
+        if (start < 0 || (start > 0 && value.charAt(start - 1) != ':') ||
+            value.charAt(start + 8) != '-' || value.charAt(start + 13) != '-' ||
+            value.charAt(start + 18) != '-' || value.charAt(start + 23) != '-') {
+            return false;
+        }
+        long g1 = parse4Nibbles(value, start);
+        long g2 = parse4Nibbles(value, start + 4);
+        long g3 = parse4Nibbles(value, start + 9);
+        long g4 = parse4Nibbles(value, start + 14);
+        long g5 = parse4Nibbles(value, start + 19);
+        long g6 = parse4Nibbles(value, start + 24);
+        long g7 = parse4Nibbles(value, start + 28);
+        long g8 = parse4Nibbles(value, start + 32);
+        if ((g1 | g2 | g3 | g4 | g5 | g6 | g7 | g8) < 0) {
+            return false;
+        }
+        parsedMSB = g1 << 48 | g2 << 32 | g3 << 16 | g4;
+        parsedLSB = g5 << 48 | g6 << 32 | g7 << 16 | g8;
+        return true;
+    }
+
+    /**
+     * @return the 16 bits represented by the 4 hex digits from pos or a negative value if they are not all hex digits.
+     */
+    private static long parse4Nibbles(String value, int pos) {
+        char c1 = value.charAt(pos);
+        char c2 = value.charAt(pos + 1);
+        char c3 = value.charAt(pos + 2);
+        char c4 = value.charAt(pos + 3);
+        return (c1 | c2 | c3 | c4) > 0xFF ? -1 :
+                NIBBLES[c1] << 12 | NIBBLES[c2] << 8 | NIBBLES[c3] << 4 | NIBBLES[c4];
+    }
+
+    /**
+     * @return a lookup table from characters to their value as hex digits, with -1 for all other characters.
+     */
+    private static byte[] createNibbles() {
+        byte[] nibbles = new byte[256];
+        Arrays.fill(nibbles, (byte) -1);
+        for (int i = 0 ; i < 10 ; i++) {
+            nibbles['0' + i] = (byte) i;
+        }
+        for (int i = 0 ; i < 6 ; i++) {
+            nibbles['a' + i] = (byte) (10 + i);
+            nibbles['A' + i] = (byte) (10 + i);
+        }
+        return nibbles;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "UUIDSet(size=%d, tableBytes=%d, offHeap=%b)",
+                             size(), getTableBytes(), isOffHeap());
+    }
+}
@@ -1,9 +1,12 @@
 package dk.kb.labsapi.api.impl;
 
 import dk.kb.labsapi.api.*;
+import dk.kb.labsapi.model.CacheStatsDto;
 import dk.kb.labsapi.model.ErrorDto;
+import dk.kb.labsapi.model.ExportJobDto;
 import java.io.File;
 import dk.kb.labsapi.model.HitsDto;
+import dk.kb.labsapi.model.PagingStatsDto;
 import dk.kb.labsapi.model.TimelineEntryDto;
 
 import dk.kb.webservice.exception.ServiceException;
@@ -25,6 +28,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.ContextResolver;
@@ -103,6 +107,8 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
      * 
      * @param format: |The delivery format.| | |---|---| |CSV|Comma separated, missing values represented with nothing, strings encapsulated in quotes.| |JSON|Valid JSON in the form of a single array of TimelineEntrys.| 
      * 
+     * @param compression: Compression of the response. &#x60;auto&#x60; selects gzip or deflate from the &#x60;Accept-Encoding&#x60; header of the request. &#x60;identity&#x60; disables compression. 
+     * 
      * @return <ul>
       *   <li>code = 200, message = "OK", response = TimelineEntryDto.class, responseContainer = "List"</li>
       *   </ul>
@@ -113,7 +119,7 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public javax.ws.rs.core.StreamingOutput aviserStatsTimeline(String query, String filter, String granularity, String startTime, String endTime, List<String> elements, List<String> structure, String format) throws ServiceException {
+    public javax.ws.rs.core.StreamingOutput aviserStatsTimeline(String query, String filter, String granularity, String startTime, String endTime, List<String> elements, List<String> structure, String format, String compression) throws ServiceException {
         // TODO: Implement...
     
         
@@ -134,6 +140,10 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
      * 
      * @param format: |The delivery format.| | |---|---| |CSV|Comma separated, missing values represented with nothing, strings encapsulated in quotes.| |JSON|Valid JSON in the form of a single array of Documents.| |JSONL|Newline separated single-line JSON representations of Documents.| |TXT|Plain text output. UTF-8 Encoded.| |XML|XML output. UTF-8 Encoded. &lt;br/&gt;This output format is [Voyant](https://voyant-tools.org/docs/#!/guide/about) compliant and makes it possible to export newspaper data directly to Voyant.| 
      * 
+     * @param resume: Continue an interrupted export from a checkpoint instead of from the beginning.  CSV exports with the structure &#x60;comments&#x60; contain checkpoint lines of the form &#x60;# resume: &lt;token&gt;&#x60; after each batch of articles. If the connection is lost, discard the articles after the last received checkpoint and repeat the request with the same query, fields and format, with &#x60;resume&#x3D;&lt;token&gt;&#x60;. The export then continues with the article following the checkpoint. &#x60;max&#x60; is counted from the start of the original export.  A completed CSV export with the structure &#x60;comments&#x60; ends with the line &#x60;# export complete&#x60;. 
+     * 
+     * @param compression: Compression of the response. &#x60;auto&#x60; selects gzip or deflate from the &#x60;Accept-Encoding&#x60; header of the request. &#x60;identity&#x60; disables compression. 
+     * 
      * @return <ul>
       *   <li>code = 200, message = "OK", response = String.class</li>
       *   <li>code = 400, message = "Invalid Argument", response = String.class</li>
@@ -147,7 +157,7 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public javax.ws.rs.core.StreamingOutput exportFields(String query, List<String> fields, Long max, List<String> structure, String format) throws ServiceException {
+    public javax.ws.rs.core.StreamingOutput exportFields(String query, List<String> fields, Long max, List<String> structure, String format, String resume, String compression) throws ServiceException {
         // TODO: Implement...
     
         
@@ -184,6 +194,92 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
         return null;
     }
 
+    /**
+     * Queue an export of fields from articles in the newspaper collection at http://mediestream.dk/
+     * 
+     * @return <ul>
+      *   <li>code = 200, message = "OK: The export has been queued", response = ExportJobDto.class</li>
+      *   <li>code = 400, message = "Invalid Argument", response = String.class</li>
+      *   <li>code = 503, message = "Service Unavailable", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public ExportJobDto submitExportFieldsJob(String query, List<String> fields, Long max, List<String> structure, String format) throws ServiceException {
+        // TODO: Implement...
+    
+        
+    
+        return null;
+    }
+
+    /**
+     * Queue an export of images from the newspaper collection at http://mediestream.dk/
+     * 
+     * @return <ul>
+      *   <li>code = 200, message = "OK: The export has been queued", response = ExportJobDto.class</li>
+      *   <li>code = 400, message = "Invalid Argument", response = String.class</li>
+      *   <li>code = 503, message = "Service Unavailable", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public ExportJobDto submitExportImagesJob(String exportFormat, String query, Integer startTime, Integer endTime, Integer max) throws ServiceException {
+        // TODO: Implement...
+    
+        
+    
+        return null;
+    }
+
+    /**
+     * Get the state of an export job
+     * 
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = ExportJobDto.class</li>
+      *   <li>code = 404, message = "Not Found", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public ExportJobDto getExportJob(String jobID) throws ServiceException {
+        // TODO: Implement...
+    
+        
+    
+        return null;
+    }
+
+    /**
+     * Download the result of a completed export job, optionally as a byte range
+     * 
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = File.class</li>
+      *   <li>code = 206, message = "Partial Content", response = File.class</li>
+      *   <li>code = 304, message = "Not Modified", response = String.class</li>
+      *   <li>code = 404, message = "Not Found", response = String.class</li>
+      *   <li>code = 409, message = "Conflict", response = String.class</li>
+      *   <li>code = 416, message = "Range Not Satisfiable", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public javax.ws.rs.core.Response downloadExportJob(String jobID, String range, String ifNoneMatch) throws ServiceException {
+        // TODO: Implement...
+    
+        
+    
+        return Response.ok().entity("magic!").build();
+    }
+
     /**
      * Facet on a field for newspapers data from http://mediestream.dk/
      * 
@@ -224,6 +320,8 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
      * 
      * @param id: The ID for the ALTO to retrieve. This can be  * a [Mediestream URL](https://www2.statsbiblioteket.dk/mediestream/avis/record/doms_aviser_page:uuid:a9990f12-e9f0-4b1e-becc-e0d4bf514586/query/heste) to a single page * an &#x60;UUID&#x60;  such as &#x60;a9990f12-e9f0-4b1e-becc-e0d4bf514586&#x60;. &#x60;UUID&#x60;s can be extracted from the Mediestream URL directly or from &#x60;recordID&#x60;s or &#x60;pageUUID&#x60;s from field exports.   * a &#x60;recordID&#x60; for an article such as &#x60;doms_newspaperCollection:uuid:1620bf3b-7801-4a34-b2b9-fd8db9611b76-segment_19&#x60;. &#x60;recordID&#x60;s can be retrieved as part of the field export endpoint. 
      * 
+     * @param compression: Compression of the response. &#x60;auto&#x60; selects gzip or deflate from the &#x60;Accept-Encoding&#x60; header of the request. &#x60;identity&#x60; disables compression. 
+     * 
      * @return <ul>
       *   <li>code = 200, message = "OK", response = String.class</li>
       *   </ul>
@@ -234,7 +332,7 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public String getALTO(String id) throws ServiceException {
+    public String getALTO(String id, String compression) throws ServiceException {
         // TODO: Implement...
     
         
@@ -261,6 +359,48 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
     
         
     
+        return null;
+    }
+
+    /**
+     * Statistics for the Solr caches, intended for operators sizing the cache configuration
+     * 
+     * @param topN: The maximum number of hot keys (the entries with the most hits) to return for each cache
+     * 
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = CacheStatsDto.class, responseContainer = "List"</li>
+      *   <li>code = 500, message = "Internal Error", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public List<CacheStatsDto> cacheStats(Integer topN) throws ServiceException {
+        // TODO: Implement...
+    
+        
+    
+        return null;
+    }
+
+    /**
+     * Statistics for paging through Solr results, intended for operators tuning the paging configuration
+     * 
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = PagingStatsDto.class, responseContainer = "List"</li>
+      *   <li>code = 500, message = "Internal Error", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public List<PagingStatsDto> pagingStats() throws ServiceException {
+        // TODO: Implement...
+    
+        
+    
         return null;
     }
 
@@ -282,6 +422,27 @@ public class LabsapiApiServiceImpl implements LabsapiApi {
     
         
     
+        return null;
+    }
+
+    /**
+     * Check if the server is ready to receive requests. The server is not ready while the Solr caches are being warmed up after startup. Intended for load balancers and orchestration probes.
+     * 
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = String.class</li>
+      *   <li>code = 503, message = "Service Unavailable: Cache warm-up in progress", response = String.class</li>
+      *   <li>code = 500, message = "Internal Error", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public String ready() throws ServiceException {
+        // TODO: Implement...
+    
+        
+    
         return null;
     }
 
@@ -1,16 +1,30 @@
 package dk.kb.labsapi.api.impl;
 
+import dk.kb.labsapi.CacheWarmer;
+import dk.kb.labsapi.CachingSolrClient;
+import dk.kb.labsapi.DiskCache;
+import dk.kb.labsapi.ExportJobs;
 import dk.kb.labsapi.ImageExport;
+import dk.kb.labsapi.LatencyHistogram;
+import dk.kb.labsapi.PagingStats;
+import dk.kb.labsapi.SolrBase;
 import dk.kb.labsapi.SummariseExport;
 import dk.kb.labsapi.SolrExport;
 import dk.kb.labsapi.SolrTimeline;
 import dk.kb.labsapi.api.LabsapiApi;
 import dk.kb.labsapi.config.ServiceConfig;
+import dk.kb.labsapi.model.CacheHotKeyDto;
+import dk.kb.labsapi.model.CacheStatsDto;
+import dk.kb.labsapi.model.ExportJobDto;
 import dk.kb.labsapi.model.HitsDto;
+import dk.kb.labsapi.model.LatencyBucketDto;
+import dk.kb.labsapi.model.PagingStatsDto;
 import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.ConflictServiceException;
 import dk.kb.webservice.exception.InternalServiceException;
 import dk.kb.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.webservice.exception.ServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
 import org.apache.cxf.jaxrs.ext.MessageContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +37,7 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import java.net.URI;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -44,6 +59,8 @@ public class LabsapiService implements LabsapiApi {
     final static Set<String> allowedFacetFields = new HashSet<>();
     private static final Integer facetLimitMax;
     private static final Integer maxExport;
+    // The canonical requests for hot keys expose queries from other users, so they are only shown if enabled
+    private static final boolean showCacheRequests;
 
     static {
         final YAML conf = ServiceConfig.getConfig();
@@ -72,6 +89,7 @@ public class LabsapiService implements LabsapiApi {
         facetLimitMax = ServiceConfig.getConfig().getInteger(".labsapi.aviser.facet.limit.max", 1000);
 
         maxExport = conf.getInteger(".labsapi.aviser.imageserver.maxExport", 1000);
+        showCacheRequests = conf.getBoolean(".labsapi.admin.cache.showRequests", false);
 
     }
 
@@ -94,6 +112,8 @@ public class LabsapiService implements LabsapiApi {
      *
      * @param format: The delivery format.  * CSV: Comma separated, missing values represented with nothing, strings encapsulated in quotes * JSON: Valid JSON in the form of a single array of TimelineEntrys
      *
+     * @param compression: Compression of the response. Applied by the CompressionInterceptor, so it is not used here
+     *
      * @return <ul>
       *   <li>code = 200, message = "OK", response = TimelineEntryDto.class, responseContainer = "List"</li>
       *   </ul>
@@ -104,7 +124,7 @@ public class LabsapiService implements LabsapiApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public javax.ws.rs.core.StreamingOutput aviserStatsTimeline(String query, String filter, String granularity, String startTime, String endTime, List<String> elements, List<String> structure, String format) throws ServiceException {
+    public javax.ws.rs.core.StreamingOutput aviserStatsTimeline(String query, String filter, String granularity, String startTime, String endTime, List<String> elements, List<String> structure, String format, String compression) throws ServiceException {
         if (elements.isEmpty()) {
             log.debug("No timeline elements defined, using default " + SolrTimeline.DEFAULT_TIMELINE_ELEMENTS);
             elements = SolrTimeline.DEFAULT_TIMELINE_ELEMENTS.stream().map(Enum::toString).collect(Collectors.toList());
@@ -116,6 +136,9 @@ public class LabsapiService implements LabsapiApi {
                 .map(SolrTimeline.ELEMENT::valueOf)
                 .collect(Collectors.toSet());
         log.info("trueElements: " + trueElements + " from " + elements);
+        CacheWarmer.getInstance().record(CacheWarmer.TIMELINE,
+                                         "query", query, "filter", filter, "granularity", trueGranularity,
+                                         "startTime", startTime, "endTime", endTime, "elements", trueElements);
         Set<SolrTimeline.STRUCTURE> trueStructure = SolrTimeline.STRUCTURE.valueOf(structure);
         SolrTimeline.TIMELINE_FORMAT trueFormat = SolrTimeline.TIMELINE_FORMAT.lenientParse(format);
 
@@ -158,6 +181,10 @@ public class LabsapiService implements LabsapiApi {
      *
      * @param format: The delivery format.\\n * CSV: Comma separated, missing values represented with nothing, strings encapsulated in quotes\\n * JSON: Valid JSON in the form of a single array of Documents\\n * JSONL: Newline separated single-line JSON representations of Documents
      *
+     * @param resume: A token from a checkpoint in an interrupted export. The export continues after the checkpoint
+     *
+     * @param compression: Compression of the response. Applied by the CompressionInterceptor, so it is not used here
+     *
      * @return <ul>
       *   <li>code = 200, message = "OK", response = String.class</li>
       *   <li>code = 400, message = "Invalid Argument", response = String.class</li>
@@ -169,27 +196,11 @@ public class LabsapiService implements LabsapiApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public StreamingOutput exportFields(String query, List<String> fields, Long max, List<String> structure, String format) throws ServiceException {
-        if (allowedAviserExportFields.isEmpty()) {
-            log.error("Error: No allowed export fields defined in properties");
-            throw new InternalServiceException(
-                    "Error: The list of allowed export fields is empty. The cause is probably a missing " +
-                    "configuration, meaning that it requires human intervention to fix");
-        }
-        if (fields.isEmpty()) {
-            throw new InvalidArgumentServiceException(
-                    "Error: No export fields defined. Valid fields are " + allowedAviserExportFields);
-        }
-        Set<String> eFields = ensureValids(fields, allowedAviserExportFields, "export");
-
+    public StreamingOutput exportFields(String query, List<String> fields, Long max, List<String> structure, String format, String resume, String compression) throws ServiceException {
+        Set<String> eFields = ensureExportFields(fields);
         long trueMax = max == null ? 10 : (max < 0 ? -1 : max);
         Set<SolrExport.STRUCTURE> structureSet = SolrExport.STRUCTURE.valueOf(structure);
-        SolrExport.EXPORT_FORMAT trueFormat = SolrExport.EXPORT_FORMAT.lenientParse(format);
-        if (trueFormat != SolrExport.EXPORT_FORMAT.csv && structureSet.contains(SolrExport.STRUCTURE.comments)) {
-            log.warn("Requested export in format {} with structure {}, " +
-                     "which is not possible: Comments will not be delivered",
-                     trueFormat, SolrExport.STRUCTURE.comments);
-        }
+        SolrExport.EXPORT_FORMAT trueFormat = parseExportFormat(format, structureSet);
         switch (trueFormat) {
             case csv: {
                 httpServletResponse.setContentType("text/csv;charset=UTF-8");
@@ -232,17 +243,210 @@ public class LabsapiService implements LabsapiApi {
                 httpServletResponse.setHeader("Content-Disposition", "inline; filename=\"" + filename + "\"");
             }
 
-            return SolrExport.getInstance().export(query, eFields, trueMax, structureSet, trueFormat);
+            return SolrExport.getInstance().export(query, eFields, trueMax, structureSet, trueFormat, resume);
         } catch (Exception e){
             throw handleException(e);
         }
     }
 
+    /**
+     * Queue an export of fields from articles in the newspaper collection at http://mediestream.dk/
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "OK: The export has been queued", response = ExportJobDto.class</li>
+      *   <li>code = 400, message = "Invalid Argument", response = String.class</li>
+      *   <li>code = 503, message = "Service Unavailable", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * The export is written to a compressed file on the server, which can be downloaded when the job has completed.
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public ExportJobDto submitExportFieldsJob(String query, List<String> fields, Long max, List<String> structure, String format) throws ServiceException {
+        Set<String> eFields = ensureExportFields(fields);
+        long trueMax = max == null ? 10 : (max < 0 ? -1 : max);
+        Set<SolrExport.STRUCTURE> structureSet = SolrExport.STRUCTURE.valueOf(structure);
+        SolrExport.EXPORT_FORMAT trueFormat = parseExportFormat(format, structureSet);
+
+        log.debug(String.format(Locale.ENGLISH,
+                                "Queueing export job for fields %s with max=%d and structure=%s in format=%s for query '%s'",
+                                eFields, max, structureSet.toString(), format, query));
+        try {
+            StreamingOutput export = SolrExport.getInstance().export(
+                    query, eFields, trueMax, structureSet, trueFormat, null);
+            String filename = "mediestream_" + getCurrentTimeISO() + "." + trueFormat;
+            return createExportJobDto(ExportJobs.getInstance().submit("fields", filename, export));
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Queue an export of images from the newspaper collection at http://mediestream.dk/
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "OK: The export has been queued", response = ExportJobDto.class</li>
+      *   <li>code = 400, message = "Invalid Argument", response = String.class</li>
+      *   <li>code = 503, message = "Service Unavailable", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public ExportJobDto submitExportImagesJob(String exportFormat, String query, Integer startTime, Integer endTime, Integer max) throws ServiceException {
+        if (max > maxExport){
+            log.error("Maximum value is to high. Highest value is: " + maxExport);
+            throw new InvalidArgumentServiceException("Maximum value is to high. Highest value is: " + maxExport);
+        }
+        StreamingOutput export;
+        String filename;
+        switch (exportFormat) {
+            case "illustrations":
+                filename = getCurrentTimeISO() + "_illustrations.zip";
+                export = output -> ImageExport.getInstance().exportIllustrations(query, startTime, endTime, max, output, exportFormat);
+                break;
+            case "fullPage":
+                filename = getCurrentTimeISO() + "_fullPages.zip";
+                export = output -> ImageExport.getInstance().exportFullpages(query, startTime, endTime, max, output, exportFormat);
+                break;
+            default: throw new InvalidArgumentServiceException(
+                    "Error: Unsupported export format '" + exportFormat + "'. Valid formats are illustrations and fullPage");
+        }
+        try {
+            return createExportJobDto(ExportJobs.getInstance().submit("images", filename, export));
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Get the state of an export job
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = ExportJobDto.class</li>
+      *   <li>code = 404, message = "Not Found", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public ExportJobDto getExportJob(String jobID) throws ServiceException {
+        try {
+            return createExportJobDto(ExportJobs.getInstance().getJob(jobID));
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Download the result of a completed export job, optionally as a byte range
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = File.class</li>
+      *   <li>code = 206, message = "Partial Content", response = File.class</li>
+      *   <li>code = 304, message = "Not Modified", response = String.class</li>
+      *   <li>code = 404, message = "Not Found", response = String.class</li>
+      *   <li>code = 409, message = "Conflict", response = String.class</li>
+      *   <li>code = 416, message = "Range Not Satisfiable", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+     */
+    @Override
+    public Response downloadExportJob(String jobID, String range, String ifNoneMatch) throws ServiceException {
+        ExportJobs.Job job = ExportJobs.getInstance().getJob(jobID);
+        if (job.getState() != ExportJobs.STATE.completed) {
+            throw new ConflictServiceException(
+                    "The export job '" + jobID + "' is " + job.getState() + " and cannot be downloaded");
+        }
+        if (job.getETag().equals(ifNoneMatch)) {
+            return Response.notModified(job.getETag()).build();
+        }
+        final long total = job.getSpoolBytes();
+        ExportJobs.ByteRange byteRange = ExportJobs.ByteRange.parse(range, total);
+        if (byteRange == ExportJobs.ByteRange.UNSATISFIABLE) {
+            return Response.status(416)
+                    .header("Content-Range", "bytes */" + total)
+                    .build();
+        }
+        Response.ResponseBuilder response;
+        if (byteRange == null) {
+            byteRange = ExportJobs.ByteRange.full(total);
+            response = Response.ok();
+        } else {
+            response = Response.status(206).header("Content-Range", byteRange.toContentRange());
+        }
+        final ExportJobs.ByteRange delivery = byteRange;
+        return response
+                .entity((StreamingOutput) output -> job.writeSpool(delivery, output))
+                .type("application/gzip")
+                .header("ETag", job.getETag())
+                .header("Accept-Ranges", "bytes")
+                .header("Content-Length", delivery.getLength())
+                .header("Content-Disposition", "attachment; filename=\"" + job.getFilename() + "\"")
+                .build();
+    }
+
+    private static ExportJobDto createExportJobDto(ExportJobs.Job job) {
+        ExportJobDto dto = new ExportJobDto()
+                .jobID(job.getId())
+                .type(job.getType())
+                .state(ExportJobDto.StateEnum.fromValue(job.getState().name()))
+                .created(Instant.ofEpochMilli(job.getCreated()).toString())
+                .started(job.getStarted() == 0 ? null : Instant.ofEpochMilli(job.getStarted()).toString())
+                .finished(job.getFinished() == 0 ? null : Instant.ofEpochMilli(job.getFinished()).toString())
+                .expires(job.getExpires())
+                .bytes(job.getBytes())
+                .filename(job.getFilename())
+                .message(job.getMessage());
+        if (job.getState() == ExportJobs.STATE.completed) {
+            dto.downloadBytes(job.getSpoolBytes())
+                    .download("aviser/export/jobs/" + job.getId() + "/download");
+        }
+        return dto;
+    }
+
+    /**
+     * Verify that export is possible and that the requested fields are allowed.
+     * @param fields the requested export fields, possibly comma separated.
+     * @return the sanitized fields.
+     * @throws InternalServiceException if no export fields are allowed.
+     * @throws InvalidArgumentServiceException if no fields are requested or some of the fields are not allowed.
+     */
+    private Set<String> ensureExportFields(List<String> fields) {
+        if (allowedAviserExportFields.isEmpty()) {
+            log.error("Error: No allowed export fields defined in properties");
+            throw new InternalServiceException(
+                    "Error: The list of allowed export fields is empty. The cause is probably a missing " +
+                    "configuration, meaning that it requires human intervention to fix");
+        }
+        if (fields.isEmpty()) {
+            throw new InvalidArgumentServiceException(
+                    "Error: No export fields defined. Valid fields are " + allowedAviserExportFields);
+        }
+        return ensureValids(fields, allowedAviserExportFields, "export");
+    }
+
+    private SolrExport.EXPORT_FORMAT parseExportFormat(String format, Set<SolrExport.STRUCTURE> structureSet) {
+        SolrExport.EXPORT_FORMAT trueFormat = SolrExport.EXPORT_FORMAT.lenientParse(format);
+        if (trueFormat != SolrExport.EXPORT_FORMAT.csv && structureSet.contains(SolrExport.STRUCTURE.comments)) {
+            log.warn("Requested export in format {} with structure {}, " +
+                     "which is not possible: Comments will not be delivered",
+                     trueFormat, SolrExport.STRUCTURE.comments);
+        }
+        return trueFormat;
+    }
+
     /**
      * Deliver [ALTO XML](https://www.loc.gov/standards/alto/) for a single page from http://mediestream.dk/
      *
      * @param id: Ths ID for the ALTO to retrieve. This can be  * a [Mediestream link](https://www2.statsbiblioteket.dk/mediestream/avis/record/doms_aviser_page:uuid:a9990f12-e9f0-4b1e-becc-e0d4bf514586/query/heste) * an UUID such as &#x60;a9990f12-e9f0-4b1e-becc-e0d4bf514586&#x60; * a &#x60;recordID&#x60; for an article such as &#x60;doms_newspaperCollection:uuid:1620bf3b-7801-4a34-b2b9-fd8db9611b76-segment_19&#x60;
      *
+     * @param compression: Compression of the response. Applied by the CompressionInterceptor, so it is not used here
+     *
      * @return <ul>
       *   <li>code = 200, message = "OK", response = String.class</li>
       *   </ul>
@@ -253,7 +457,7 @@ public class LabsapiService implements LabsapiApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public String getALTO(String id) throws ServiceException {
+    public String getALTO(String id, String compression) throws ServiceException {
         String uuid = SummariseExport.extractUUID(id);
 
         try{
@@ -375,6 +579,9 @@ public class LabsapiService implements LabsapiApi {
             throw new InvalidArgumentServiceException(
                     "Cannot facet on field '" + field + "', only " + allowedFacetFields + " are acceptable");
         }
+        CacheWarmer.getInstance().record(CacheWarmer.FACET,
+                                         "query", query, "startTime", startTime, "endTime", endTime,
+                                         "field", field, "sort", eSort, "limit", limit);
 
         try {
             return SolrExport.getInstance().facet(query, startTime, endTime, field, eSort, limit, eFormat);
@@ -399,11 +606,121 @@ public class LabsapiService implements LabsapiApi {
      */
     @Override
     public HitsDto hitCount(String query) throws ServiceException {
+        CacheWarmer.getInstance().record(CacheWarmer.HITS, "query", query);
         long pub = SolrExport.getInstance().countHits(query);   // >= 140 years old
         long all = SolrTimeline.getInstance().countHits(query); // No age restriction
         return new HitsDto()._public(pub).restricted(all-pub);
     }
 
+    /**
+     * Statistics for the Solr caches, intended for operators sizing the cache configuration
+     *
+     * @param topN: The maximum number of hot keys (the entries with the most hits) to return for each cache
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = CacheStatsDto.class, responseContainer = "List"</li>
+      *   <li>code = 500, message = "Internal Error", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public List<CacheStatsDto> cacheStats(Integer topN) throws ServiceException {
+        int trueTopN = topN == null ? 10 : topN;
+        if (trueTopN < 0 || trueTopN > 1000) {
+            throw new InvalidArgumentServiceException("topN must be between 0 and 1000 but was " + topN);
+        }
+        try {
+            return Arrays.asList(
+                    createCacheStats("export", SolrExport.getInstance().getSolrClient(), trueTopN),
+                    createCacheStats("timeline", SolrTimeline.getInstance().getSolrClient(), trueTopN));
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    private static CacheStatsDto createCacheStats(String name, CachingSolrClient client, int topN) {
+        final long now = System.currentTimeMillis();
+        CacheStatsDto stats = new CacheStatsDto()
+                .name(name)
+                .entries(client.size())
+                .capacity(client.getCapacity())
+                .estimatedBytes(client.getCachedBytes())
+                .maxBytes(client.getMaxCachedBytes())
+                .calls(client.getCalls())
+                .hits(client.getHits())
+                .hitRatio(client.getCalls() == 0 ? 0.0 : 1.0 * client.getHits() / client.getCalls())
+                .coalesced(client.getCoalesced())
+                .bypassed(client.getBypassed())
+                .refreshes(client.getRefreshes())
+                .invalidations(client.getInvalidations())
+                .evictionsCapacity(client.getEvictionsCapacity())
+                .evictionsAge(client.getEvictionsAge())
+                .connectionAcquires(client.getConnectionAcquires())
+                .connectionWaitMS(client.getConnectionWaitMS())
+                .connectionWaitMaxMS(client.getConnectionWaitMaxMS())
+                .connectionRejections(client.getConnectionRejections());
+
+        List<Long> counts = client.getMissLatency().getCounts();
+        for (int bucket = 0 ; bucket < counts.size() ; bucket++) {
+            stats.addMissLatencyItem(new LatencyBucketDto()
+                                             .maxMS(LatencyHistogram.getUpperMS(bucket))
+                                             .count(counts.get(bucket)));
+        }
+
+        DiskCache disk = client.getDiskCache();
+        if (disk != null) {
+            stats.diskCalls(disk.getCalls()).diskHits(disk.getHits()).diskBytes(disk.getBytes());
+        }
+
+        stats.setHotKeys(client.getHotKeys(topN).stream()
+                                 .map(hot -> new CacheHotKeyDto()
+                                         .digest(hot.getKey())
+                                         .request(showCacheRequests ? hot.getFullKey() : null)
+                                         .hits(hot.getHits())
+                                         .estimatedBytes(hot.getWeight())
+                                         .ageMS(now - hot.getCreated().toEpochMilli()))
+                                 .collect(Collectors.toList()));
+        return stats;
+    }
+
+    /**
+     * Statistics for paging through Solr results, intended for operators tuning the paging configuration
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = PagingStatsDto.class, responseContainer = "List"</li>
+      *   <li>code = 500, message = "Internal Error", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public List<PagingStatsDto> pagingStats() throws ServiceException {
+        try {
+            return Arrays.asList(
+                    createPagingStats("export", SolrExport.getInstance()),
+                    createPagingStats("images", ImageExport.getSolrBase()));
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    private static PagingStatsDto createPagingStats(String name, SolrBase solrBase) {
+        PagingStats stats = solrBase.getPagingStats();
+        return new PagingStatsDto()
+                .name(name)
+                .adaptive(solrBase.isAdaptivePaging())
+                .pages(stats.getPages())
+                .documents(stats.getDocs())
+                .averageRows(stats.getAverageRows())
+                .minRows(stats.getMinRows())
+                .maxRows(stats.getMaxRows())
+                .averageBytes(stats.getAverageBytes())
+                .averageMS(stats.getAverageMS());
+    }
+
     /**
      * Ping the server to check if the server is reachable.
      *
@@ -421,6 +738,25 @@ public class LabsapiService implements LabsapiApi {
         return "pong";
     }
 
+    /**
+     * Check if the service is ready to receive requests, i.e. that the Solr caches have been warmed.
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "OK", response = String.class</li>
+      *   <li>code = 503, message = "Service Unavailable", response = String.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public String ready() throws ServiceException {
+        if (!CacheWarmer.getInstance().isReady()) {
+            throw new ServiceUnavailableServiceException("Cache warm-up in progress");
+        }
+        return "ready";
+    }
+
 
 
     /**
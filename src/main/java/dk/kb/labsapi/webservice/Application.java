@@ -6,6 +6,7 @@ import java.util.Set;
 
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import dk.kb.labsapi.api.impl.LabsapiService;
+import dk.kb.webservice.CompressionInterceptor;
 import dk.kb.webservice.ServiceExceptionMapper;
 
 
@@ -16,7 +17,8 @@ public class Application extends javax.ws.rs.core.Application {
         return new HashSet<>(Arrays.asList(
                 JacksonJsonProvider.class,
                 LabsapiService.class,
-                ServiceExceptionMapper.class
+                ServiceExceptionMapper.class,
+                CompressionInterceptor.class
         ));
     }
 
@@ -0,0 +1,92 @@
+package dk.kb.webservice;
+
+import dk.kb.labsapi.Compression;
+import dk.kb.labsapi.config.ServiceConfig;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the responses for the configured endpoints with gzip or deflate, as negotiated from the
+ * {@code compression} query parameter or the {@code Accept-Encoding} header. See {@link Compression}.
+ */
+@Provider
+public class CompressionInterceptor implements WriterInterceptor {
+    private static final Logger log = LoggerFactory.getLogger(CompressionInterceptor.class);
+
+    public static final String COMPRESSION_PARAM = "compression";
+    public static final List<String> DEFAULT_PATHS = Arrays.asList(
+            "aviser/export/fields", "aviser/stats/timeline", "aviser/export/alto");
+
+    private final boolean enabled;
+    private final Set<String> paths;
+    private final Compression compression;
+
+    @Context
+    private UriInfo uriInfo;
+    @Context
+    private HttpHeaders httpHeaders;
+
+    public CompressionInterceptor() {
+        YAML conf = ServiceConfig.getConfig();
+        enabled = conf.getBoolean(".labsapi.compression.enabled", true);
+        paths = new HashSet<>(conf.containsKey(".labsapi.compression.paths") ?
+                                      conf.getList(".labsapi.compression.paths") :
+                                      DEFAULT_PATHS);
+        compression = new Compression(conf.getInteger(".labsapi.compression.level", Deflater.DEFAULT_COMPRESSION),
+                                      conf.getInteger(".labsapi.compression.bufferSize", 32*1024),
+                                      conf.getInteger(".labsapi.compression.flushBytes", 256*1024));
+        log.info("Created CompressionInterceptor(enabled={}, paths={}, {})", enabled, paths, compression);
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        if (!enabled || !paths.contains(trimSlashes(uriInfo.getPath())) ||
+            context.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            context.proceed();
+            return;
+        }
+        context.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        Compression.ENCODING encoding = Compression.negotiate(
+                uriInfo.getQueryParameters().getFirst(COMPRESSION_PARAM),
+                httpHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        if (encoding == Compression.ENCODING.identity) {
+            context.proceed();
+            return;
+        }
+
+        context.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, encoding.toString());
+        context.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+        OutputStream compressed = compression.wrap(encoding, context.getOutputStream());
+        context.setOutputStream(compressed);
+        context.proceed();
+        // Finishes the compressed stream. Most entity writers close the stream themselves, which is harmless
+        compressed.close();
+    }
+
+    private static String trimSlashes(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end-1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+}
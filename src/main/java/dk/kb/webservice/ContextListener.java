@@ -8,6 +8,8 @@ import javax.naming.NamingException;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import dk.kb.labsapi.CacheWarmer;
+import dk.kb.labsapi.ExportJobs;
 import dk.kb.labsapi.config.ServiceConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +27,7 @@ public class ContextListener implements ServletContextListener {
      * On context initialisation this
      * i) Initialises the logging framework (logback).
      * ii) Initialises the configuration class.
+     * iii) Starts warm-up of the Solr caches in the background.
      * @param sce context provided by the web server upon initialization.
      * @throws java.lang.RuntimeException if anything at all goes wrong.
      */
@@ -47,12 +50,15 @@ public class ContextListener implements ServletContextListener {
             throw new RuntimeException("Failed to lookup settings", e);
         } catch (IOException e) {
             throw new RuntimeException("Failed to load settings", e);        } 
+        CacheWarmer.getInstance().start();
         log.info("Service initialized.");
     }
 
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        CacheWarmer.getInstance().stop();
+        ExportJobs.shutdownInstance();
         log.debug("Service destroyed");
     }
 
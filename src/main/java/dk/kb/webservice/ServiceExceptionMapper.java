@@ -1,6 +1,7 @@
 package dk.kb.webservice;
 
 import dk.kb.webservice.exception.ServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
 
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.ExceptionMapper;
@@ -18,12 +19,16 @@ public class ServiceExceptionMapper implements ExceptionMapper<dk.kb.webservice.
         Response.Status responseStatus = exception.getResponseStatus();
         Object entity = exception.getEntity();
         
-        return entity != null ?
+        Response.ResponseBuilder builder = entity != null ?
                 Response.status(responseStatus)
                         .entity(entity)
                         //TODO select mimetype more intelligently
-                        .type(exception.getMimeType())
-                        .build() :
-                Response.status(responseStatus).build();
+                        .type(exception.getMimeType()) :
+                Response.status(responseStatus);
+        if (exception instanceof ServiceUnavailableServiceException &&
+            ((ServiceUnavailableServiceException) exception).getRetryAfterSeconds() >= 0) {
+            builder.header("Retry-After", ((ServiceUnavailableServiceException) exception).getRetryAfterSeconds());
+        }
+        return builder.build();
     }
 }
@@ -0,0 +1,42 @@
+package dk.kb.webservice.exception;
+
+
+import javax.ws.rs.core.Response;
+
+/*
+ * Custom web-exception class (409)
+ */
+public class ConflictServiceException extends ServiceException {
+    
+    //Constant fields for the OpenApi
+    public static final String description = "ConflictServiceException";
+    public static final String responseCode = "409";
+
+    private static final long serialVersionUID = 27182827L;
+    private static final Response.Status responseStatus = Response.Status.CONFLICT; //409
+    
+    public ConflictServiceException() {
+        super(responseStatus);
+    }
+    
+    public ConflictServiceException(String message) {
+        super(message, responseStatus);
+    }
+    
+    public ConflictServiceException(String message, Throwable cause) {
+        super(message, cause, responseStatus);
+    }
+    
+    public ConflictServiceException(Throwable cause) {
+        super(cause, responseStatus);
+    }
+
+    public ConflictServiceException(String mimeType, Object entity) {
+        super(mimeType, entity, responseStatus);
+    }
+
+    public ConflictServiceException(String mimeType, Object entity, Throwable cause) {
+        super(mimeType, entity, cause, responseStatus);
+    }
+}
+
@@ -0,0 +1,55 @@
+package dk.kb.webservice.exception;
+
+import javax.ws.rs.core.Response;
+
+/*
+ * Custom web-exception class (503)
+ */
+public class ServiceUnavailableServiceException extends ServiceException {
+
+    //Constant fields for the OpenApi
+    public static final String description = "ServiceUnavailableServiceException";
+    public static final String responseCode = "503";
+
+    private static final long serialVersionUID = 27182826L;
+    private static final Response.Status responseStatus = Response.Status.SERVICE_UNAVAILABLE; // 503
+
+    // Delivered as the Retry-After header by the ServiceExceptionMapper. -1 means no header
+    private int retryAfterSeconds = -1;
+
+    public ServiceUnavailableServiceException() {
+        super(responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(String message) {
+        super(message, responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(String message, int retryAfterSeconds) {
+        super(message, responseStatus);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public ServiceUnavailableServiceException(String message, Throwable cause) {
+        super(message, cause, responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(Throwable cause) {
+        super(cause, responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(String mimeType, Object entity) {
+        super(mimeType, entity, responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(String mimeType, Object entity, Throwable cause) {
+        super(mimeType, entity, cause, responseStatus);
+    }
+
+    /**
+     * @return the number of seconds the client should wait before retrying or -1 if not specified.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
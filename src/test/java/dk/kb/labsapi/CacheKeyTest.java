@@ -0,0 +1,138 @@
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.request.json.JsonQueryRequest;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class CacheKeyTest {
+
+    @Test
+    void testParamOrder() {
+        SolrQuery a = new SolrQuery("hest");
+        a.set("rows", 10);
+        a.addFilterQuery("py:1800", "lplace:København");
+        SolrQuery b = new SolrQuery();
+        b.addFilterQuery("lplace:København", "py:1800");
+        b.set("rows", 10);
+        b.setQuery("hest");
+
+        CacheKey keyA = CacheKey.of(null, null, a);
+        CacheKey keyB = CacheKey.of(null, null, b);
+        assertEquals(keyA, keyB, "Parameter and filter order should not matter");
+        assertEquals(keyA.getDigest(), keyB.getDigest(), "The digests should be equal");
+        assertEquals(32, keyA.getDigest().length(), "The digest should be 128 bit hex");
+    }
+
+    @Test
+    void testDifferentRequests() {
+        SolrQuery a = new SolrQuery("hest");
+        SolrQuery b = new SolrQuery("zebra");
+        assertNotEquals(CacheKey.of(null, null, a).getDigest(), CacheKey.of(null, null, b).getDigest(),
+                        "Different queries should have different digests");
+        assertNotEquals(CacheKey.of(null, "c1", a).getDigest(), CacheKey.of(null, "c2", a).getDigest(),
+                        "Different collections should have different digests");
+    }
+
+    @Test
+    void testInvariants() {
+        ModifiableSolrParams filterA = new ModifiableSolrParams();
+        filterA.set("fq", "recordBase:doms_aviser");
+        ModifiableSolrParams filterB = new ModifiableSolrParams();
+        filterB.set("fq", "recordBase:doms_aviser AND py:[* TO 1880]");
+        SolrQuery query = new SolrQuery("hest");
+
+        assertNotEquals(CacheKey.of(filterA, null, query).getDigest(), CacheKey.of(filterB, null, query).getDigest(),
+                        "Different invariant filters should give different digests");
+
+        SolrQuery explicit = new SolrQuery("hest");
+        explicit.addFilterQuery("recordBase:doms_aviser");
+        assertEquals(CacheKey.of(filterA, null, query), CacheKey.of(null, null, explicit),
+                     "An invariant filter should be equivalent to an explicit filter");
+    }
+
+    @Test
+    void testJSONKeyOrder() {
+        Map<String, Object> facetA = new LinkedHashMap<>();
+        facetA.put("type", "range");
+        facetA.put("field", "py");
+        Map<String, Object> facetB = new LinkedHashMap<>();
+        facetB.put("field", "py");
+        facetB.put("type", "range");
+
+        JsonQueryRequest a = new JsonQueryRequest().setQuery("hest").setLimit(0).withFacet("years", facetA);
+        JsonQueryRequest b = new JsonQueryRequest().setLimit(0).setQuery("hest").withFacet("years", facetB);
+        assertEquals(CacheKey.of(null, a), CacheKey.of(null, b), "JSON object key order should not matter");
+
+        JsonQueryRequest c = new JsonQueryRequest().setQuery("zebra").setLimit(0).withFacet("years", facetA);
+        assertNotEquals(CacheKey.of(null, a), CacheKey.of(null, c), "Different JSON requests should differ");
+    }
+
+    @Test
+    void testJSONCanonicalForm() {
+        Map<String, Object> facet = new LinkedHashMap<>();
+        facet.put("type", "range");
+        facet.put("start", 1666);
+        JsonQueryRequest request = new JsonQueryRequest().setQuery("hest").setLimit(0).withFacet("years", facet);
+        String canonical = CacheKey.of(null, request).getCanonical();
+        assertTrue(canonical.endsWith(
+                "body={\"facet\":{\"years\":{\"start\":1666,\"type\":\"range\"}},\"limit\":0,\"query\":\"hest\"}\n"),
+                   "The JSON body should be read from the request in sorted form, but was\n" + canonical);
+    }
+
+    @Test
+    void testStreamedDigest() {
+        SolrQuery query = new SolrQuery("Æblegrød 😀");
+        query.addFilterQuery("py:1800", "lplace:\"København\"");
+        Map<String, Object> facet = new LinkedHashMap<>();
+        facet.put("type", "range");
+        JsonQueryRequest request = new JsonQueryRequest(query).withFacet("years", facet);
+
+        for (CacheKey key: new CacheKey[]{CacheKey.of(null, "c1", query), CacheKey.of(null, request)}) {
+            String canonical = key.getCanonical();
+            assertEquals(new CacheKey(canonical).getDigest(), key.getDigest(),
+                         "The streamed digest should match the digest of the canonical form");
+            assertTrue(key.matches(canonical), "The key should match its own canonical form");
+        }
+        CacheKey key = CacheKey.of(null, "c1", query);
+        String canonical = CacheKey.of(null, "c1", query).getCanonical();
+        assertFalse(key.matches(canonical.substring(0, canonical.length()-1)), "A prefix should not match");
+        assertFalse(key.matches(canonical + "x"), "An extension should not match");
+        assertFalse(key.matches(null), "null should not match");
+    }
+
+    @Test
+    void testDigest() throws NoSuchAlgorithmException {
+        String canonical = "q=Æblegrød 😀 \uD800 " + "x".repeat(10000);
+        byte[] hash = MessageDigest.getInstance("MD5").digest(canonical.getBytes(StandardCharsets.UTF_8));
+        StringBuilder expected = new StringBuilder();
+        for (byte b: hash) {
+            expected.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        assertEquals(expected.toString(), new CacheKey(canonical).getDigest(),
+                     "The digest should be the MD5 of the UTF-8 representation");
+    }
+}
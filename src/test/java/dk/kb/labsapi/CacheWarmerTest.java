@@ -0,0 +1,85 @@
+package dk.kb.labsapi;
+
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class CacheWarmerTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void testRequestRoundTrip() {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("query", "hest AND py:[1800 TO 1850]");
+        params.put("elements", Arrays.asList("pages", "articles"));
+        params.put("filter", null);
+        params.put("limit", 10);
+        String request = CacheWarmer.toRequest(CacheWarmer.TIMELINE, params);
+        assertTrue(request.startsWith("timeline?elements="), "Keys should be sorted, but got " + request);
+
+        Map<String, String> parsed = CacheWarmer.getParams(request);
+        assertEquals("hest AND py:[1800 TO 1850]", parsed.get("query"));
+        assertEquals("articles,pages", parsed.get("elements"), "Collection values should be sorted");
+        assertEquals("10", parsed.get("limit"));
+        assertFalse(parsed.containsKey("filter"), "Null values should be skipped");
+    }
+
+    @Test
+    void testRecordAndLoad() {
+        Path logFile = folder.resolve("warmup.log");
+        CacheWarmer recorder = new CacheWarmer(createConf(logFile), request -> {});
+        recorder.record(CacheWarmer.HITS, "query", "hest");
+        recorder.record(CacheWarmer.HITS, "query", "zebra");
+        recorder.record(CacheWarmer.HITS, "query", "zebra");
+        recorder.flush();
+
+        CacheWarmer loader = new CacheWarmer(createConf(logFile), request -> {});
+        List<String> requests = loader.loadRequests();
+        assertEquals(Arrays.asList("hits?query=zebra", "hits?query=hest"), requests,
+                     "Recorded requests should be loaded in order of popularity");
+    }
+
+    @Test
+    void testWarm() {
+        List<String> replayed = new CopyOnWriteArrayList<>();
+        CacheWarmer warmer = new CacheWarmer(createConf(null), replayed::add);
+        assertFalse(warmer.isReady(), "The warmer should not be ready before warm-up");
+        warmer.warm(Arrays.asList("hits?query=hest", "hits?query=zebra"));
+        assertTrue(warmer.isReady(), "The warmer should be ready after warm-up");
+        assertEquals(2, replayed.size(), "All requests should be replayed");
+    }
+
+    private YAML createConf(Path logFile) {
+        Map<String, Object> conf = new LinkedHashMap<>();
+        conf.put("enabled", true);
+        if (logFile != null) {
+            conf.put("log", logFile.toString());
+        }
+        return new YAML(conf);
+    }
+}
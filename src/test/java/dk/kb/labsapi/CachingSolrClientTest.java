@@ -0,0 +1,197 @@
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+/**
+ * Unit tests for {@link CachingSolrClient}, using a mocked inner SolrClient. No Solr is needed.
+ */
+class CachingSolrClientTest {
+
+    @Test
+    void testCoalescing() throws Exception {
+        final int threads = 8;
+        AtomicInteger innerCalls = new AtomicInteger(0);
+        CountDownLatch release = new CountDownLatch(1);
+        SolrClient inner = mock(SolrClient.class);
+        when(inner.query(any(SolrParams.class))).thenAnswer(invocation -> {
+            innerCalls.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+            return new QueryResponse();
+        });
+        CachingSolrClient client = new CachingSolrClient(inner, 10, 60, 3);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<QueryResponse>> responses = new ArrayList<>();
+            for (int i = 0 ; i < threads ; i++) {
+                responses.add(executor.submit(() -> client.query(new SolrQuery("hest"))));
+            }
+            // Wait until all but the first thread are waiting for the call in flight
+            long deadline = System.currentTimeMillis() + 10000;
+            while (client.getCoalesced() < threads-1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(threads-1, client.getCoalesced(), "All but one call should be coalesced before release");
+            release.countDown();
+            QueryResponse first = responses.get(0).get();
+            for (Future<QueryResponse> response: responses) {
+                assertSame(first, response.get(), "All callers should receive the same response");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, innerCalls.get(), "Only a single call should reach the inner SolrClient");
+        assertEquals(threads-1, client.getCoalesced(), "All but one call should be coalesced");
+    }
+
+    @Test
+    void testFailureNotCached() throws Exception {
+        AtomicInteger innerCalls = new AtomicInteger(0);
+        SolrClient inner = mock(SolrClient.class);
+        when(inner.query(any(SolrParams.class))).thenAnswer(invocation -> {
+            if (innerCalls.incrementAndGet() == 1) {
+                throw new IOException("Simulated Solr failure");
+            }
+            return new QueryResponse();
+        });
+        CachingSolrClient client = new CachingSolrClient(inner, 10, 60, 3);
+
+        assertThrows(RuntimeException.class, () -> client.query(new SolrQuery("hest")),
+                     "The failure from the inner SolrClient should be propagated");
+        assertNotNull(client.query(new SolrQuery("hest")),
+                      "The second call should be issued to the inner SolrClient and succeed");
+        assertEquals(2, innerCalls.get(), "The failed call should not have been cached");
+        assertEquals(1, client.size(), "The successful call should have been cached");
+    }
+
+    @Test
+    void testCursorMarkBypass() throws Exception {
+        AtomicInteger innerCalls = new AtomicInteger(0);
+        SolrClient inner = mock(SolrClient.class);
+        when(inner.query(any(SolrParams.class))).thenAnswer(invocation -> {
+            innerCalls.incrementAndGet();
+            return new QueryResponse();
+        });
+        CachingSolrClient client = new CachingSolrClient(inner, 10, 60, 3);
+
+        SolrQuery paging = new SolrQuery("hest");
+        paging.set(CursorMarkParams.CURSOR_MARK_PARAM, CursorMarkParams.CURSOR_MARK_START);
+        client.query(paging);
+        client.query(paging);
+        client.queryUncached(new SolrQuery("hest"));
+        assertEquals(3, innerCalls.get(), "All uncached calls should reach the inner SolrClient");
+        assertEquals(0, client.size(), "No responses should be cached");
+        assertEquals(3, client.getBypassed(), "All calls should be counted as bypassed");
+        assertEquals(0, client.getCalls(), "Bypassed calls should not affect cache statistics");
+        assertEquals(3, client.getScheduler().getAvailable(), "All connections should be released");
+    }
+
+    @Test
+    void testBackgroundQuery() throws Exception {
+        SolrClient inner = mock(SolrClient.class);
+        when(inner.query(any(SolrParams.class))).thenAnswer(invocation -> new QueryResponse());
+        CachingSolrClient client = new CachingSolrClient(inner, 10, 60, 3);
+
+        assertNotNull(client.queryBackground(new SolrQuery("hest")), "The probe should reach the inner SolrClient");
+        assertEquals(0, client.size(), "The probe response should not be cached");
+        assertEquals(0, client.getBypassed(), "Probes should not be counted as bypassed");
+        assertEquals(0, client.getCalls(), "Probes should not affect cache statistics");
+        assertEquals(3, client.getScheduler().getAvailable(), "The connection should be released");
+    }
+
+    @Test
+    void testIndexVersionInvalidation() throws Exception {
+        AtomicLong version = new AtomicLong(1);
+        SolrClient inner = mock(SolrClient.class);
+        when(inner.query(any(SolrParams.class))).thenAnswer(invocation -> new QueryResponse());
+        when(inner.request(any(SolrRequest.class), any())).thenAnswer(invocation -> {
+            SolrRequest<?> request = invocation.getArgument(0);
+            assertEquals("/admin/luke", request.getPath(), "The index version should be requested from Luke");
+            assertEquals("index", request.getParams().get("show"), "Only index info should be requested");
+            NamedList<Object> index = new NamedList<>();
+            index.add("version", version.get());
+            NamedList<Object> luke = new NamedList<>();
+            luke.add("index", index);
+            return luke;
+        });
+        CachingSolrClient client = new CachingSolrClient(inner, 10, 60, 3);
+
+        assertFalse(client.checkIndexVersion(), "The first check should not invalidate");
+        client.query(new SolrQuery("hest"));
+        assertFalse(client.checkIndexVersion(), "An unchanged index version should not invalidate");
+        assertEquals(1, client.size(), "The cached entry should be kept while the index is unchanged");
+
+        version.set(2);
+        assertTrue(client.checkIndexVersion(), "A changed index version should invalidate");
+        assertEquals(0, client.size(), "The cache should be empty after invalidation");
+        assertEquals("2", client.getIndexVersion(), "The new index version should be registered");
+        assertEquals(1, client.getInvalidations(), "The invalidation should be counted");
+    }
+
+    @Test
+    void testByteLimit() throws Exception {
+        SolrClient inner = mock(SolrClient.class);
+        when(inner.query(any(SolrParams.class))).thenAnswer(invocation -> {
+            NamedList<Object> raw = new NamedList<>();
+            SolrDocumentList docs = new SolrDocumentList();
+            for (int i = 0 ; i < 100 ; i++) {
+                SolrDocument doc = new SolrDocument();
+                doc.setField("id", "doc_" + i);
+                doc.setField("fulltext", "Some text that takes up space in the cache " + i);
+                docs.add(doc);
+            }
+            raw.add("response", docs);
+            return new QueryResponse(raw, null);
+        });
+        long singleWeight = ResponseWeigher.weigh(inner.query(new SolrQuery("foo")));
+        assertTrue(singleWeight > 100*50, "The weight of a response with 100 documents should be substantial");
+
+        CachingSolrClient client = new CachingSolrClient(inner, 100, singleWeight*3, 60, -1, 3);
+        for (int i = 0 ; i < 10 ; i++) {
+            client.query(new SolrQuery("hest" + i));
+        }
+        assertEquals(3, client.size(), "The number of cached responses should be limited by the byte budget");
+        assertTrue(client.getCachedBytes() <= singleWeight*3,
+                   "The cached bytes " + client.getCachedBytes() + " should be within the budget " + singleWeight*3);
+    }
+}
@@ -0,0 +1,95 @@
+package dk.kb.labsapi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class CompressionTest {
+
+    @Test
+    void testNegotiate() {
+        assertEquals(Compression.ENCODING.identity, Compression.negotiate(null, null),
+                     "No preferences should mean no compression");
+        assertEquals(Compression.ENCODING.gzip, Compression.negotiate(null, "deflate, gzip;q=0.8, br"),
+                     "gzip should be preferred when accepted");
+        assertEquals(Compression.ENCODING.deflate, Compression.negotiate(null, "gzip;q=0, deflate"),
+                     "Encodings with quality 0 should be excluded");
+        assertEquals(Compression.ENCODING.gzip, Compression.negotiate("auto", "*"),
+                     "The wildcard should select gzip");
+        assertEquals(Compression.ENCODING.identity, Compression.negotiate("identity", "gzip"),
+                     "An explicit compression should override Accept-Encoding");
+        assertEquals(Compression.ENCODING.gzip, Compression.negotiate("zstd", "gzip"),
+                     "Unsupported explicit compressions should fall back to Accept-Encoding");
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        String content = createContent(1000);
+        Compression compression = new Compression(6, 1024, 4096);
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = compression.wrap(Compression.ENCODING.gzip, gzipped)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        assertTrue(gzipped.size() < content.length() / 5, "Repetitive content should compress well");
+        assertEquals(content, read(new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray()))),
+                     "gzip should round trip");
+
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (OutputStream out = compression.wrap(Compression.ENCODING.deflate, deflated)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(content, read(new InflaterInputStream(new ByteArrayInputStream(deflated.toByteArray()))),
+                     "deflate should round trip");
+    }
+
+    @Test
+    void testFlushBytes() throws IOException {
+        Compression compression = new Compression(6, 1024, 4096);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = compression.wrap(Compression.ENCODING.gzip, compressed);
+        out.write(createContent(10).getBytes(StandardCharsets.UTF_8));
+        int beforeThreshold = compressed.size();
+        out.write(createContent(200).getBytes(StandardCharsets.UTF_8));
+        assertTrue(compressed.size() > beforeThreshold,
+                   "Compressed data should be emitted when flushBytes has been passed");
+        out.close();
+    }
+
+    private static String createContent(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < lines ; i++) {
+            sb.append("\"doms_aviser_page:uuid:").append(i % 7).append("\",\"Sletterhage fyr\",1880\n");
+        }
+        return sb.toString();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
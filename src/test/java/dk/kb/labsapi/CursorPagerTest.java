@@ -0,0 +1,133 @@
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class CursorPagerTest {
+
+    @Test
+    void testAllPages() {
+        for (int readAhead: new int[]{0, 1, 3}) {
+            List<Integer> ids = collect(new CursorPager(new ModifiableSolrParams(), 10, -1, readAhead,
+                                                       createSolr(25, new AtomicInteger())));
+            assertEquals(25, ids.size(), "All documents should be delivered with readAhead " + readAhead);
+            for (int i = 0 ; i < ids.size() ; i++) {
+                assertEquals(i, ids.get(i), "Documents should be delivered in order with readAhead " + readAhead);
+            }
+        }
+    }
+
+    @Test
+    void testMax() {
+        AtomicInteger calls = new AtomicInteger();
+        List<Integer> ids = collect(new CursorPager(new ModifiableSolrParams(), 10, 15, 2, createSolr(100, calls)));
+        assertEquals(15, ids.size(), "Only max documents should be delivered");
+        assertEquals(2, calls.get(), "Only the pages needed for max documents should be requested");
+    }
+
+    @Test
+    void testBackPressure() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        CursorPager pager = new CursorPager(new ModifiableSolrParams(), 10, -1, 2, createSolr(1000, calls));
+        pager.next();
+        TimeUnit.MILLISECONDS.sleep(100); // Give read-ahead time to run
+        assertEquals(3, calls.get(), "The delivered page and 2 pages of read-ahead should be requested");
+        pager.next();
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(4, calls.get(), "Read-ahead should only continue when a page is delivered");
+    }
+
+    @Test
+    void testConnectionWaitNotCountedAsLatency() throws Exception {
+        Function<SolrParams, QueryResponse> solr = createSolr(100, new AtomicInteger());
+        SolrClient inner = mock(SolrClient.class);
+        when(inner.query(any(SolrParams.class))).thenAnswer(invocation -> {
+            QueryResponse response = solr.apply(invocation.getArgument(0));
+            response.setElapsedTime(5); // Solr is fast
+            return response;
+        });
+        CachingSolrClient client = new CachingSolrClient(inner, 10, 60, 2);
+        // Hold the only bulk connection for a while, so that the page waits in the scheduler
+        client.getScheduler().acquire(SolrConnectionScheduler.PRIORITY.bulk);
+        Thread releaser = new Thread(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(300);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            client.getScheduler().release(SolrConnectionScheduler.PRIORITY.bulk);
+        });
+        releaser.start();
+
+        PageSizer sizer = new PageSizer(10, 1, 100, Long.MAX_VALUE, 100, null);
+        long startTime = System.currentTimeMillis();
+        new CursorPager(new ModifiableSolrParams(), sizer, 10, 0, client::queryUncached).next();
+        releaser.join();
+        assertTrue(System.currentTimeMillis() - startTime >= 300, "The page should wait for the connection");
+        assertTrue(sizer.getRows() >= 10,
+                   "The wait for a connection should not shrink the pages, but rows was " + sizer.getRows());
+    }
+
+    private List<Integer> collect(CursorPager pager) {
+        List<Integer> ids = new ArrayList<>();
+        pager.forEachRemaining(response ->
+                response.getResults().forEach(doc -> ids.add((Integer) doc.getFieldValue("id"))));
+        return ids;
+    }
+
+    /**
+     * Simulate cursorMark paging over documents with ids 0..docs-1, using the offset as cursorMark.
+     */
+    private Function<SolrParams, QueryResponse> createSolr(int docs, AtomicInteger calls) {
+        return request -> {
+            calls.incrementAndGet();
+            String cursorMark = request.get(CursorMarkParams.CURSOR_MARK_PARAM);
+            int offset = CursorMarkParams.CURSOR_MARK_START.equals(cursorMark) ? 0 : Integer.parseInt(cursorMark);
+            int rows = request.getInt(CommonParams.ROWS);
+            SolrDocumentList results = new SolrDocumentList();
+            for (int id = offset ; id < Math.min(docs, offset + rows) ; id++) {
+                SolrDocument doc = new SolrDocument();
+                doc.setField("id", id);
+                results.add(doc);
+            }
+            NamedList<Object> raw = new NamedList<>();
+            raw.add("response", results);
+            raw.add(CursorMarkParams.CURSOR_MARK_NEXT, results.isEmpty() ? cursorMark :
+                    Integer.toString(offset + results.size()));
+            return new QueryResponse(raw, null);
+        };
+    }
+}
@@ -0,0 +1,123 @@
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class CursorStreamerTest {
+
+    @Test
+    void testAllDocuments() {
+        List<Integer> ids = new ArrayList<>();
+        CursorStreamer streamer = new CursorStreamer(new ModifiableSolrParams(), PageSizer.fixed(10, null), -1,
+                                                     createSolr(25, new AtomicInteger()));
+        assertEquals(25, streamer.process(doc -> ids.add((Integer) doc.getFieldValue("id"))),
+                     "The number of processed documents should be returned");
+        for (int i = 0 ; i < ids.size() ; i++) {
+            assertEquals(i, ids.get(i), "Documents should be delivered in order");
+        }
+    }
+
+    @Test
+    void testMax() {
+        AtomicInteger calls = new AtomicInteger();
+        List<Integer> ids = new ArrayList<>();
+        new CursorStreamer(new ModifiableSolrParams(), PageSizer.fixed(10, null), 15, createSolr(100, calls))
+                .process(doc -> ids.add((Integer) doc.getFieldValue("id")));
+        assertEquals(15, ids.size(), "Only max documents should be delivered");
+        assertEquals(2, calls.get(), "Only the pages needed for max documents should be requested");
+    }
+
+    @Test
+    void testResume() {
+        List<Integer> ids = new ArrayList<>();
+        List<String> checkpoints = new ArrayList<>();
+        new CursorStreamer(new ModifiableSolrParams(), PageSizer.fixed(10, null), "10", -1,
+                           createSolr(25, new AtomicInteger()))
+                .process(doc -> ids.add((Integer) doc.getFieldValue("id")),
+                         (cursorMark, count) -> checkpoints.add(cursorMark + ":" + count));
+        assertEquals(15, ids.size(), "Only the documents after the start cursorMark should be delivered");
+        assertEquals(10, ids.get(0), "The first document should follow the start cursorMark");
+        assertEquals(Arrays.asList("20:10", "25:15"), checkpoints,
+                     "There should be a checkpoint after each page that might be followed by more documents");
+    }
+
+    @Test
+    void testStats() {
+        PagingStats stats = new PagingStats();
+        new CursorStreamer(new ModifiableSolrParams(), PageSizer.fixed(10, stats), -1,
+                           createSolr(25, new AtomicInteger())).process(doc -> {});
+        assertEquals(25, stats.getDocs(), "Streamed documents should be counted");
+        assertTrue(stats.getAverageBytes() > 0, "The size of the streamed pages should be estimated");
+    }
+
+    @Test
+    void testProcessingNotCountedAsLatency() {
+        // Solr is instant, so only the slow processor could make the sizer shrink the pages
+        PageSizer sizer = new PageSizer(10, 1, 100, Long.MAX_VALUE, 100, null);
+        new CursorStreamer(new ModifiableSolrParams(), sizer, 10, createSolr(100, new AtomicInteger()))
+                .process(doc -> {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+        assertTrue(sizer.getRows() >= 10,
+                   "The time spent delivering documents should not shrink the pages, but rows was " +
+                   sizer.getRows());
+    }
+
+    /**
+     * Simulate streaming cursorMark paging over totalDocs documents, where the documents are delivered to the
+     * callback and the returned response holds no documents.
+     */
+    private BiFunction<SolrParams, StreamingResponseCallback, QueryResponse> createSolr(
+            int totalDocs, AtomicInteger calls) {
+        return (request, callback) -> {
+            calls.incrementAndGet();
+            String cursorMark = request.get(CursorMarkParams.CURSOR_MARK_PARAM);
+            int offset = CursorMarkParams.CURSOR_MARK_START.equals(cursorMark) ? 0 : Integer.parseInt(cursorMark);
+            int end = Math.min(totalDocs, offset + request.getInt(CommonParams.ROWS));
+            callback.streamDocListInfo(totalDocs, offset, null);
+            for (int i = offset ; i < end ; i++) {
+                SolrDocument doc = new SolrDocument();
+                doc.setField("id", i);
+                callback.streamSolrDocument(doc);
+            }
+            NamedList<Object> raw = new NamedList<>();
+            raw.add("response", new SolrDocumentList());
+            raw.add(CursorMarkParams.CURSOR_MARK_NEXT, end == offset ? cursorMark : Integer.toString(end));
+            return new QueryResponse(raw, null);
+        };
+    }
+}
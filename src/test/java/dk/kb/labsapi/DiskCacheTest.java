@@ -0,0 +1,120 @@
+package dk.kb.labsapi;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class DiskCacheTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void testPersistence() throws Exception {
+        CacheKey key = new CacheKey("q=hest");
+        DiskCache cache = new DiskCache(folder, -1, -1, "v1");
+        cache.put(key, createResponse(1800));
+
+        DiskCache reopened = new DiskCache(folder, -1, -1, "v1");
+        NamedList<Object> response = reopened.get(key);
+        assertNotNull(response, "The response should survive reopening of the cache");
+        assertEquals(1800, ((NamedList<?>)response.get("facets")).get("py"),
+                     "The stored response should be restored");
+        assertTrue(reopened.getBytes() > 0, "The size of existing entries should be counted");
+    }
+
+    @Test
+    void testIndexVersion() throws Exception {
+        CacheKey key = new CacheKey("q=hest");
+        DiskCache cache = new DiskCache(folder, -1, -1, "v1");
+        cache.put(key, createResponse(1800));
+
+        DiskCache reopened = new DiskCache(folder, -1, -1, "v2");
+        assertNull(reopened.get(key), "Entries with another index version should be invalid");
+        assertEquals(0, reopened.getBytes(), "Invalid entries should be deleted");
+
+        cache.put(key, createResponse(1800));
+        cache.setIndexVersion("v3");
+        assertNull(cache.get(key), "Entries should be invalid after change of index version");
+    }
+
+    @Test
+    void testPolledIndexVersion() throws Exception {
+        CacheKey key = new CacheKey("q=hest");
+        DiskCache cache = new DiskCache(folder, -1, -1, "1", true);
+        assertNull(cache.getIndexVersion(), "The index version should be unknown before the first poll");
+        cache.put(key, createResponse(1800));
+        assertNull(cache.get(key), "The cache should be bypassed before the first poll");
+
+        cache.setIndexVersion("v7");
+        cache.put(key, createResponse(1800));
+
+        DiskCache restarted = new DiskCache(folder, -1, -1, "1", true);
+        assertEquals("v7", restarted.getIndexVersion(), "The polled index version should be restored");
+        assertNotNull(restarted.get(key), "Entries should survive a restart when the index version is polled");
+
+        restarted.setIndexVersion("v7");
+        assertNotNull(restarted.get(key), "Entries should survive a poll with the same index version");
+
+        restarted.setIndexVersion("v8");
+        assertNull(restarted.get(key), "Entries should be invalid after change of the polled index version");
+        assertEquals(0, restarted.getBytes(), "Invalid entries should be deleted");
+    }
+
+    @Test
+    void testCollision() throws Exception {
+        DiskCache cache = new DiskCache(folder, -1, -1, null);
+        cache.put(new CacheKey("q=hest"), createResponse(1800));
+        assertNull(cache.get(new CacheKey("q=zebra")), "Other keys should not give a response");
+        assertNotNull(cache.get(new CacheKey("q=hest")), "The stored key should give a response");
+    }
+
+    @Test
+    void testMaxBytes() throws Exception {
+        DiskCache probe = new DiskCache(folder.resolve("probe"), -1, -1, null);
+        probe.put(new CacheKey("q=0"), createResponse(0));
+        long entrySize = probe.getBytes();
+
+        DiskCache cache = new DiskCache(folder.resolve("limited"), entrySize*3, -1, null);
+        for (int i = 0 ; i < 10 ; i++) {
+            cache.put(new CacheKey("q=" + i), createResponse(i));
+        }
+        assertTrue(cache.getBytes() <= entrySize*3,
+                   "The size " + cache.getBytes() + " should be within the limit " + entrySize*3);
+    }
+
+    @Test
+    void testMaxAge() throws Exception {
+        CacheKey key = new CacheKey("q=hest");
+        DiskCache cache = new DiskCache(folder, -1, 50, null);
+        cache.put(key, createResponse(1800));
+        Thread.sleep(100);
+        assertNull(cache.get(key), "Entries older than max age should be invalid");
+    }
+
+    private NamedList<Object> createResponse(int year) {
+        NamedList<Object> facets = new NamedList<>();
+        facets.add("py", year);
+        NamedList<Object> response = new NamedList<>();
+        response.add("facets", facets);
+        return response;
+    }
+}
@@ -0,0 +1,143 @@
+package dk.kb.labsapi;
+
+import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.NotFoundServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ExportJobsTest {
+
+    @Test
+    void testByteRange() {
+        assertNull(ExportJobs.ByteRange.parse(null, 100), "No header should mean the full content");
+        assertNull(ExportJobs.ByteRange.parse("bytes=0-10,20-30", 100), "Multiple ranges should be ignored");
+        assertEquals("bytes 10-99/100", ExportJobs.ByteRange.parse("bytes=10-", 100).toContentRange(),
+                     "An open range should continue to the end");
+        assertEquals("bytes 10-19/100", ExportJobs.ByteRange.parse("bytes=10-19", 100).toContentRange(),
+                     "A closed range should be used as-is");
+        assertEquals("bytes 90-99/100", ExportJobs.ByteRange.parse("bytes=-10", 100).toContentRange(),
+                     "A suffix range should deliver the last bytes");
+        assertEquals("bytes 10-99/100", ExportJobs.ByteRange.parse("bytes=10-1000", 100).toContentRange(),
+                     "The end of the range should be capped by the length of the content");
+        assertSame(ExportJobs.ByteRange.UNSATISFIABLE, ExportJobs.ByteRange.parse("bytes=100-", 100),
+                   "A range starting after the content should be unsatisfiable");
+    }
+
+    @Test
+    void testJob(@TempDir Path folder) throws Exception {
+        byte[] content = "recordID,timestamp\n1,1880\n2,1881\n".getBytes(StandardCharsets.UTF_8);
+        ExportJobs jobs = new ExportJobs(createConf(folder, 1, 1));
+        try {
+            ExportJobs.Job job = jobs.submit("fields", "export.csv", output -> output.write(content));
+            waitForFinished(job);
+            assertEquals(ExportJobs.STATE.completed, job.getState(), "The job should complete");
+            assertEquals(content.length, job.getBytes(), "The uncompressed bytes should be counted");
+            assertNotNull(job.getETag(), "A completed job should have an ETag");
+            assertEquals("export.csv.gz", job.getFilename(), "The download should be marked as compressed");
+
+            ByteArrayOutputStream full = new ByteArrayOutputStream();
+            job.writeSpool(ExportJobs.ByteRange.full(job.getSpoolBytes()), full);
+            assertEquals(job.getSpoolBytes(), full.size(), "The full spool file should be delivered");
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(full.toByteArray()))) {
+                assertArrayEquals(content, in.readAllBytes(), "The spool file should hold the export");
+            }
+
+            ByteArrayOutputStream part = new ByteArrayOutputStream();
+            job.writeSpool(ExportJobs.ByteRange.parse("bytes=5-9", job.getSpoolBytes()), part);
+            assertArrayEquals(Arrays.copyOfRange(full.toByteArray(), 5, 10), part.toByteArray(),
+                              "A range should deliver the requested part of the spool file");
+
+            assertSame(job, jobs.getJob(job.getId()), "The job should be available by ID");
+            assertThrows(NotFoundServiceException.class, () -> jobs.getJob("unknown"),
+                         "Unknown jobs should not be found");
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    @Test
+    void testFailure(@TempDir Path folder) throws Exception {
+        ExportJobs jobs = new ExportJobs(createConf(folder, 1, 1));
+        try {
+            ExportJobs.Job job = jobs.submit("fields", "export.csv", output -> {
+                throw new IOException("Solr went away");
+            });
+            waitForFinished(job);
+            assertEquals(ExportJobs.STATE.failed, job.getState(), "The job should fail");
+            assertTrue(job.getMessage().contains("Solr went away"), "The cause should be stated");
+            assertNull(job.getETag(), "A failed job should not have an ETag");
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    @Test
+    void testQueueFull(@TempDir Path folder) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ExportJobs jobs = new ExportJobs(createConf(folder, 1, 1));
+        try {
+            ExportJobs.Job running = jobs.submit("fields", "a.csv", output -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted", e);
+                }
+            });
+            ExportJobs.Job queued = jobs.submit("fields", "b.csv", output -> {});
+            assertThrows(ServiceUnavailableServiceException.class, () -> jobs.submit("fields", "c.csv", output -> {}),
+                         "Submitting beyond the queue limit should be rejected");
+            assertEquals(2, jobs.getJobs().size(), "Rejected jobs should not be retained");
+
+            release.countDown();
+            waitForFinished(running);
+            waitForFinished(queued);
+            assertEquals(ExportJobs.STATE.completed, queued.getState(), "The queued job should complete");
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    private void waitForFinished(ExportJobs.Job job) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (job.getFinished() == 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.getFinished() > 0, "The job should finish within the timeout");
+    }
+
+    private YAML createConf(Path folder, int maxConcurrent, int maxQueued) {
+        Map<String, Object> conf = new LinkedHashMap<>();
+        conf.put("folder", folder.toString());
+        conf.put("maxConcurrent", maxConcurrent);
+        conf.put("maxQueued", maxQueued);
+        return new YAML(conf);
+    }
+}
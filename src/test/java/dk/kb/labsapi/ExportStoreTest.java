@@ -0,0 +1,136 @@
+package dk.kb.labsapi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ExportStoreTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void testStoreAndDeliver() throws Exception {
+        AtomicInteger produced = new AtomicInteger();
+        CacheKey key = new CacheKey("q=hest\nfl=recordID");
+        ExportStore store = new ExportStore(folder, -1, -1, -1);
+
+        assertEquals("recordID\n1\n2\n", write(store.wrap(key, createExport("recordID\n1\n2\n", produced))),
+                     "The first export should be delivered");
+        assertEquals("recordID\n1\n2\n", write(store.wrap(key, createExport("recordID\n1\n2\n", produced))),
+                     "The second export should be delivered");
+        assertEquals(1, produced.get(), "The second export should be delivered from the store");
+        assertEquals(1, store.getHits(), "The store hit should be counted");
+
+        ExportStore reopened = new ExportStore(folder, -1, -1, -1);
+        assertEquals("recordID\n1\n2\n", write(reopened.wrap(key, createExport("changed", produced))),
+                     "The stored export should survive reopening of the store");
+        assertEquals(1, produced.get(), "The reopened store should deliver without producing");
+    }
+
+    @Test
+    void testCollision() throws Exception {
+        ExportStore store = new ExportStore(folder, -1, -1, -1);
+        write(store.wrap(new CacheKey("q=hest"), createExport("hest", new AtomicInteger())));
+        assertFalse(store.deliver(new CacheKey("q=zebra"), new ByteArrayOutputStream()),
+                    "Other keys should not be delivered");
+    }
+
+    @Test
+    void testFailedExport() throws Exception {
+        CacheKey key = new CacheKey("q=hest");
+        ExportStore store = new ExportStore(folder, -1, -1, -1);
+        StreamingOutput failing = output -> {
+            output.write("partial".getBytes(StandardCharsets.UTF_8));
+            throw new RuntimeException("Solr went away");
+        };
+        assertThrows(RuntimeException.class, () -> write(store.wrap(key, failing)),
+                     "The failure should be propagated");
+        assertFalse(store.deliver(key, new ByteArrayOutputStream()), "Failed exports should not be stored");
+        assertEquals(0, store.getBytes(), "Nothing should be stored");
+    }
+
+    @Test
+    void testFailedDelivery() throws Exception {
+        CacheKey key = new CacheKey("q=hest");
+        ExportStore store = new ExportStore(folder, -1, -1, -1);
+        // Exports might catch and log write problems, so the store must detect them itself
+        StreamingOutput swallowing = output -> {
+            try {
+                output.write("content".getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // Logged and ignored
+            }
+        };
+        store.wrap(key, swallowing).write(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Client disconnected");
+            }
+        });
+        assertFalse(store.deliver(key, new ByteArrayOutputStream()),
+                    "Exports that could not be delivered should not be stored");
+    }
+
+    @Test
+    void testMaxEntryBytes() throws Exception {
+        CacheKey key = new CacheKey("q=hest");
+        ExportStore store = new ExportStore(folder, -1, 10, -1);
+        assertEquals("more than ten bytes",
+                     write(store.wrap(key, createExport("more than ten bytes", new AtomicInteger()))),
+                     "Large exports should be delivered");
+        assertFalse(store.deliver(key, new ByteArrayOutputStream()), "Large exports should not be stored");
+    }
+
+    @Test
+    void testMaxBytes() throws Exception {
+        ExportStore probe = new ExportStore(folder.resolve("probe"), -1, -1, -1);
+        write(probe.wrap(new CacheKey("q=0"), createExport("export 0", new AtomicInteger())));
+        long entrySize = probe.getBytes();
+
+        ExportStore store = new ExportStore(folder.resolve("limited"), entrySize*3, -1, -1);
+        for (int i = 0 ; i < 10 ; i++) {
+            write(store.wrap(new CacheKey("q=" + i), createExport("export " + i, new AtomicInteger())));
+        }
+        assertTrue(store.getBytes() <= entrySize*3,
+                   "The size " + store.getBytes() + " should be within the limit " + entrySize*3);
+        assertTrue(store.deliver(new CacheKey("q=9"), new ByteArrayOutputStream()),
+                   "The most recent export should be retained");
+    }
+
+    private static StreamingOutput createExport(String content, AtomicInteger produced) {
+        return output -> {
+            produced.incrementAndGet();
+            output.write(content.getBytes(StandardCharsets.UTF_8));
+        };
+    }
+
+    private static String write(StreamingOutput export) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export.write(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
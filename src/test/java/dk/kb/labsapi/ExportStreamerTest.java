@@ -0,0 +1,145 @@
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ExportStreamerTest {
+
+    @Test
+    void testSupports() {
+        Set<String> docValues = new HashSet<>(Arrays.asList("recordID", "sort_year_asc", "pageUUID"));
+        String sort = "sort_year_asc asc, recordID asc";
+        assertTrue(ExportStreamer.supports(docValues, Arrays.asList("recordID", "pageUUID"), sort),
+                   "Fields and sort fields with docValues should be supported");
+        assertFalse(ExportStreamer.supports(docValues, Arrays.asList("recordID", "fulltext_org"), sort),
+                    "Fields without docValues should not be supported");
+        assertFalse(ExportStreamer.supports(docValues, Collections.singletonList("recordID"), "score desc"),
+                    "Sort fields without docValues should not be supported");
+    }
+
+    @Test
+    void testAllDocuments() throws IOException {
+        List<SolrParams> requests = new ArrayList<>();
+        ModifiableSolrParams request = new ModifiableSolrParams();
+        request.set(CommonParams.Q, "hest");
+        request.set(CommonParams.ROWS, 500);
+        request.set(CursorMarkParams.CURSOR_MARK_PARAM, CursorMarkParams.CURSOR_MARK_START);
+        List<Object> ids = new ArrayList<>();
+        ExportStreamer streamer = new ExportStreamer(request, -1, params -> {
+            requests.add(params);
+            return new FakeStream(5, false);
+        });
+        assertEquals(5, streamer.process(doc -> ids.add(doc.getFieldValue("id"))),
+                     "The number of delivered documents should be returned");
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), ids, "All documents should be delivered in order");
+
+        SolrParams exportRequest = requests.get(0);
+        assertEquals(ExportStreamer.EXPORT_HANDLER, exportRequest.get(CommonParams.QT),
+                     "The request should target the export handler");
+        assertEquals("hest", exportRequest.get(CommonParams.Q), "The query should be retained");
+        assertNull(exportRequest.get(CommonParams.ROWS), "Rows should be removed");
+        assertNull(exportRequest.get(CursorMarkParams.CURSOR_MARK_PARAM), "The cursorMark should be removed");
+    }
+
+    @Test
+    void testMaxAndClose() throws IOException {
+        FakeStream stream = new FakeStream(100, false);
+        ExportStreamer streamer = new ExportStreamer(new ModifiableSolrParams(), 7, params -> stream);
+        assertEquals(7, streamer.process(doc -> {}), "Only max documents should be delivered");
+        assertTrue(stream.closed, "The stream should be closed when max is reached");
+    }
+
+    @Test
+    void testFailure() {
+        FakeStream stream = new FakeStream(0, true);
+        ExportStreamer streamer = new ExportStreamer(new ModifiableSolrParams(), -1, params -> stream);
+        assertThrows(IOException.class, () -> streamer.process(doc -> {}),
+                     "An exception from the handler should be thrown");
+        assertEquals(0, streamer.getDelivered(), "No documents should be delivered");
+        assertTrue(stream.closed, "The stream should be closed on failure");
+    }
+
+    /**
+     * Delivers the given number of tuples with increasing ids, optionally followed by an exception tuple.
+     */
+    private static class FakeStream extends TupleStream {
+        private final int docs;
+        private final boolean fail;
+        private int delivered = 0;
+        boolean closed = false;
+
+        FakeStream(int docs, boolean fail) {
+            this.docs = docs;
+            this.fail = fail;
+        }
+
+        @Override
+        public Tuple read() {
+            if (delivered < docs) {
+                return new Tuple("id", (long) delivered++);
+            }
+            if (fail) {
+                Tuple exception = new Tuple("EXCEPTION", "can not sort on a field w/o docValues");
+                exception.EXCEPTION = true;
+                exception.EOF = true;
+                return exception;
+            }
+            return Tuple.EOF();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void open() {}
+        @Override
+        public void setStreamContext(StreamContext context) {}
+        @Override
+        public List<TupleStream> children() {
+            return Collections.emptyList();
+        }
+        @Override
+        public StreamComparator getStreamSort() {
+            return null;
+        }
+        @Override
+        public Explanation toExplanation(StreamFactory factory) {
+            return null;
+        }
+    }
+}
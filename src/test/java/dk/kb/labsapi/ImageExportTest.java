@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -34,12 +35,15 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Stream;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -363,7 +367,7 @@ public class ImageExportTest {
                 streamSolr(finalQuery).
                 limit(max);
         // Get fullPage metadata
-        HashSet<String> uniqueUUIDs = new HashSet<>();
+        UUIDSet uniqueUUIDs = new UUIDSet();
         Stream<FullPageMetadata> pageMetadata = docs.map(doc -> ImageExport.getInstance().getMetadataForFullPage(doc, uniqueUUIDs));
 
         long processed = pageMetadata.count();
@@ -381,7 +385,7 @@ public class ImageExportTest {
         Stream<SolrDocument> docs = exporter.
                 streamSolr(finalQuery).
                 limit(max);
-        HashSet<String> uniqueUUIDs = new HashSet<>();
+        UUIDSet uniqueUUIDs = new UUIDSet();
         Stream<IllustrationMetadata> illustrationMetadata = docs.flatMap(doc -> exporter.getMetadataForIllustrations(doc, uniqueUUIDs));
 
         long received = illustrationMetadata.
@@ -411,7 +415,7 @@ public class ImageExportTest {
         SolrQuery finalQuery = export.fullpageSolrQuery(query, startYear, endYear);
         Stream<SolrDocument> docs = export.streamSolr(finalQuery);
 
-        HashSet<String> UUIDs = new HashSet<>();
+        UUIDSet UUIDs = new UUIDSet();
         docs
                 .filter(doc -> export.deduplicateUUIDS(doc, UUIDs))
                 .limit(5);
@@ -420,6 +424,117 @@ public class ImageExportTest {
         System.out.println(UUIDs.size());
     }
 
+    @Test
+    public void testStreamSingleIllustration() throws IOException {
+        Path image = Files.createTempFile("illustration", ".jpeg");
+        try {
+            byte[] content = new byte[200*1024];
+            Arrays.fill(content, (byte) 87);
+            Files.write(image, content);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (ZipOutputStream zos = new ZipOutputStream(output)) {
+                ImageExport.getInstance().streamSingleIllustration(image.toUri().toURL(), "page.jpeg", zos);
+            }
+            try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+                assertEquals("page.jpeg", zis.getNextEntry().getName(), "The image should be added as an entry");
+                assertArrayEquals(content, zis.readAllBytes(), "The image should be copied in full");
+            }
+        } finally {
+            Files.deleteIfExists(image);
+        }
+    }
+
+    @Test
+    public void testStreamSingleIllustrationFailure() throws IOException {
+        URL missing = Path.of("src/test/resources/nonexisting.jpeg").toUri().toURL();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(output)) {
+            assertThrows(RuntimeException.class,
+                         () -> ImageExport.getInstance().streamSingleIllustration(missing, "page.jpeg", zos),
+                         "The download should fail after retries");
+        }
+    }
+
+    @Test
+    public void testStreamSingleIllustrationRetries() throws IOException {
+        URL url = Path.of("src/test/resources/nonexisting.jpeg").toUri().toURL();
+        ImageExport exportSpy = spy(ImageExport.getInstance());
+        doThrow(new IOException("Connection refused")).when(exportSpy).openImage(any());
+        try (ZipOutputStream zos = new ZipOutputStream(new ByteArrayOutputStream())) {
+            assertThrows(RuntimeException.class, () -> exportSpy.streamSingleIllustration(url, "page.jpeg", zos),
+                         "The download should fail after retries");
+        }
+        // retries: 2 in the config means 3 attempts in total, including the streaming attempt
+        verify(exportSpy, times(3)).openImage(any());
+    }
+
+    @Test
+    public void testSinglePassFullpages() throws IOException {
+        List<SolrDocument> docs = new ArrayList<>();
+        for (String page: Arrays.asList("0000a", "0000b", "0000a", "0000c", "0000d")) {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("pageUUID", "doms_aviser_page:uuid:" + page + "-ea53-46dd-bc90-0b0dd8917dbc");
+            fields.put("recordID", "doms_aviser_article:" + docs.size());
+            fields.put("page_width", 3573L);
+            fields.put("page_height", 5120L);
+            docs.add(new SolrDocument(fields));
+        }
+        ImageExport exportSpy = spy(ImageExport.getInstance());
+        doReturn(docs.stream()).when(exportSpy).streamSolr(any());
+        doReturn(new byte[]{87}).when(exportSpy).downloadSingleIllustration(any());
+        doAnswer(invocation -> {
+            ZipOutputStream zos = invocation.getArgument(2);
+            zos.putNextEntry(new ZipEntry((String) invocation.getArgument(1)));
+            zos.write(87);
+            zos.closeEntry();
+            return null;
+        }).when(exportSpy).streamSingleIllustration(any(), any(), any());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        exportSpy.exportFullpages("hest", 1666, 1800, 3, output, "fullPage");
+        verify(exportSpy, times(1)).streamSolr(any());
+        verify(exportSpy, never()).downloadSingleIllustration(any());
+
+        List<String> images = new ArrayList<>();
+        String csv = null;
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().endsWith(".jpeg")) {
+                    images.add(entry.getName());
+                } else if ("imageMetadata.csv".equals(entry.getName())) {
+                    csv = new String(zis.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        assertEquals(3, images.size(), "The max number of unique pages should be exported, but got " + images);
+        assertNotNull(csv, "The ZIP should contain the CSV metadata");
+        assertTrue(csv.startsWith("\"pageUUID\","), "The CSV should start with the header, but was\n" + csv);
+        // Header + 4 documents, as the 5th document is on a page beyond max
+        assertEquals(5, csv.split("\r?\n").length,
+                     "The CSV should hold the documents read until max pages were found");
+        assertTrue(csv.contains("doms_aviser_article:2"), "Documents on already exported pages should be included");
+        assertFalse(csv.contains("doms_aviser_article:4"), "Documents beyond max pages should not be included");
+    }
+
+    @Test
+    public void testCollapseQuery() throws IOException {
+        ImageExport exportSpy = spy(ImageExport.getInstance());
+        doReturn(true).when(exportSpy).isCollapseSupported();
+        assertTrue(Arrays.asList(exportSpy.illustrationSolrQuery("hest", 1700, 1800, 10).getFilterQueries())
+                           .contains("{!collapse field=pageUUID sort='recordID asc'}"),
+                   "The illustration query should collapse on pages when supported");
+        assertTrue(Arrays.stream(exportSpy.fullpageSolrQuery("hest", 1700, 1800).getFilterQueries())
+                           .noneMatch(fq -> fq.startsWith("{!collapse")),
+                   "The full page query should not collapse, as the CSV holds all matching documents");
+
+        doReturn(false).when(exportSpy).isCollapseSupported();
+        assertTrue(Arrays.stream(exportSpy.illustrationSolrQuery("hest", 1700, 1800, 10).getFilterQueries())
+                           .noneMatch(fq -> fq.startsWith("{!collapse")),
+                   "The query should not collapse when unsupported");
+    }
+
     private void printDoc(SolrDocument doc) {
         log.info(String.valueOf(doc.getFieldValue("pageUUID")));
     }
@@ -460,10 +575,12 @@ public class ImageExportTest {
         SolrQuery finalQuery = export.fullpageSolrQuery(query, startYear, endYear);
         Stream<SolrDocument> docs = export.streamSolr(finalQuery);
         // Create metadata file, that has to be added to output zip
-        HashSet<String> UUIDs = new HashSet<>();
+        UUIDSet pages = new UUIDSet();
+        Set<String> UUIDs = new LinkedHashSet<>();
         Stream<FullPageMetadata> pageMetadata = docs
-                .filter(doc -> export.deduplicateUUIDS(doc, UUIDs))
-                .map(doc -> export.getMetadataForFullPage(doc, UUIDs))
+                .peek(doc -> UUIDs.add(doc.getFieldValue("pageUUID").toString()))
+                .map(doc -> export.getMetadataForFullPage(doc, pages))
+                .filter(Objects::nonNull)
                 .limit(max);
 
         StreamingOutput csvHeader = ImageExport.getInstance().createHeaderForCsvStream();
@@ -0,0 +1,131 @@
+package dk.kb.labsapi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class OrderedFetcherTest {
+    private ExecutorService executor;
+
+    @BeforeEach
+    void createExecutor() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterEach
+    void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testOrderAndWindow() {
+        Random random = new Random(87);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        List<Integer> consumed = new ArrayList<>();
+
+        OrderedFetcher<Integer> fetcher = new OrderedFetcher<>(4, -1, input -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            sleep(random.nextInt(5));
+            active.decrementAndGet();
+            return new byte[]{(byte) (int) input};
+        }, executor);
+
+        List<Integer> inputs = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+        assertEquals(50, fetcher.process(inputs.iterator(), (input, content) -> {
+            assertEquals((byte) (int) input, content[0], "The content should belong to the input");
+            consumed.add(input);
+        }), "All inputs should be processed");
+        assertEquals(inputs, consumed, "Results should be consumed in input order");
+        assertTrue(maxActive.get() <= 4, "At most window fetches should run concurrently, but was " + maxActive);
+        assertTrue(maxActive.get() > 1, "Fetches should run concurrently");
+    }
+
+    @Test
+    void testMaxBufferedBytes() {
+        OrderedFetcher<Integer> fetcher = new OrderedFetcher<>(8, 1000, input -> new byte[400], executor);
+        fetcher.process(IntStream.range(0, 50).iterator(), (input, content) -> sleep(1));
+        // The cap is checked before starting fetches, so in-flight fetches can exceed it by window-1 results
+        assertTrue(fetcher.getMaxObservedBufferedBytes() <= 1000 + 7*400,
+                   "The buffered content should respect the cap, but was " + fetcher.getMaxObservedBufferedBytes());
+    }
+
+    @Test
+    void testFailure() {
+        AtomicInteger consumed = new AtomicInteger();
+        OrderedFetcher<Integer> fetcher = new OrderedFetcher<>(4, -1, input -> {
+            if (input == 10) {
+                throw new IllegalStateException("Image server unavailable");
+            }
+            return new byte[1];
+        }, executor);
+        IllegalStateException e = assertThrows(
+                IllegalStateException.class,
+                () -> fetcher.process(IntStream.range(0, 50).iterator(), (input, content) -> consumed.incrementAndGet()),
+                "The failure of a fetch should be thrown");
+        assertEquals("Image server unavailable", e.getMessage(), "The original exception should be thrown");
+        assertEquals(10, consumed.get(), "The results before the failure should be consumed");
+    }
+
+    @Test
+    void testFailureInterruptsFetches() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch interrupted = new CountDownLatch(3);
+        OrderedFetcher<Integer> fetcher = new OrderedFetcher<>(4, -1, input -> {
+            if (input == 0) {
+                try {
+                    started.await(); // Fail when the slow fetches are running
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new IllegalStateException("Image server unavailable");
+            }
+            started.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return new byte[1];
+        }, executor);
+        assertThrows(IllegalStateException.class,
+                     () -> fetcher.process(IntStream.range(0, 4).iterator(), (input, content) -> {}),
+                     "The failure of a fetch should be thrown");
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS), "The running fetches should be interrupted");
+    }
+
+    private static void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
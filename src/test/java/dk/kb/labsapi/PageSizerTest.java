@@ -0,0 +1,75 @@
+package dk.kb.labsapi;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class PageSizerTest {
+
+    @Test
+    void testGrowForThinPages() {
+        PageSizer sizer = new PageSizer(500, 50, 10000, 1000000, 1000, null);
+        // 500 docs of 100 bytes in 50 ms: Far below both targets
+        sizer.update(500, 500, 50000, 50);
+        assertEquals(1000, sizer.getRows(), "Rows should at most double");
+        for (int i = 0 ; i < 10 ; i++) {
+            sizer.update(sizer.getRows(), sizer.getRows(), sizer.getRows()*100L, 50);
+        }
+        assertEquals(10000, sizer.getRows(), "Rows should be capped at maxRows");
+    }
+
+    @Test
+    void testShrinkForHeavyPages() {
+        PageSizer sizer = new PageSizer(500, 50, 10000, 1000000, 1000, null);
+        // 500 docs of 10 KB: 5 MB, 5 times the target
+        sizer.update(500, 500, 5000000, 100);
+        assertEquals(125, sizer.getRows(), "Rows should at most be quartered");
+        sizer.update(125, 125, 1250000, 100);
+        assertEquals(100, sizer.getRows(), "Rows should converge on the byte target");
+    }
+
+    @Test
+    void testShrinkForSlowPages() {
+        PageSizer sizer = new PageSizer(500, 50, 10000, 1000000, 1000, null);
+        sizer.update(500, 500, 1000, 2000);
+        assertEquals(250, sizer.getRows(), "Rows should follow the time target");
+    }
+
+    @Test
+    void testFixedWithStats() {
+        PagingStats stats = new PagingStats();
+        PageSizer sizer = PageSizer.fixed(500, stats);
+        sizer.update(500, 500, 5000000, 100);
+        sizer.update(500, 200, 1000, 20);
+        assertEquals(500, sizer.getRows(), "A fixed sizer should not change");
+        assertEquals(2, stats.getPages(), "Pages should be counted");
+        assertEquals(700, stats.getDocs(), "Documents should be counted");
+        assertEquals(60.0, stats.getAverageMS(), 0.001, "The average time should be calculated");
+    }
+
+    @Test
+    void testWeighing() {
+        assertTrue(new PageSizer(500, 50, 10000, 1000000, 1000, null).isWeighing(),
+                   "An adaptive sizer should need the page sizes");
+        assertTrue(PageSizer.fixed(500, new PagingStats()).isWeighing(),
+                   "A fixed sizer should need the page sizes for weighing statistics");
+        assertFalse(PageSizer.fixed(500, new PagingStats(false)).isWeighing(),
+                    "A fixed sizer should not need the page sizes for non-weighing statistics");
+        assertFalse(PageSizer.fixed(500, null).isWeighing(),
+                    "A fixed sizer without statistics should not need the page sizes");
+    }
+}
@@ -0,0 +1,83 @@
+package dk.kb.labsapi;
+
+import dk.kb.labsapi.config.ServiceConfig;
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ResumeTokenTest {
+
+    @BeforeAll
+    static void setupConfig() throws IOException {
+        ServiceConfig.initialize("conf/labsapi*.yaml");
+    }
+
+    @Test
+    void testRoundTrip() {
+        ModifiableSolrParams request = createRequest("hest");
+        String encoded = new ResumeToken(1234, "AoE/ZHJ1ZGU=", ResumeToken.hash(request)).encode();
+        assertTrue(encoded.matches("[A-Za-z0-9_-]+"), "The token should be URL safe but was '" + encoded + "'");
+
+        // The number of rows is not part of the identity of the export
+        request.set(CommonParams.ROWS, 10);
+        ResumeToken decoded = ResumeToken.decode(encoded, request);
+        assertEquals(1234, decoded.getCount(), "The count should survive a round trip");
+        assertEquals("AoE/ZHJ1ZGU=", decoded.getCursorMark(), "The cursorMark should survive a round trip");
+    }
+
+    @Test
+    void testInvalid() {
+        String encoded = new ResumeToken(10, "AoE", ResumeToken.hash(createRequest("hest"))).encode();
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> ResumeToken.decode(encoded, createRequest("zoo")),
+                     "A token for another query should be rejected");
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> ResumeToken.decode("not a token!", createRequest("hest")),
+                     "A malformed token should be rejected");
+    }
+
+    @Test
+    void testResumable() {
+        Set<SolrExport.STRUCTURE> commented = EnumSet.of(
+                SolrExport.STRUCTURE.comments, SolrExport.STRUCTURE.header, SolrExport.STRUCTURE.content);
+        assertTrue(SolrExport.isResumable(SolrExport.EXPORT_FORMAT.csv, commented),
+                   "CSV with comments writes checkpoints and should be resumable");
+        assertFalse(SolrExport.isResumable(SolrExport.EXPORT_FORMAT.csv,
+                                           EnumSet.of(SolrExport.STRUCTURE.header, SolrExport.STRUCTURE.content)),
+                    "CSV without comments has no checkpoints and should not be resumable");
+        for (SolrExport.EXPORT_FORMAT format: EnumSet.complementOf(EnumSet.of(SolrExport.EXPORT_FORMAT.csv))) {
+            assertFalse(SolrExport.isResumable(format, commented),
+                        "The format " + format + " has no checkpoints and should not be resumable");
+        }
+    }
+
+    private ModifiableSolrParams createRequest(String query) {
+        ModifiableSolrParams request = new ModifiableSolrParams();
+        request.set(CommonParams.Q, query);
+        request.set(CommonParams.FL, "recordID,timestamp");
+        request.set(CommonParams.SORT, "sort_year_asc asc, recordID asc");
+        return request;
+    }
+}
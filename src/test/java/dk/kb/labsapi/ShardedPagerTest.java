@@ -0,0 +1,163 @@
+package dk.kb.labsapi;
+
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ShardedPagerTest {
+
+    @Test
+    void testOrder() {
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        List<Integer> ids = collect(new ShardedPager(createShards(4), 10, -1, 3, 2,
+                                                     createSolr(25, concurrent, maxConcurrent)));
+        assertEquals(100, ids.size(), "All documents from all shards should be delivered");
+        for (int i = 0 ; i < ids.size() ; i++) {
+            assertEquals(i, ids.get(i), "Documents should be delivered in shard order");
+        }
+        assertTrue(maxConcurrent.get() > 1, "Shards should be paged concurrently");
+        assertTrue(maxConcurrent.get() <= 3, "No more than parallelism shards should be paged concurrently, but " +
+                                             "there were " + maxConcurrent.get());
+    }
+
+    @Test
+    void testMax() {
+        try (ShardedPager pager = new ShardedPager(createShards(4), 10, 37, 2, 2,
+                                                   createSolr(25, new AtomicInteger(), new AtomicInteger()))) {
+            List<Integer> ids = collect(pager);
+            assertEquals(37, ids.size(), "Only max documents should be delivered");
+            assertEquals(36, ids.get(36), "The last document should be from the second shard");
+        }
+    }
+
+    @Test
+    void testShardMax() {
+        List<Integer> requestedRows = new ArrayList<>();
+        Function<SolrParams, QueryResponse> solr = createSolr(25, new AtomicInteger(), new AtomicInteger());
+        try (ShardedPager pager = new ShardedPager(createShards(4), 10, 37, 1, 2, request -> {
+            if (request.getInt("shard") == 1) {
+                requestedRows.add(request.getInt(CommonParams.ROWS));
+            }
+            return solr.apply(request);
+        })) {
+            assertEquals(37, collect(pager).size(), "Only max documents should be delivered");
+        }
+        assertEquals(12, requestedRows.stream().mapToInt(Integer::intValue).sum(),
+                     "The second shard should only request the documents remaining of max, but requested " +
+                     requestedRows);
+    }
+
+    @Test
+    void testIsAscendingOn() {
+        assertTrue(ShardedPager.isAscendingOn("py asc, id asc", "py"), "Ascending primary sort should match");
+        assertTrue(ShardedPager.isAscendingOn(" py  ASC", "py"), "Case and whitespace should be ignored");
+        assertFalse(ShardedPager.isAscendingOn("sort_year_asc asc, recordID asc", "py"),
+                    "Another primary sort field should not match");
+        assertFalse(ShardedPager.isAscendingOn("py desc, id asc", "py"), "Descending primary sort should not match");
+        assertFalse(ShardedPager.isAscendingOn("id asc, py asc", "py"), "Secondary sort fields should not match");
+    }
+
+    @Test
+    void testCreateRangeShards() {
+        FacetField facet = new FacetField("py");
+        facet.add("1801", 30);
+        facet.add("1800", 10);
+        facet.add("1802", 10);
+        facet.add("1803", 50);
+        SolrParams request = new ModifiableSolrParams().set(CommonParams.Q, "hest");
+
+        List<SolrParams> shards = ShardedPager.createRangeShards(request, "py", facet, -1, 2, 0);
+        assertNotNull(shards, "The request should be split");
+        assertEquals(Arrays.asList("py:[* TO 1802]", "py:[1803 TO *]"),
+                     shards.stream().map(shard -> shard.get(CommonParams.FQ)).collect(Collectors.toList()),
+                     "The ranges should split the documents in halves");
+        assertEquals("hest", shards.get(0).get(CommonParams.Q), "The shards should retain the query");
+
+        assertNull(ShardedPager.createRangeShards(request, "py", facet, -1, 2, 1000),
+                   "Small exports should not be split");
+        assertNull(ShardedPager.createRangeShards(request, "py", facet, 5, 2, 0),
+                   "Exports limited to the first value should not be split");
+
+        facet.add(null, 1);
+        assertNull(ShardedPager.createRangeShards(request, "py", facet, -1, 2, 0),
+                   "Documents without a value should prevent splitting");
+    }
+
+    private List<Integer> collect(ShardedPager pager) {
+        List<Integer> ids = new ArrayList<>();
+        pager.forEachRemaining(response ->
+                response.getResults().forEach(doc -> ids.add((Integer) doc.getFieldValue("id"))));
+        return ids;
+    }
+
+    private List<SolrParams> createShards(int count) {
+        List<SolrParams> shards = new ArrayList<>();
+        for (int i = 0 ; i < count ; i++) {
+            shards.add(new ModifiableSolrParams().set("shard", i));
+        }
+        return shards;
+    }
+
+    /**
+     * Simulate cursorMark paging over shards with docsPerShard documents each. The ids are global and increasing.
+     */
+    private Function<SolrParams, QueryResponse> createSolr(
+            int docsPerShard, AtomicInteger concurrent, AtomicInteger maxConcurrent) {
+        return request -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                TimeUnit.MILLISECONDS.sleep(5);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            int shard = request.getInt("shard");
+            String cursorMark = request.get(CursorMarkParams.CURSOR_MARK_PARAM);
+            int offset = CursorMarkParams.CURSOR_MARK_START.equals(cursorMark) ? 0 : Integer.parseInt(cursorMark);
+            int rows = request.getInt(CommonParams.ROWS);
+            SolrDocumentList results = new SolrDocumentList();
+            for (int i = offset ; i < Math.min(docsPerShard, offset + rows) ; i++) {
+                SolrDocument doc = new SolrDocument();
+                doc.setField("id", shard*docsPerShard + i);
+                results.add(doc);
+            }
+            NamedList<Object> raw = new NamedList<>();
+            raw.add("response", results);
+            raw.add(CursorMarkParams.CURSOR_MARK_NEXT, results.isEmpty() ? cursorMark :
+                    Integer.toString(offset + results.size()));
+            concurrent.decrementAndGet();
+            return new QueryResponse(raw, null);
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package dk.kb.labsapi;
+
+import dk.kb.labsapi.SolrConnectionScheduler.PRIORITY;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SolrConnectionSchedulerTest {
+
+    @Test
+    void testReservedForInteractive() {
+        SolrConnectionScheduler scheduler = new SolrConnectionScheduler(3)
+                .configure(PRIORITY.bulk, 3, 2, 0, 1000);
+        scheduler.acquire(PRIORITY.bulk);
+        scheduler.acquire(PRIORITY.bulk);
+        assertThrows(ServiceUnavailableServiceException.class, () -> scheduler.acquire(PRIORITY.bulk),
+                     "A third bulk request should be rejected as the queue size is 0");
+        scheduler.acquire(PRIORITY.interactive); // Should not block
+        assertEquals(0, scheduler.getAvailable(), "All connections should be in use");
+
+        scheduler.release(PRIORITY.interactive);
+        scheduler.release(PRIORITY.bulk);
+        scheduler.release(PRIORITY.bulk);
+        assertEquals(3, scheduler.getAvailable(), "All connections should be released");
+        assertEquals(1, scheduler.getRejections(PRIORITY.bulk), "There should be a single bulk rejection");
+    }
+
+    @Test
+    void testDeadline() {
+        SolrConnectionScheduler scheduler = new SolrConnectionScheduler(1)
+                .configure(PRIORITY.interactive, 6, -1, 10, 50)
+                .setRetryAfterSeconds(7);
+        scheduler.acquire(PRIORITY.interactive);
+        long startTime = System.currentTimeMillis();
+        ServiceUnavailableServiceException e = assertThrows(
+                ServiceUnavailableServiceException.class, () -> scheduler.acquire(PRIORITY.interactive),
+                "Acquiring should be rejected when the deadline is exceeded");
+        assertTrue(System.currentTimeMillis() - startTime >= 50, "The request should wait until the deadline");
+        assertEquals(7, e.getRetryAfterSeconds(), "The Retry-After hint should be as configured");
+        assertEquals(0, scheduler.getQueued(PRIORITY.interactive), "The rejected request should not be queued");
+
+        scheduler.release(PRIORITY.interactive);
+        assertEquals(1, scheduler.getAvailable(), "The connection should be available after release");
+    }
+
+    @Test
+    void testWeightedShares() throws InterruptedException {
+        SolrConnectionScheduler scheduler = new SolrConnectionScheduler(1)
+                .configure(PRIORITY.interactive, 2, -1, 100, 10000)
+                .configure(PRIORITY.bulk, 1, -1, 100, 10000);
+        scheduler.acquire(PRIORITY.interactive); // Block all others
+
+        List<PRIORITY> order = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        for (int i = 0 ; i < 6 ; i++) {
+            PRIORITY priority = i < 3 ? PRIORITY.bulk : PRIORITY.interactive;
+            Thread thread = new Thread(() -> {
+                scheduler.acquire(priority);
+                order.add(priority);
+                scheduler.release(priority);
+            });
+            threads.add(thread);
+            thread.start();
+            waitForQueued(scheduler, PRIORITY.bulk, Math.min(i+1, 3));
+        }
+        waitForQueued(scheduler, PRIORITY.interactive, 3);
+
+        scheduler.release(PRIORITY.interactive);
+        for (Thread thread: threads) {
+            thread.join(1000);
+        }
+        assertEquals(6, order.size(), "All requests should be served");
+        assertEquals(2, order.subList(0, 3).stream().filter(p -> p == PRIORITY.interactive).count(),
+                     "Interactive should get 2 of the first 3 connections with weights 2:1, but the order was "
+                     + order);
+    }
+
+    @Test
+    void testIdleLaneCredit() throws InterruptedException {
+        SolrConnectionScheduler scheduler = new SolrConnectionScheduler(1)
+                .configure(PRIORITY.interactive, 1, -1, 100, 10000)
+                .configure(PRIORITY.bulk, 1, -1, 100, 10000);
+        // Bulk is served alone for a while, during which interactive is idle
+        for (int i = 0 ; i < 10 ; i++) {
+            scheduler.acquire(PRIORITY.bulk);
+            scheduler.release(PRIORITY.bulk);
+        }
+        scheduler.acquire(PRIORITY.interactive); // Block all others
+
+        List<PRIORITY> order = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        for (int i = 0 ; i < 6 ; i++) {
+            PRIORITY priority = i < 3 ? PRIORITY.bulk : PRIORITY.interactive;
+            Thread thread = new Thread(() -> {
+                scheduler.acquire(priority);
+                order.add(priority);
+                scheduler.release(priority);
+            });
+            threads.add(thread);
+            thread.start();
+            waitForQueued(scheduler, PRIORITY.bulk, Math.min(i+1, 3));
+        }
+        waitForQueued(scheduler, PRIORITY.interactive, 3);
+
+        scheduler.release(PRIORITY.interactive);
+        for (Thread thread: threads) {
+            thread.join(1000);
+        }
+        assertEquals(6, order.size(), "All requests should be served");
+        assertEquals(1, order.subList(0, 2).stream().filter(p -> p == PRIORITY.interactive).count(),
+                     "Interactive should not get a burst from the time it was idle with weights 1:1, but the " +
+                     "order was " + order);
+    }
+
+    private void waitForQueued(SolrConnectionScheduler scheduler, PRIORITY priority, int queued)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (scheduler.getQueued(priority) < queued && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertEquals(queued, scheduler.getQueued(priority), "There should be the expected number of queued " +
+                                                            priority + " requests");
+    }
+}
@@ -0,0 +1,200 @@
+package dk.kb.labsapi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class TimeCacheTest {
+
+    @Test
+    void testCapacity() {
+        TimeCache<String> cache = new TimeCache<>(10, 10000);
+        for (int i = 0 ; i < 100 ; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertEquals(10, cache.size(), "The cache should be limited to its capacity");
+        assertEquals("value99", cache.get("key99"), "The last added entry should be available");
+    }
+
+    @Test
+    void testLRUSingleSegment() {
+        TimeCache<String> cache = new TimeCache<>(3, 10000, 1);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.get("a"); // a is now the most recently used
+        cache.put("d", "D");
+        assertNull(cache.get("b"), "The least recently used entry should have been evicted");
+        assertEquals("A", cache.get("a"), "The recently accessed entry should still be present");
+    }
+
+    @Test
+    void testMaxAge() throws InterruptedException {
+        TimeCache<String> cache = new TimeCache<>(10, 50);
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"), "The entry should be available right after put");
+        Thread.sleep(100);
+        assertNull(cache.get("a"), "The entry should have expired");
+        assertEquals(0, cache.size(), "The expired entry should have been removed");
+    }
+
+    @Test
+    void testLinkedCapacity() {
+        TimeCache<String> cache = new TimeCache<>(10, 10000);
+        TimeCache<Integer> linked = cache.createLinked();
+        for (int i = 0 ; i < 6 ; i++) {
+            cache.put("key" + i, "value" + i);
+            linked.put("key" + i, i);
+        }
+        assertTrue(cache.size() + linked.size() <= 10,
+                   "The combined size of linked caches should not exceed the capacity, but was " +
+                   (cache.size() + linked.size()));
+    }
+
+    @Test
+    void testWeight() {
+        TimeCache<String> cache = new TimeCache<>(100, 50, 10000, String::length);
+        for (int i = 0 ; i < 20 ; i++) {
+            cache.put("key" + i, "0123456789");
+        }
+        assertEquals(5, cache.size(), "The cache should be limited by weight");
+        assertEquals(50, cache.getWeight(), "The weight of the cache should be the sum of the entry weights");
+        cache.put("key19", "01234");
+        assertEquals(45, cache.getWeight(), "Replacing an entry should adjust the weight");
+        cache.remove("key19");
+        assertEquals(40, cache.getWeight(), "Removing an entry should adjust the weight");
+        cache.clear();
+        assertEquals(0, cache.getWeight(), "Clearing the cache should reset the weight");
+    }
+
+    @Test
+    void testOverweight() {
+        TimeCache<String> cache = new TimeCache<>(100, 5, 10000, String::length);
+        cache.put("small", "01234");
+        cache.put("large", "0123456789");
+        assertNull(cache.get("large"), "An entry heavier than the max weight should not be cached");
+        assertEquals("01234", cache.get("small"), "The existing entry should not be evicted by the heavy entry");
+    }
+
+    @Test
+    void testLinkedWeight() {
+        TimeCache<String> cache = new TimeCache<>(100, 50, 10000, String::length);
+        TimeCache<Integer> linked = cache.createLinked(i -> i);
+        for (int i = 0 ; i < 6 ; i++) {
+            cache.put("key" + i, "0123456789");
+            linked.put("key" + i, 10);
+        }
+        assertTrue(cache.getWeight() + linked.getWeight() <= 50,
+                   "The combined weight of linked caches should not exceed the max weight, but was " +
+                   (cache.getWeight() + linked.getWeight()));
+    }
+
+    @Test
+    void testFullKeyCollision() {
+        TimeCache<String> cache = new TimeCache<>(10, 10000);
+        cache.put("digest", "full_a", "A");
+        assertEquals("A", cache.get("digest", "full_a"), "Matching full key should give the value");
+        assertNull(cache.get("digest", "full_b"), "Colliding full key should not give the value");
+        assertEquals("A", cache.get("digest"), "Lookup without full key should give the value");
+    }
+
+    @Test
+    void testSoftMaxAge() throws InterruptedException {
+        AtomicInteger refreshCalls = new AtomicInteger(0);
+        TimeCache<String> cache = new TimeCache<>(10, Long.MAX_VALUE, 10000, 50, null);
+        assertEquals("A0", cache.get("a", () -> "A" + refreshCalls.getAndIncrement()),
+                     "The initial value should be returned");
+        Thread.sleep(100);
+        assertEquals("A0", cache.get("a"), "The stale value should be served while refreshing");
+        for (int i = 0 ; i < 50 && cache.getRefreshes() == 0 ; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, cache.getRefreshes(), "A single background refresh should have been performed");
+        assertEquals("A1", cache.get("a"), "The refreshed value should be served");
+        assertEquals(2, refreshCalls.get(), "The supplier should have been called twice");
+    }
+
+    @Test
+    void testSoftMaxAgeHardExpiry() throws InterruptedException {
+        TimeCache<String> cache = new TimeCache<>(10, Long.MAX_VALUE, 50, 10, null);
+        cache.get("a", () -> "A");
+        Thread.sleep(100);
+        assertNull(cache.get("a"), "Entries older than max age should be removed even with soft max age");
+    }
+
+    @Test
+    void testStatistics() throws InterruptedException {
+        TimeCache<String> cache = new TimeCache<>(3, 50, 1);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        for (int i = 0 ; i < 3 ; i++) {
+            cache.get("b");
+        }
+        cache.get("c");
+        List<TimeCache.HotKey> hot = cache.getHotKeys(2);
+        assertEquals(2, hot.size(), "The requested number of hot keys should be returned");
+        assertEquals("b", hot.get(0).getKey(), "The key with most hits should be first");
+        assertEquals(3, hot.get(0).getHits(), "The hits for the hottest key should be counted");
+        assertEquals("c", hot.get(1).getKey(), "The key with second most hits should be second");
+
+        cache.put("d", "D");
+        assertEquals(1, cache.getEvictionsCapacity(), "Eviction due to capacity should be counted");
+        Thread.sleep(100);
+        cache.get("d");
+        assertEquals(1, cache.getEvictionsAge(), "Eviction due to age should be counted");
+    }
+
+    @Test
+    void testConcurrentAccess() throws Exception {
+        final int capacity = 100;
+        TimeCache<String> cache = new TimeCache<>(capacity, 10000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> jobs = new ArrayList<>();
+            for (int t = 0 ; t < 8 ; t++) {
+                final int thread = t;
+                jobs.add(executor.submit(() -> {
+                    for (int i = 0 ; i < 10000 ; i++) {
+                        String key = String.format(Locale.ROOT, "key_%d", (i * (thread+1)) % 500);
+                        if (cache.get(key, () -> key + "_value") == null) {
+                            throw new IllegalStateException("Got null for key " + key);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> job: jobs) {
+                job.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(cache.size() <= capacity,
+                   "The size of the cache should not exceed the capacity " + capacity + " but was " + cache.size());
+        assertEquals(cache.size(), cache.keySet().size(),
+                     "The size counter should match the number of keys");
+        assertEquals(80000, cache.getCalls(), "All calls should be counted");
+    }
+}
@@ -0,0 +1,144 @@
+package dk.kb.labsapi;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class UUIDSetTest {
+    private static final Logger log = LoggerFactory.getLogger(UUIDSetTest.class);
+
+    private static final String PREFIX = "doms_aviser_page:uuid:";
+
+    @Test
+    void testBasics() {
+        UUIDSet set = new UUIDSet();
+        String uuid = "00005aff-ea53-46dd-bc90-0b0dd8917dbc";
+        assertTrue(set.add(PREFIX + uuid), "The first add should succeed");
+        assertFalse(set.add(PREFIX + uuid), "Adding a duplicate should fail");
+        assertFalse(set.add(uuid), "The prefix should be ignored");
+        assertFalse(set.add(uuid.toUpperCase(Locale.ROOT)), "UUIDs should be case insensitive");
+        assertTrue(set.contains(uuid), "The UUID should be in the set");
+        assertFalse(set.contains("10005aff-ea53-46dd-bc90-0b0dd8917dbc"), "Other UUIDs should not be in the set");
+
+        assertTrue(set.add("00000000-0000-0000-0000-000000000000"), "The nil UUID should be supported");
+        assertFalse(set.add(PREFIX + "00000000-0000-0000-0000-000000000000"), "The nil UUID should be deduplicated");
+        assertTrue(set.add("not_a_uuid"), "Values that are not UUIDs should be supported");
+        assertFalse(set.add("not_a_uuid"), "Values that are not UUIDs should be deduplicated");
+        assertTrue(set.add("prefix_00005aff-ea53-46dd-bc90-0b0dd8917dbc"),
+                   "A UUID with a prefix not ending in colon should be treated as a plain value");
+        assertEquals(4, set.size(), "The set should contain the unique values");
+    }
+
+    @Test
+    void testGrowth() {
+        UUIDSet set = new UUIDSet(10, -1);
+        List<UUID> uuids = createUUIDs(10000, 87);
+        for (UUID uuid: uuids) {
+            assertTrue(set.add(PREFIX + uuid), "Unique UUIDs should be added");
+        }
+        for (UUID uuid: uuids) {
+            assertFalse(set.add(uuid.toString()), "Added UUIDs should be deduplicated after growth");
+        }
+        assertEquals(10000, set.size(), "All UUIDs should be in the set");
+        assertFalse(set.isOffHeap(), "The set should stay on the heap");
+    }
+
+    @Test
+    void testOffHeap() {
+        UUIDSet set = new UUIDSet(10, 1024);
+        assertFalse(set.isOffHeap(), "The initial small table should be on the heap");
+        List<UUID> uuids = createUUIDs(1000, 88);
+        uuids.forEach(uuid -> set.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        assertTrue(set.isOffHeap(), "The grown table should be off-heap");
+        for (UUID uuid: uuids) {
+            assertTrue(set.contains(PREFIX + uuid), "The UUID should be in the set after moving off-heap");
+        }
+        assertEquals(1000, set.size(), "All UUIDs should be in the set");
+    }
+
+    /**
+     * Compares the memory and time per insert for the current HashSet and UUIDSet. The memory for HashSet is
+     * measured on the heap, so the numbers are approximate.
+     */
+    @Disabled("Benchmark to run manually, as it takes seconds and forces garbage collections")
+    @Test
+    void testPerformanceComparison() {
+        final int UUIDS = 200000;
+        List<String> pageIDs = new ArrayList<>(UUIDS);
+        createUUIDs(UUIDS, 89).forEach(uuid -> pageIDs.add(PREFIX + uuid));
+
+        // Warm up the JIT for both implementations
+        Set<String> warmupHashSet = new HashSet<>();
+        UUIDSet warmupUUIDSet = new UUIDSet();
+        pageIDs.forEach(pageID -> {
+            warmupHashSet.add(new String(pageID.toCharArray()));
+            warmupUUIDSet.add(pageID);
+        });
+        warmupHashSet.clear();
+
+        // The strings are already present, but each entry in the HashSet holds a String from the Solr response
+        long heapBefore = usedHeap();
+        long startNS = System.nanoTime();
+        Set<String> hashSet = new HashSet<>();
+        for (String pageID: pageIDs) {
+            hashSet.add(new String(pageID.toCharArray()));
+        }
+        long hashSetNS = System.nanoTime() - startNS;
+        long hashSetBytes = usedHeap() - heapBefore;
+
+        startNS = System.nanoTime();
+        UUIDSet uuidSet = new UUIDSet();
+        for (String pageID: pageIDs) {
+            uuidSet.add(pageID);
+        }
+        long uuidSetNS = System.nanoTime() - startNS;
+
+        assertEquals(hashSet.size(), uuidSet.size(), "The sets should have the same size");
+        log.info(String.format(
+                Locale.ROOT, "Deduplication of %d page IDs: HashSet ~%d bytes/entry, %d ns/insert. " +
+                             "UUIDSet %d bytes/entry, %d ns/insert",
+                UUIDS, hashSetBytes / UUIDS, hashSetNS / UUIDS, uuidSet.getTableBytes() / UUIDS, uuidSetNS / UUIDS));
+        assertTrue(uuidSet.getTableBytes() <= 32L * 2 * UUIDS,
+                   "The UUIDSet should use at most 64 bytes per UUID, but used " + uuidSet.getTableBytes() / UUIDS);
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static List<UUID> createUUIDs(int count, long seed) {
+        Random random = new Random(seed);
+        List<UUID> uuids = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; i++) {
+            uuids.add(new UUID((random.nextLong() & ~0xF000L) | 0x4000L, random.nextLong()));
+        }
+        return uuids;
+    }
+}